@@ -0,0 +1,60 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.Server;
+import nl.saxion.internettech.UserGroup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the fan-out of a single message: a BCST to all logged in users and a group broadcast
+ * to all participants of a group. The time is per message, for all recipients together.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    private Server.ClientThread sender;
+    private UserGroup group;
+    private byte[] broadcast;
+
+    @Setup
+    public void setUp() {
+        ServerFixture fixture = new ServerFixture();
+        sender = fixture.login("sender");
+        group = new UserGroup("group", sender);
+        for (int i = 0; i < recipients; i++) {
+            group.addParticipant(fixture.login("user" + i));
+        }
+        broadcast = ServerFixture.encode("BCST hello everybody, this is a message of a typical length");
+    }
+
+    @Benchmark
+    public void bcst() {
+        sender.onBytes(ByteBuffer.wrap(broadcast));
+    }
+
+    @Benchmark
+    public void groupBroadcast() {
+        group.broadcastGroupMessage("hello everybody, this is a message of a typical length", sender);
+    }
+}
@@ -0,0 +1,81 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.Compression;
+import nl.saxion.internettech.Frame;
+import nl.saxion.internettech.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Measures a large BCST to recipients that asked for compression and to recipients that didn't.
+ * The broadcast is compressed once for all recipients; compressPerRecipient shows what
+ * compressing it for every socket would cost instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"10", "1000"})
+    public int recipients;
+
+    private Server.ClientThread plainSender;
+    private Server.ClientThread compressedSender;
+    private byte[] broadcast;
+    private Frame frame;
+    private Deflater deflater = Compression.newDeflater();
+
+    @Setup
+    public void setUp() {
+        ServerFixture plain = new ServerFixture();
+        ServerFixture compressed = new ServerFixture();
+        plainSender = plain.login("sender");
+        compressedSender = compressed.login("sender");
+        for (int i = 0; i < recipients; i++) {
+            plain.login("user" + i);
+            compressed.loginCompressed("user" + i);
+        }
+        StringBuilder text = new StringBuilder("BCST");
+        while (text.length() < 2048) {
+            text.append(" the release notes of version ").append(text.length()).append(" are online");
+        }
+        broadcast = ServerFixture.encode(text.toString());
+        frame = Frame.of(text.toString());
+    }
+
+    @Benchmark
+    public void plainBroadcast() {
+        plainSender.onBytes(ByteBuffer.wrap(broadcast));
+    }
+
+    @Benchmark
+    public void compressedBroadcast() {
+        compressedSender.onBytes(ByteBuffer.wrap(broadcast));
+    }
+
+    @Benchmark
+    public int compressPerRecipient() {
+        int bytes = 0;
+        for (int i = 0; i < recipients; i++) {
+            bytes += Compression.compress(frame.buffer(), false, deflater).remaining();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,251 @@
+package nl.saxion.internettech.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compares the threading modes of the server with many concurrent connections. For every mode
+ * and connection count a fresh server is started in a child JVM, so the measurements of one run
+ * don't leak into the next. The clients are all served from a single selector thread in this JVM.
+ *
+ * For every run the benchmark reports:
+ *  - the time it takes to connect and log in all clients (HELO),
+ *  - the resident memory and thread count of the server while all clients are idle,
+ *  - the private message throughput when every client sends MSG to another client,
+ *  - the resident memory and thread count of the server after the active phase.
+ *
+ * Usage: ConnectionBenchmark [--modes=platform,virtual,nio] [--connections=10000,50000] [--rounds=5]
+ *
+ * The resident memory and thread count are read from /proc, so this only works on Linux. Large
+ * connection counts need a raised file descriptor limit (ulimit -n) for both JVMs.
+ */
+public class ConnectionBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 1337;
+
+    public static void main(String[] args) throws Exception {
+        String[] modes = {"platform", "virtual"};
+        int[] connections = {10000, 50000};
+        int rounds = 5;
+        for (String arg : args) {
+            if (arg.startsWith("--modes=")) {
+                modes = arg.substring("--modes=".length()).split(",");
+            } else if (arg.startsWith("--connections=")) {
+                String[] counts = arg.substring("--connections=".length()).split(",");
+                connections = new int[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    connections[i] = Integer.parseInt(counts[i]);
+                }
+            } else if (arg.startsWith("--rounds=")) {
+                rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+            }
+        }
+
+        System.out.println(String.format("%-9s %8s %10s %12s %10s %12s %12s %10s",
+                "mode", "clients", "login ms", "idle rss MB", "idle thr", "msg/s", "active rss MB", "active thr"));
+        for (int count : connections) {
+            for (String mode : modes) {
+                Result result = run(mode, count, rounds);
+                System.out.println(String.format("%-9s %8d %10d %12d %10d %12.0f %12d %10d",
+                        mode, count, result.loginMillis, result.idleRss / 1024, result.idleThreads,
+                        result.messagesPerSecond, result.activeRss / 1024, result.activeThreads));
+            }
+        }
+    }
+
+    private static Result run(String mode, int count, int rounds) throws Exception {
+        Process server = startServer(mode);
+        Result result = new Result();
+        Clients clients = new Clients();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                clients.connect("user" + i);
+            }
+            clients.awaitOk(count);
+            result.loginMillis = (System.nanoTime() - start) / 1_000_000;
+
+            // Let the server settle before sampling the idle footprint.
+            Thread.sleep(2000);
+            result.idleRss = readStatus(server.pid(), "VmRSS");
+            result.idleThreads = readStatus(server.pid(), "Threads");
+
+            start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < count; i++) {
+                    clients.send(i, "MSG user" + ((i + 1) % count) + " aGVsbG8=");
+                }
+            }
+            clients.awaitOk(count + count * rounds);
+            long elapsed = System.nanoTime() - start;
+            result.messagesPerSecond = count * rounds / (elapsed / 1e9);
+            result.activeRss = readStatus(server.pid(), "VmRSS");
+            result.activeThreads = readStatus(server.pid(), "Threads");
+        } finally {
+            clients.close();
+            server.destroy();
+            server.waitFor();
+        }
+        return result;
+    }
+
+    private static Process startServer(String mode) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("nl.saxion.internettech.Main");
+        command.add("--no-colors");
+        if (mode.equals("virtual")) {
+            command.add("--virtual-threads");
+        } else if (mode.equals("nio")) {
+            command.add("--nio");
+        }
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        // Wait until the server accepts connections.
+        for (int i = 0; i < 100; i++) {
+            try (Socket probe = new Socket(HOST, PORT)) {
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        process.destroy();
+        throw new IOException("Server did not start in mode " + mode);
+    }
+
+    /**
+     * Reads a numeric field (in kB for memory fields) from /proc/[pid]/status.
+     */
+    private static long readStatus(long pid, String field) throws IOException {
+        Path status = Paths.get("/proc", Long.toString(pid), "status");
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith(field + ":")) {
+                return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+            }
+        }
+        return -1;
+    }
+
+    private static class Result {
+        long loginMillis;
+        long idleRss;
+        long idleThreads;
+        double messagesPerSecond;
+        long activeRss;
+        long activeThreads;
+    }
+
+    /**
+     * All simulated clients, driven by one selector. Only the number of +OK replies is tracked.
+     */
+    private static class Clients {
+        private static final byte[] OK = "+OK".getBytes(StandardCharsets.US_ASCII);
+
+        private Selector selector = Selector.open();
+        private List<SocketChannel> channels = new ArrayList<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private long okCount = 0;
+
+        Clients() throws IOException {
+        }
+
+        void connect(String username) throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, PORT));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new LineState());
+            channels.add(channel);
+            send(channels.size() - 1, "HELO " + username);
+            poll(0);
+        }
+
+        void send(int client, String line) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            SocketChannel channel = channels.get(client);
+            while (data.hasRemaining()) {
+                if (channel.write(data) == 0) {
+                    // The socket buffer is full, read replies so the server can make progress.
+                    poll(1);
+                }
+            }
+        }
+
+        void awaitOk(long expected) throws IOException {
+            long deadline = System.currentTimeMillis() + 300_000;
+            while (okCount < expected) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Timed out, got " + okCount + " of " + expected + " replies");
+                }
+                poll(100);
+            }
+        }
+
+        private void poll(long timeout) throws IOException {
+            if (timeout == 0) {
+                selector.selectNow();
+            } else {
+                selector.select(timeout);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                readBuffer.clear();
+                if (((SocketChannel) key.channel()).read(readBuffer) < 0) {
+                    key.cancel();
+                    continue;
+                }
+                readBuffer.flip();
+                LineState state = (LineState) key.attachment();
+                while (readBuffer.hasRemaining()) {
+                    byte b = readBuffer.get();
+                    if (b == '\n') {
+                        state.matched = 0;
+                    } else if (state.matched >= 0 && state.matched < OK.length) {
+                        state.matched = OK[state.matched] == b ? state.matched + 1 : -1;
+                        if (state.matched == OK.length) {
+                            okCount++;
+                        }
+                    }
+                }
+            }
+        }
+
+        void close() {
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Tracks how much of "+OK" has been matched at the start of the current line.
+     */
+    private static class LineState {
+        int matched = 0;
+    }
+}
@@ -0,0 +1,65 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.Frame;
+import nl.saxion.internettech.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writeToClient: encoding a line into a frame and handing it to the connection, and
+ * sending a frame that was encoded before, like broadcasts do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+
+    private static final String LINE = "BCST [user1234] hello everybody, this is a message of a typical length";
+
+    private Server.ClientThread client;
+    private Frame frame;
+
+    @Setup
+    public void setUp() {
+        client = new ServerFixture().login("user1");
+        frame = Frame.of(LINE);
+    }
+
+    @Benchmark
+    public Frame encodeFrame() {
+        return Frame.of(LINE);
+    }
+
+    /**
+     * The encoding the server used before frames existed.
+     */
+    @Benchmark
+    public byte[] encodeLegacy() {
+        return (LINE + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void writeLine() {
+        client.writeToClient(LINE);
+    }
+
+    @Benchmark
+    public void writeFrame() {
+        client.writeToClient(frame);
+    }
+}
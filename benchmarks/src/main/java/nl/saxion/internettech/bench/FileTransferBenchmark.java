@@ -0,0 +1,223 @@
+package nl.saxion.internettech.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Measures the throughput of TRNSFR file transfers between two clients. For every mode a fresh
+ * server is started in a child JVM. The sender streams generated contents, the recipient reads
+ * and checksums them, so the benchmark also verifies that every byte arrives exactly once.
+ *
+ * For every file size the benchmark reports the transfer rate and the peak resident memory of the
+ * server, which shows that the server doesn't keep whole files in memory.
+ *
+ * Usage: FileTransferBenchmark [--modes=platform,virtual,nio,spool] [--sizes=1,16,256,2048]
+ *
+ * The sizes are in MB. The peak resident memory is read from /proc, so this only works on Linux.
+ */
+public class FileTransferBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 1337;
+    private static final int HEADER_SIZE = 4096;
+
+    public static void main(String[] args) throws Exception {
+        String[] modes = {"platform", "nio", "spool"};
+        long[] sizes = {1, 16, 256, 2048};
+        for (String arg : args) {
+            if (arg.startsWith("--modes=")) {
+                modes = arg.substring("--modes=".length()).split(",");
+            } else if (arg.startsWith("--sizes=")) {
+                String[] values = arg.substring("--sizes=".length()).split(",");
+                sizes = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    sizes[i] = Long.parseLong(values[i]);
+                }
+            }
+        }
+
+        System.out.println(String.format("%-9s %10s %10s %10s %12s", "mode", "size MB", "ms", "MB/s", "peak rss MB"));
+        for (String mode : modes) {
+            Process server = startServer(mode);
+            try {
+                for (long size : sizes) {
+                    long bytes = size * 1024 * 1024;
+                    long elapsed = transfer(bytes);
+                    long peakRss = readStatus(server.pid(), "VmHWM");
+                    System.out.println(String.format("%-9s %10d %10d %10.1f %12d", mode, size,
+                            elapsed / 1_000_000, bytes / 1048576.0 / (elapsed / 1e9), peakRss / 1024));
+                }
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    /**
+     * Sends one file from a new sender to a new recipient.
+     *
+     * @return Returns the time in nanoseconds until the recipient received the whole file.
+     */
+    private static long transfer(long bytes) throws Exception {
+        try (Socket sender = new Socket(HOST, PORT); Socket recipient = new Socket(HOST, PORT)) {
+            login(sender, "sender");
+            login(recipient, "recipient");
+
+            long[] received = new long[2];
+            Thread reader = new Thread(() -> {
+                try {
+                    received[0] = receive(recipient.getInputStream(), bytes);
+                    received[1] = System.nanoTime();
+                } catch (IOException e) {
+                    received[0] = -1;
+                }
+            });
+            reader.start();
+
+            long start = System.nanoTime();
+            long sent = send(sender.getOutputStream(), bytes);
+            reader.join();
+            if (received[0] != sent) {
+                throw new IOException("Checksum mismatch for " + bytes + " bytes");
+            }
+            return received[1] - start;
+        }
+    }
+
+    private static void login(Socket socket, String username) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.getOutputStream().write(("HELO " + username + "\n").getBytes(StandardCharsets.UTF_8));
+        readLine(socket.getInputStream());    // Welcome message.
+        readLine(socket.getInputStream());    // +OK
+    }
+
+    /**
+     * Uploads generated contents.
+     *
+     * @return Returns the checksum of the contents.
+     */
+    private static long send(OutputStream out, long bytes) throws IOException {
+        out.write("TRNSFR recipient\n".getBytes(StandardCharsets.UTF_8));
+        out.write(Arrays.copyOf("bench.bin".getBytes(StandardCharsets.UTF_8), HEADER_SIZE));
+        out.write(Arrays.copyOf(Long.toString(bytes).getBytes(StandardCharsets.UTF_8), HEADER_SIZE));
+
+        byte[] chunk = new byte[64 * 1024];
+        new Random(42).nextBytes(chunk);
+        CRC32 crc = new CRC32();
+        long remaining = bytes;
+        while (remaining > 0) {
+            int n = (int) Math.min(chunk.length, remaining);
+            crc.update(chunk, 0, n);
+            out.write(chunk, 0, n);
+            remaining -= n;
+        }
+        out.flush();
+        return crc.getValue();
+    }
+
+    /**
+     * Downloads a file and checks its size.
+     *
+     * @return Returns the checksum of the contents.
+     */
+    private static long receive(InputStream socketIn, long bytes) throws IOException {
+        DataInputStream in = new DataInputStream(socketIn);
+        String line = readLine(in);
+        if (!line.startsWith("TRNSFR from")) {
+            throw new IOException("Unexpected line: " + line);
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        in.readFully(header);
+        in.readFully(header);
+        long size = Long.parseLong(new String(header, StandardCharsets.UTF_8).trim());
+        if (size != bytes) {
+            throw new IOException("Unexpected size: " + size);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        CRC32 crc = new CRC32();
+        long remaining = size;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Connection closed with " + remaining + " bytes left");
+            }
+            crc.update(buffer, 0, read);
+            remaining -= read;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads a line byte by byte, so no bytes after the line are consumed.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    private static Process startServer(String mode) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("nl.saxion.internettech.Main");
+        command.add("--no-colors");
+        command.add("--log-level=info");
+        if (mode.equals("virtual")) {
+            command.add("--virtual-threads");
+        } else if (mode.equals("nio")) {
+            command.add("--nio");
+        } else if (mode.equals("spool")) {
+            command.add("--spool-transfers");
+        }
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        // Wait until the server accepts connections.
+        for (int i = 0; i < 100; i++) {
+            try (Socket probe = new Socket(HOST, PORT)) {
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        process.destroy();
+        throw new IOException("Server did not start in mode " + mode);
+    }
+
+    /**
+     * Reads a numeric field (in kB for memory fields) from /proc/[pid]/status.
+     */
+    private static long readStatus(long pid, String field) throws IOException {
+        Path status = Paths.get("/proc", Long.toString(pid), "status");
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith(field + ":")) {
+                return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,70 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.BinaryProtocol;
+import nl.saxion.internettech.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a private message between two line clients with the same message between two binary
+ * clients: decoding the command, finding the recipient and encoding the WHISPER. The line
+ * clients send the ciphertext in Base64, the binary clients send it raw: a MSG with 256 bytes of
+ * ciphertext is 360 bytes as a line and 274 bytes as a frame, and the same goes for the WHISPER.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    // The ciphertext of a short message encrypted with a 2048 bit RSA key.
+    private static final int CIPHERTEXT_SIZE = 256;
+
+    private Server.ClientThread lineSender;
+    private Server.ClientThread binarySender;
+    private byte[] lineCommand;
+    private byte[] binaryCommand;
+
+    @Setup
+    public void setUp() {
+        byte[] ciphertext = new byte[CIPHERTEXT_SIZE];
+        new Random(42).nextBytes(ciphertext);
+
+        ServerFixture fixture = new ServerFixture();
+        lineSender = fixture.login("linesender");
+        fixture.login("linereader");
+        binarySender = fixture.loginBinary("binsender");
+        fixture.loginBinary("binreader");
+
+        lineCommand = ServerFixture.encode("MSG linereader " + Base64.getEncoder().encodeToString(ciphertext));
+        ByteBuffer frame = BinaryProtocol.encode("MSG binreader", ciphertext);
+        binaryCommand = new byte[frame.remaining()];
+        frame.get(binaryCommand);
+    }
+
+    @Benchmark
+    public void lineWhisper() {
+        lineSender.onBytes(ByteBuffer.wrap(lineCommand));
+    }
+
+    @Benchmark
+    public void binaryWhisper() {
+        binarySender.onBytes(ByteBuffer.wrap(binaryCommand));
+    }
+}
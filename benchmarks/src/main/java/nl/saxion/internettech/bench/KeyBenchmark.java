@@ -0,0 +1,85 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures SENDKEY and GETKEY through the command handlers, next to the key parsing and encoding
+ * the server did for every command before keys were cached.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+
+    private Server.ClientThread owner;
+    private Server.ClientThread reader;
+    private String key64;
+    private PublicKey publicKey;
+    private byte[] sendKey;
+    private byte[] getKey;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        publicKey = generator.generateKeyPair().getPublic();
+        key64 = Base64.getEncoder().encodeToString(publicKey.getEncoded());
+
+        ServerFixture fixture = new ServerFixture();
+        owner = fixture.login("owner");
+        reader = fixture.login("reader");
+        sendKey = ServerFixture.encode("SENDKEY " + key64);
+        getKey = ServerFixture.encode("GETKEY owner");
+        owner.onBytes(ByteBuffer.wrap(sendKey));
+    }
+
+    @Benchmark
+    public void sendKey() {
+        owner.onBytes(ByteBuffer.wrap(sendKey));
+    }
+
+    @Benchmark
+    public void getKey() {
+        reader.onBytes(ByteBuffer.wrap(getKey));
+    }
+
+    /**
+     * SENDKEY before the key store: a new key factory for every key.
+     */
+    @Benchmark
+    public PublicKey sendKeyLegacy() throws GeneralSecurityException {
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        return keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(key64)));
+    }
+
+    /**
+     * GETKEY before the key store: the key was encoded for every request.
+     */
+    @Benchmark
+    public String getKeyLegacy() {
+        return "GETKEY owner " + Base64.getEncoder().encodeToString(publicKey.getEncoded());
+    }
+}
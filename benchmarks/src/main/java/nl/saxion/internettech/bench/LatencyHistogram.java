@@ -0,0 +1,81 @@
+package nl.saxion.internettech.bench;
+
+/**
+ * A histogram of latencies with a fixed relative precision, like an HDR histogram. Values below
+ * 2^PRECISION_BITS get a bucket of their own; above that every power of two is split into
+ * 2^PRECISION_BITS buckets, so a percentile is off by less than 1%. Recording is a shift and an
+ * increment, so it can be done for every delivered message. Not thread safe: every thread
+ * records into its own histogram and they are merged afterwards.
+ */
+public class LatencyHistogram {
+
+    private static final int PRECISION_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+
+    private long[] counts = new long[(64 - PRECISION_BITS) * SUB_BUCKETS];
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * @param value The latency in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[indexOf(value)]++;
+        count++;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the values of another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return Returns the highest value of the bucket that holds the percentile, or 0 when
+     *         nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return 0;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
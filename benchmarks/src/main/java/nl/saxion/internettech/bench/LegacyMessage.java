@@ -1,6 +1,10 @@
-package nl.saxion.internettech;
+package nl.saxion.internettech.bench;
 
-public class Message {
+/**
+ * Copy of the original regex based Message parser, kept as the baseline for
+ * {@link MessageParsingBenchmark}.
+ */
+public class LegacyMessage {
     public enum MessageType {
         HELO,
         SENDKEY,
@@ -21,7 +25,7 @@ public class Message {
 
     private String line;
 
-    public Message(String line) {
+    public LegacyMessage(String line) {
         this.line = line;
     }
 
@@ -0,0 +1,690 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.Log;
+import nl.saxion.internettech.Message.MessageType;
+import nl.saxion.internettech.Server;
+import nl.saxion.internettech.ServerConfiguration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Puts load on a server with many simulated clients and measures how long it takes until the
+ * messages are delivered to their recipients. The server is started in this JVM, or the load
+ * generator connects to a server that is already running.
+ *
+ * All clients log in, the first clients create the groups and the others join them. Then the
+ * clients send a mix of BCST, MSG, BCGRP, SENDKEY and TRNSFR at a fixed rate. Every message
+ * carries the time it was scheduled to be sent, and the recipients record the time from then until
+ * they received it. Measuring from the scheduled time instead of the time it was actually sent
+ * keeps a stalled server from hiding its own delays. SENDKEY is measured until the GETNEWKEY
+ * lines arrive and TRNSFR until the last byte of the file arrives.
+ *
+ * For every message type the generator reports the number of messages sent, the deliveries, the
+ * share of the expected deliveries that didn't arrive and the p50/p99/p999/max latency. Lines that
+ * can't be understood are counted as corrupt. When the server drops a client it reconnects,
+ * logs in again and rejoins its group. Together with the --bad-server options this shows how the
+ * clients and the server behave with lost and corrupted messages.
+ *
+ * Usage: LoadGenerator [--clients=1000] [--groups=10] [--rate=1000] [--duration=30]
+ *                      [--mix=msg:50,bcst:10,bcgrp:30,sendkey:5,trnsfr:5] [--file-size=65536]
+ *                      [--threads=n] [--connect=host:port]
+ *                      [--nio] [--virtual-threads] [--spool-transfers] [--bad-server[-drop-msg|-corrupt|-drop-client]]
+ *
+ * The rate is in messages per second for all clients together, the duration in seconds. The
+ * server options only apply to a server that is started in this JVM.
+ */
+public class LoadGenerator {
+
+    private static final int PORT = 1337;
+    private static final int HEADER_SIZE = 4096;
+    private static final String MARKER = "lg:";
+    // Clients with this much unsent data skip their turn instead of queueing even more.
+    private static final long MAX_BACKLOG = 1024 * 1024;
+    private static final long RECONNECT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long SETUP_TIMEOUT_MILLIS = 60_000;
+    private static final MessageType[] MEASURED = {
+            MessageType.BCST, MessageType.MSG, MessageType.BCGRP, MessageType.SENDKEY, MessageType.TRNSFR};
+
+    private InetSocketAddress address;
+    private int groupCount = 10;
+    private double rate = 1000;
+    private int fileSize = 64 * 1024;
+    private Map<MessageType, Integer> mix = new EnumMap<>(MessageType.class);
+
+    private Client[] clients;
+    private Reactor[] reactors;
+    private String key64;
+    private ByteBuffer fileContents;
+    private AtomicInteger online = new AtomicInteger();
+    private AtomicIntegerArray groupOnline;
+    // The scheduled time of the last SENDKEY of every client.
+    private AtomicLongArray keySentAt;
+    private LongAdder acks = new LongAdder();
+    private LongAdder errors = new LongAdder();
+    private LongAdder corrupt = new LongAdder();
+    private LongAdder disconnects = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        String host = null;
+        int clientCount = 1000;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int duration = 30;
+        generator.mix.put(MessageType.MSG, 50);
+        generator.mix.put(MessageType.BCST, 10);
+        generator.mix.put(MessageType.BCGRP, 30);
+        generator.mix.put(MessageType.SENDKEY, 5);
+        generator.mix.put(MessageType.TRNSFR, 5);
+        ServerConfiguration serverConf = new ServerConfiguration();
+        for (String arg : args) {
+            if (arg.startsWith("--clients=")) {
+                clientCount = Integer.parseInt(arg.substring("--clients=".length()));
+            } else if (arg.startsWith("--groups=")) {
+                generator.groupCount = Integer.parseInt(arg.substring("--groups=".length()));
+            } else if (arg.startsWith("--rate=")) {
+                generator.rate = Double.parseDouble(arg.substring("--rate=".length()));
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(arg.substring("--duration=".length()));
+            } else if (arg.startsWith("--file-size=")) {
+                generator.fileSize = Integer.parseInt(arg.substring("--file-size=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--connect=")) {
+                host = arg.substring("--connect=".length());
+            } else if (arg.startsWith("--mix=")) {
+                generator.mix.clear();
+                for (String part : arg.substring("--mix=".length()).split(",")) {
+                    String[] weight = part.split(":");
+                    generator.mix.put(MessageType.valueOf(weight[0].toUpperCase()), Integer.parseInt(weight[1]));
+                }
+            } else if (arg.equals("--nio")) {
+                serverConf.setUseNio(true);
+            } else if (arg.equals("--virtual-threads")) {
+                serverConf.setUseVirtualThreads(Server.isVirtualThreadsSupported());
+            } else if (arg.equals("--spool-transfers")) {
+                serverConf.setSpoolTransfers(true);
+            } else if (arg.equals("--bad-server-drop-msg")) {
+                serverConf.setSimulateDroppedPackets(true);
+            } else if (arg.equals("--bad-server-corrupt")) {
+                serverConf.setSimulateCorruptedPackets(true);
+            } else if (arg.equals("--bad-server-drop-client")) {
+                serverConf.setSimulateConnectionLost(true);
+            } else if (arg.equals("--bad-server")) {
+                serverConf.setSimulateDroppedPackets(true);
+                serverConf.setSimulateCorruptedPackets(true);
+                serverConf.setSimulateConnectionLost(true);
+            }
+        }
+
+        if (host == null) {
+            startServer(serverConf);
+            generator.address = new InetSocketAddress("127.0.0.1", PORT);
+        } else {
+            String[] hostPort = host.split(":");
+            generator.address = new InetSocketAddress(hostPort[0], hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : PORT);
+        }
+
+        generator.run(clientCount, threads, duration);
+        // The server threads of an in-process server don't stop by themselves.
+        System.exit(0);
+    }
+
+    private static void startServer(ServerConfiguration conf) throws Exception {
+        // Only problems are logged, a line per message would slow the server down.
+        conf.setLogLevel(Log.Level.WARN);
+        Log.configure(conf);
+        Thread thread = new Thread(() -> new Server(conf).run(), "server");
+        thread.setDaemon(true);
+        thread.start();
+        for (int i = 0; i < 100; i++) {
+            try (SocketChannel probe = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT))) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start");
+    }
+
+    private void run(int clientCount, int threads, int duration) throws Exception {
+        KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance("RSA");
+        keyGenerator.initialize(2048);
+        key64 = Base64.getEncoder().encodeToString(keyGenerator.generateKeyPair().getPublic().getEncoded());
+        byte[] contents = new byte[fileSize];
+        Arrays.fill(contents, (byte) 'x');
+        fileContents = ByteBuffer.wrap(contents).asReadOnlyBuffer();
+
+        groupOnline = new AtomicIntegerArray(Math.max(groupCount, 1));
+        keySentAt = new AtomicLongArray(clientCount);
+        reactors = new Reactor[threads];
+        for (int i = 0; i < threads; i++) {
+            reactors[i] = new Reactor(i);
+            reactors[i].start();
+        }
+        clients = new Client[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new Client(i, reactors[i % threads]);
+            clients[i].reactor.ownClients.add(clients[i]);
+        }
+
+        // Log in, create the groups, then join them.
+        long start = System.nanoTime();
+        runSetupPhase("HELO", clientCount, client -> client.reactor.connect(client));
+        System.out.println(String.format("Logged in %d clients in %d ms", clientCount, (System.nanoTime() - start) / 1_000_000));
+        if (groupCount > 0) {
+            runSetupPhase("MKGRP", Math.min(groupCount, clientCount), client -> {
+                if (client.owner) {
+                    client.reactor.joinGroup(client, "MKGRP ");
+                }
+            });
+            runSetupPhase("JNGRP", Math.max(0, clientCount - groupCount), client -> {
+                if (client.group >= 0 && !client.owner) {
+                    client.reactor.joinGroup(client, "JNGRP ");
+                }
+            });
+        }
+
+        System.out.println(String.format("Sending %.0f messages/s for %d s", rate, duration));
+        long trafficStart = System.nanoTime();
+        long trafficEnd = trafficStart + TimeUnit.SECONDS.toNanos(duration);
+        for (Reactor reactor : reactors) {
+            reactor.execute(() -> reactor.startTraffic(trafficStart, trafficEnd, rate / reactors.length));
+        }
+        // Give the messages that are on their way some time to arrive.
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration) + 2000);
+        for (Reactor reactor : reactors) {
+            reactor.running = false;
+            reactor.selector.wakeup();
+            reactor.join();
+        }
+        report(TimeUnit.SECONDS.toNanos(duration));
+    }
+
+    /**
+     * Runs a setup step for every client on its own reactor and waits until the server
+     * acknowledged the expected number of commands. Acknowledgements that get lost with
+     * --bad-server-drop-msg only make the phase wait for the timeout.
+     */
+    private void runSetupPhase(String name, int expected, Consumer<Client> step) throws InterruptedException {
+        acks.reset();
+        for (Client client : clients) {
+            client.reactor.execute(() -> step.accept(client));
+        }
+        long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MILLIS;
+        while (acks.sum() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        if (acks.sum() < expected) {
+            System.out.println(String.format("%s: only %d of %d acknowledged, continuing", name, acks.sum(), expected));
+        }
+    }
+
+    private void report(long durationNanos) {
+        Stats total = new Stats();
+        for (Reactor reactor : reactors) {
+            total.add(reactor.stats);
+        }
+        double seconds = durationNanos / 1e9;
+        System.out.println(String.format("%-8s %10s %10s %12s %12s %7s %10s %10s %10s %10s",
+                "type", "sent", "sent/s", "delivered", "delivered/s", "loss %", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for (MessageType type : MEASURED) {
+            int i = type.ordinal();
+            if (total.sent[i] == 0) {
+                continue;
+            }
+            LatencyHistogram latency = total.latencies.get(type);
+            double loss = total.expected[i] == 0 ? 0 : 100.0 * (total.expected[i] - latency.getCount()) / total.expected[i];
+            System.out.println(String.format("%-8s %10d %10.0f %12d %12.0f %7.2f %10.3f %10.3f %10.3f %10.3f",
+                    type, total.sent[i], total.sent[i] / seconds, latency.getCount(), latency.getCount() / seconds,
+                    Math.max(0, loss), millis(latency.getPercentile(50)), millis(latency.getPercentile(99)),
+                    millis(latency.getPercentile(99.9)), millis(latency.getMax())));
+        }
+        System.out.println(String.format("errors: %d  corrupt lines: %d  disconnects: %d  skipped (backlog): %d",
+                errors.sum(), corrupt.sum(), disconnects.sum(), total.skipped));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * The measurements of a single reactor.
+     */
+    private static class Stats {
+        long[] sent = new long[MessageType.values().length];
+        long[] expected = new long[MessageType.values().length];
+        Map<MessageType, LatencyHistogram> latencies = new EnumMap<>(MessageType.class);
+        long skipped = 0;
+
+        Stats() {
+            for (MessageType type : MEASURED) {
+                latencies.put(type, new LatencyHistogram());
+            }
+        }
+
+        void add(Stats other) {
+            for (int i = 0; i < sent.length; i++) {
+                sent[i] += other.sent[i];
+                expected[i] += other.expected[i];
+            }
+            for (MessageType type : MEASURED) {
+                latencies.get(type).add(other.latencies.get(type));
+            }
+            skipped += other.skipped;
+        }
+    }
+
+    /**
+     * A simulated client. Only its reactor touches it, except for the online flag.
+     */
+    private class Client {
+        final int index;
+        final String username;
+        final Reactor reactor;
+        final int group;
+        final boolean owner;
+        SocketChannel channel;
+        SelectionKey key;
+        volatile boolean online = false;
+        boolean inGroup = false;
+        long reconnectAt = 0;
+        ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        long queuedBytes = 0;
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        // The scheduled time of the last SENDKEY of this client.
+        long ownKeySentAt = Long.MIN_VALUE;
+        // The file that is being received: header bytes read, or -1 while reading lines.
+        int fileHeaderRead = -1;
+        byte[] fileHeader = new byte[2 * HEADER_SIZE];
+        long fileRemaining = 0;
+        long fileSentAt = 0;
+
+        Client(int index, Reactor reactor) {
+            this.index = index;
+            this.username = "lg" + index;
+            this.reactor = reactor;
+            this.group = groupCount > 0 ? index % groupCount : -1;
+            this.owner = groupCount > 0 && index < groupCount;
+        }
+    }
+
+    /**
+     * Drives a share of the clients from a single selector: connecting, sending the traffic that
+     * is scheduled for them and reading what they receive.
+     */
+    private class Reactor extends Thread {
+        final Selector selector = Selector.open();
+        final List<Client> ownClients = new ArrayList<>();
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        final SplittableRandom random;
+        final Stats stats = new Stats();
+        volatile boolean running = true;
+        List<Client> reconnecting = new ArrayList<>();
+        MessageType[] types;
+        int[] cumulativeWeights;
+        long nextSend = Long.MAX_VALUE;
+        long trafficEnd = 0;
+        long intervalNanos = 0;
+
+        Reactor(int number) throws IOException {
+            super("load-" + number);
+            this.random = new SplittableRandom(number);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while (nextSend <= now && nextSend < trafficEnd) {
+                        sendScheduled(nextSend);
+                        nextSend += intervalNanos;
+                    }
+                    reconnectDue(now);
+                    long waitMillis = nextSend < trafficEnd ? Math.max(1, (nextSend - now) / 1_000_000) : 10;
+                    selector.select(Math.min(waitMillis, 10));
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Client client = (Client) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            read(client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(client);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(getName() + " stopped: " + e);
+            } finally {
+                for (Client client : ownClients) {
+                    closeQuietly(client);
+                }
+            }
+        }
+
+        void connect(Client client) {
+            try {
+                client.channel = SocketChannel.open(address);
+                client.channel.configureBlocking(false);
+                client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+                client.output.clear();
+                client.queuedBytes = 0;
+                client.lineLength = 0;
+                client.fileHeaderRead = -1;
+                client.fileRemaining = 0;
+                login(client);
+            } catch (IOException e) {
+                disconnected(client);
+            }
+        }
+
+        void login(Client client) {
+            send(client, "HELO " + client.username);
+            if (!client.online) {
+                client.online = true;
+                online.incrementAndGet();
+            }
+        }
+
+        void joinGroup(Client client, String command) {
+            send(client, command + "lggroup" + client.group);
+            if (!client.inGroup) {
+                client.inGroup = true;
+                groupOnline.incrementAndGet(client.group);
+            }
+        }
+
+        void startTraffic(long start, long end, double reactorRate) {
+            List<MessageType> enabled = new ArrayList<>();
+            List<Integer> weights = new ArrayList<>();
+            int sum = 0;
+            for (Map.Entry<MessageType, Integer> weight : mix.entrySet()) {
+                if (weight.getValue() > 0 && (weight.getKey() != MessageType.BCGRP || groupCount > 0)) {
+                    sum += weight.getValue();
+                    enabled.add(weight.getKey());
+                    weights.add(sum);
+                }
+            }
+            types = enabled.toArray(new MessageType[0]);
+            cumulativeWeights = weights.stream().mapToInt(Integer::intValue).toArray();
+            intervalNanos = Math.max(1, (long) (1e9 / reactorRate));
+            trafficEnd = end;
+            nextSend = types.length > 0 ? start : Long.MAX_VALUE;
+        }
+
+        /**
+         * Sends a random message from a random client of this reactor.
+         *
+         * @param scheduled The time the message should be sent, the start of its latency.
+         */
+        void sendScheduled(long scheduled) {
+            Client client = ownClients.get(random.nextInt(ownClients.size()));
+            if (!client.online || client.queuedBytes > MAX_BACKLOG) {
+                stats.skipped++;
+                return;
+            }
+            int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            MessageType type = types[0];
+            for (int i = 0; pick >= cumulativeWeights[i]; i++) {
+                type = types[i + 1];
+            }
+            String stamp = MARKER + type + ":" + scheduled;
+            // Any client but the sender.
+            int others = Math.max(1, clients.length - 1);
+            Client target = clients[(client.index + 1 + random.nextInt(others)) % clients.length];
+            switch (type) {
+                case BCST:
+                    send(client, "BCST hello everybody " + stamp);
+                    stats.expected[type.ordinal()] += online.get() - 1;
+                    break;
+                case MSG:
+                    send(client, "MSG " + target.username + " " + stamp);
+                    stats.expected[type.ordinal()] += target.online ? 1 : 0;
+                    break;
+                case BCGRP:
+                    send(client, "BCGRP lggroup" + client.group + " hello group " + stamp);
+                    stats.expected[type.ordinal()] += groupOnline.get(client.group) - 1;
+                    break;
+                case SENDKEY:
+                    keySentAt.set(client.index, scheduled);
+                    client.ownKeySentAt = scheduled;
+                    send(client, "SENDKEY " + key64);
+                    stats.expected[type.ordinal()] += online.get() - 1;
+                    break;
+                case TRNSFR:
+                    sendFile(client, target, stamp);
+                    stats.expected[type.ordinal()] += target.online ? 1 : 0;
+                    break;
+                default:
+                    return;
+            }
+            stats.sent[type.ordinal()]++;
+        }
+
+        void sendFile(Client client, Client target, String stamp) {
+            send(client, "TRNSFR " + target.username);
+            queue(client, headerBlock(stamp + ".bin"));
+            queue(client, headerBlock(Integer.toString(fileSize)));
+            queue(client, fileContents.duplicate());
+            flush(client);
+        }
+
+        ByteBuffer headerBlock(String value) {
+            return ByteBuffer.wrap(Arrays.copyOf(value.getBytes(StandardCharsets.UTF_8), HEADER_SIZE));
+        }
+
+        void send(Client client, String line) {
+            queue(client, ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            flush(client);
+        }
+
+        void queue(Client client, ByteBuffer data) {
+            client.output.add(data);
+            client.queuedBytes += data.remaining();
+        }
+
+        void flush(Client client) {
+            if (client.channel == null || !client.key.isValid()) {
+                return;
+            }
+            try {
+                while (!client.output.isEmpty()) {
+                    ByteBuffer head = client.output.peek();
+                    int written = client.channel.write(head);
+                    client.queuedBytes -= written;
+                    if (head.hasRemaining()) {
+                        client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    client.output.poll();
+                }
+                client.key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                disconnected(client);
+            }
+        }
+
+        void read(Client client) {
+            readBuffer.clear();
+            int read;
+            try {
+                read = client.channel.read(readBuffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                disconnected(client);
+                return;
+            }
+            readBuffer.flip();
+            long now = System.nanoTime();
+            while (readBuffer.hasRemaining()) {
+                if (client.fileHeaderRead >= 0) {
+                    readFileHeader(client);
+                } else if (client.fileRemaining > 0) {
+                    int n = (int) Math.min(client.fileRemaining, readBuffer.remaining());
+                    readBuffer.position(readBuffer.position() + n);
+                    client.fileRemaining -= n;
+                    if (client.fileRemaining == 0) {
+                        stats.latencies.get(MessageType.TRNSFR).record(now - client.fileSentAt);
+                    }
+                } else {
+                    byte b = readBuffer.get();
+                    if (b == '\n') {
+                        handleLine(client, new String(client.line, 0, client.lineLength, StandardCharsets.UTF_8), now);
+                        client.lineLength = 0;
+                    } else {
+                        if (client.lineLength == client.line.length) {
+                            client.line = Arrays.copyOf(client.line, client.line.length * 2);
+                        }
+                        client.line[client.lineLength++] = b;
+                    }
+                }
+            }
+        }
+
+        void readFileHeader(Client client) {
+            int n = Math.min(client.fileHeader.length - client.fileHeaderRead, readBuffer.remaining());
+            readBuffer.get(client.fileHeader, client.fileHeaderRead, n);
+            client.fileHeaderRead += n;
+            if (client.fileHeaderRead < client.fileHeader.length) {
+                return;
+            }
+            client.fileHeaderRead = -1;
+            String name = new String(client.fileHeader, 0, HEADER_SIZE, StandardCharsets.UTF_8).trim();
+            String size = new String(client.fileHeader, HEADER_SIZE, HEADER_SIZE, StandardCharsets.UTF_8).trim();
+            try {
+                client.fileRemaining = Long.parseLong(size);
+                client.fileSentAt = Long.parseLong(name.substring(name.lastIndexOf(':') + 1, name.length() - ".bin".length()));
+            } catch (RuntimeException e) {
+                // The stream is out of step, what follows is read as lines.
+                client.fileRemaining = 0;
+                corrupt.increment();
+            }
+        }
+
+        void handleLine(Client client, String line, long now) {
+            if (line.startsWith("+OK")) {
+                acks.increment();
+            } else if (line.startsWith("-ERR")) {
+                errors.increment();
+                if (line.startsWith("-ERR user already logged in")) {
+                    // The server hasn't noticed the old connection is gone yet, try again later.
+                    reconnectLater(client);
+                }
+            } else if (line.startsWith("TRNSFR from ")) {
+                client.fileHeaderRead = 0;
+            } else if (line.startsWith("GETNEWKEY lg")) {
+                try {
+                    int owner = Integer.parseInt(line.substring("GETNEWKEY lg".length(), line.indexOf(' ', "GETNEWKEY ".length())));
+                    long sent = keySentAt.get(owner);
+                    // Older keys are the ones the server sends after the client's own SENDKEY.
+                    if (sent > client.ownKeySentAt) {
+                        stats.latencies.get(MessageType.SENDKEY).record(now - sent);
+                    }
+                } catch (RuntimeException e) {
+                    corrupt.increment();
+                }
+            } else if (line.startsWith("BCST ") || line.startsWith("WHISPER ")) {
+                int marker = line.lastIndexOf(MARKER);
+                if (marker < 0) {
+                    // Join and leave notifications.
+                    return;
+                }
+                try {
+                    String[] stamp = line.substring(marker + MARKER.length()).split(":");
+                    MessageType type = MessageType.valueOf(stamp[0]);
+                    stats.latencies.get(type).record(now - Long.parseLong(stamp[1]));
+                } catch (RuntimeException e) {
+                    corrupt.increment();
+                }
+            } else if (!line.startsWith("HELO ") && !line.startsWith("FTOFFER ")) {
+                corrupt.increment();
+            }
+        }
+
+        void disconnected(Client client) {
+            closeQuietly(client);
+            if (!running) {
+                return;
+            }
+            disconnects.increment();
+            reconnectLater(client);
+        }
+
+        void reconnectLater(Client client) {
+            closeQuietly(client);
+            if (client.online) {
+                client.online = false;
+                online.decrementAndGet();
+            }
+            if (client.inGroup) {
+                client.inGroup = false;
+                groupOnline.decrementAndGet(client.group);
+            }
+            client.reconnectAt = System.nanoTime() + RECONNECT_DELAY_NANOS;
+            reconnecting.add(client);
+        }
+
+        void reconnectDue(long now) {
+            for (Iterator<Client> it = reconnecting.iterator(); it.hasNext(); ) {
+                Client client = it.next();
+                if (client.reconnectAt <= now) {
+                    it.remove();
+                    connect(client);
+                    if (client.online && client.group >= 0) {
+                        joinGroup(client, "JNGRP ");
+                    }
+                }
+            }
+        }
+
+        void closeQuietly(Client client) {
+            if (client.channel == null) {
+                return;
+            }
+            try {
+                client.channel.close();
+            } catch (IOException ignored) {
+            }
+            client.channel = null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.GroupDirectory;
+import nl.saxion.internettech.Server;
+import nl.saxion.internettech.UserDirectory;
+import nl.saxion.internettech.UserGroup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the username and group name lookups that most commands start with, on directories of
+ * different sizes. Half of the looked up names exist.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    private static final int NAMES = 1024;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private UserDirectory users = new UserDirectory();
+    private GroupDirectory groups = new GroupDirectory();
+    private String[] usernames = new String[NAMES];
+    private String[] groupnames = new String[NAMES];
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        ServerFixture fixture = new ServerFixture();
+        Server.ClientThread owner = fixture.login("owner");
+        for (int i = 0; i < size; i++) {
+            users.claim("user" + i, owner);
+            groups.create("group" + i, owner);
+        }
+        // Look up names built at runtime, like the names parsed from commands.
+        Random random = new Random(42);
+        for (int i = 0; i < NAMES; i++) {
+            int n = random.nextInt(size * 2);
+            usernames[i] = new StringBuilder("user").append(n).toString();
+            groupnames[i] = new StringBuilder("group").append(n).toString();
+        }
+    }
+
+    @Benchmark
+    public Server.ClientThread username() {
+        return users.lookup(usernames[next++ & (NAMES - 1)]);
+    }
+
+    /**
+     * The lookup behind groupExists.
+     */
+    @Benchmark
+    public UserGroup groupExists() {
+        return groups.get(groupnames[next++ & (NAMES - 1)]);
+    }
+}
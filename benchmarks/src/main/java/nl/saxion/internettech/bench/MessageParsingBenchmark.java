@@ -0,0 +1,172 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original regex based command parsing with the single pass {@link Message} decoder.
+ * Both paths parse the same realistic mix of commands and access the payload the way the command
+ * handlers in the server do. Run with -prof gc to see the allocated bytes per command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParsingBenchmark {
+
+    private static final int COMMANDS = 10_000;
+
+    private String[] lines;
+    private PrintStream console;
+
+    @Setup
+    public void setUp() {
+        lines = commandMix(COMMANDS);
+        // The legacy parser prints every unknown command, keep that out of the results.
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public int legacy() {
+        return legacy(lines);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public int decoder() {
+        return decoder(lines);
+    }
+
+    /**
+     * Parses the commands the way the handlers did before the decoder existed.
+     */
+    private static int legacy(String[] lines) {
+        int hash = 0;
+        for (String line : lines) {
+            LegacyMessage message = new LegacyMessage(line);
+            switch (message.getMessageType()) {
+                case BCST:
+                case SENDKEY:
+                    hash += message.getPayload().length();
+                    break;
+                case MSG:
+                    String[] splits = message.getPayload().split(" ");
+                    if (splits.length > 1) {
+                        hash += splits[0].length() + splits[1].length();
+                    }
+                    break;
+                case GETKEY:
+                    message.getPayload();
+                    hash += message.getPayload().split(" ")[0].length();
+                    break;
+                case JNGRP:
+                    hash += message.getPayload().length() + message.getPayload().length();
+                    break;
+                case BCGRP:
+                case KICK:
+                    String groupName = message.getPayload().split(" ")[0];
+                    hash += message.getPayload().substring(groupName.length() + 1).length();
+                    break;
+                default:
+                    hash += message.getPayload() == null ? 0 : 1;
+                    break;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Parses the commands the way the handlers do with the single pass decoder.
+     */
+    private static int decoder(String[] lines) {
+        int hash = 0;
+        for (String line : lines) {
+            Message message = new Message(line);
+            switch (message.getMessageType()) {
+                case BCST:
+                case SENDKEY:
+                    hash += message.getPayload().length();
+                    break;
+                case MSG:
+                    if (message.getArgumentCount() > 1) {
+                        hash += message.getArgument(0).length() + message.getArgument(1).length();
+                    }
+                    break;
+                case GETKEY:
+                    hash += message.getArgument(0).length();
+                    break;
+                case JNGRP:
+                    hash += message.getPayload().length() + message.getPayload().length();
+                    break;
+                case BCGRP:
+                case KICK:
+                    message.getArgument(0);
+                    hash += message.getRemainder(1).length();
+                    break;
+                default:
+                    hash += message.getPayload() == null ? 0 : 1;
+                    break;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Builds a mix of commands that resembles the traffic of a busy server: mostly broadcasts and
+     * private messages, some group traffic and key lookups and a few unknown commands.
+     */
+    private static String[] commandMix(int count) {
+        Random random = new Random(42);
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            int user = random.nextInt(10000);
+            int pick = random.nextInt(100);
+            if (pick < 35) {
+                lines[i] = "BCST hello everybody, this is message " + i;
+            } else if (pick < 60) {
+                lines[i] = "MSG user" + user + " aGVsbG8gdGhlcmUsIGhvdyBhcmUgeW91IGRvaW5nPw==";
+            } else if (pick < 75) {
+                lines[i] = "BCGRP group" + (user % 100) + " meeting starts in five minutes";
+            } else if (pick < 82) {
+                lines[i] = "GETKEY user" + user;
+            } else if (pick < 87) {
+                lines[i] = "JNGRP group" + (user % 100);
+            } else if (pick < 90) {
+                lines[i] = "KICK group" + (user % 100) + " user" + user;
+            } else if (pick < 93) {
+                lines[i] = "LSTUS";
+            } else if (pick < 95) {
+                lines[i] = "SENDKEY MIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEAu1SU1LfVLPHCozMxH2Mo4lgOEePzNm0tRgeLezV6ffAt0gunVTLw7onLRnrq0";
+            } else {
+                lines[i] = "PING " + i;
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,82 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.ClientConnection;
+import nl.saxion.internettech.FileRegion;
+import nl.saxion.internettech.OutboundQueue;
+import nl.saxion.internettech.ServerConfiguration;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A connection without a socket. It only counts the bytes it is asked to send, so benchmarks
+ * measure the command handling and the encoding without the network.
+ */
+public class NullConnection implements ClientConnection {
+
+    private OutboundQueue queue = new OutboundQueue(new ServerConfiguration());
+    private long writtenBytes = 0;
+
+    @Override
+    public void write(ByteBuffer data) {
+        writtenBytes += data.remaining();
+    }
+
+    @Override
+    public void writeBulk(ByteBuffer data, Runnable onWritten) {
+        writtenBytes += data.remaining();
+        if (onWritten != null) {
+            onWritten.run();
+        }
+    }
+
+    @Override
+    public void writeFile(FileRegion region) {
+        writtenBytes += region.remaining();
+        region.release();
+    }
+
+    @Override
+    public Stream openStream() {
+        return new Stream() {
+            @Override
+            public void write(ByteBuffer data, Runnable onWritten) {
+                writeBulk(data, onWritten);
+            }
+
+            @Override
+            public void writeFile(FileRegion region) {
+                NullConnection.this.writeFile(region);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void suspendReads(Pause reason) {
+    }
+
+    @Override
+    public void resumeReads(Pause reason) {
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return queue;
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+}
@@ -0,0 +1,89 @@
+package nl.saxion.internettech.bench;
+
+import nl.saxion.internettech.Log;
+import nl.saxion.internettech.Server;
+import nl.saxion.internettech.ServerConfiguration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A server that is not listening, with sessions on {@link NullConnection}s. Commands are fed to
+ * the sessions the way the transports do, so the benchmarks run the real command handlers.
+ */
+public class ServerFixture {
+
+    private Server server;
+
+    public ServerFixture() {
+        ServerConfiguration conf = new ServerConfiguration();
+        // Logging every line would dominate the results.
+        conf.setLogLevel(Log.Level.OFF);
+        conf.setLogToConsole(false);
+        try {
+            Log.configure(conf);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        server = new Server(conf);
+    }
+
+    /**
+     * Connects a new session and logs it in.
+     *
+     * @param username The username to log in with.
+     * @return Returns the session.
+     */
+    public Server.ClientThread login(String username) {
+        Server.ClientThread client = server.new ClientThread(new NullConnection());
+        client.onConnect();
+        send(client, "HELO " + username);
+        return client;
+    }
+
+    /**
+     * Connects a new session that uses the binary framing and logs it in.
+     *
+     * @param username The username to log in with.
+     * @return Returns the session.
+     */
+    public Server.ClientThread loginBinary(String username) {
+        Server.ClientThread client = server.new ClientThread(new NullConnection());
+        client.onConnect();
+        send(client, "HELO " + username + " BINARY");
+        return client;
+    }
+
+    /**
+     * Connects a new session that asked for compression and logs it in.
+     *
+     * @param username The username to log in with.
+     * @return Returns the session.
+     */
+    public Server.ClientThread loginCompressed(String username) {
+        Server.ClientThread client = server.new ClientThread(new NullConnection());
+        client.onConnect();
+        send(client, "HELO " + username + " COMPRESS");
+        return client;
+    }
+
+    /**
+     * Passes a command line to a session as if the client sent it.
+     *
+     * @param client The session.
+     * @param line   The command without the line terminator.
+     */
+    public static void send(Server.ClientThread client, String line) {
+        client.onBytes(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return Returns the encoded command line, for benchmarks that send the same command over
+     *         and over again.
+     */
+    public static byte[] encode(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
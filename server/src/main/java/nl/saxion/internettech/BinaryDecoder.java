@@ -0,0 +1,99 @@
+package nl.saxion.internettech;
+
+import nl.saxion.internettech.Message.MessageType;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the {@link BinaryProtocol binary frames} of a single client. Frames may arrive in
+ * pieces of any size; the decoder keeps the part it has seen until the rest arrives. The header
+ * is read straight from the received bytes and the body is copied once, into its own array, so
+ * a MSG or SENDKEY never turns into a String.
+ *
+ * The bodies of TRNSFR and FTCHUNK can be large. For these the message is returned as soon as
+ * the arguments are complete; the caller then consumes the body from the received bytes.
+ */
+class BinaryDecoder {
+
+    private final ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE);
+    private int code;
+    private byte[] arguments;
+    private int argumentsRead;
+    private long bodyLength;
+    private byte[] body;
+    private int bodyRead;
+
+    /**
+     * Consumes the bytes of at most one frame.
+     *
+     * @param data The received bytes.
+     * @return Returns the message when a frame is complete, or null when more bytes are needed.
+     * @throws ProtocolException When the frame is malformed or too large.
+     */
+    Message decode(ByteBuffer data) throws ProtocolException {
+        if (arguments == null) {
+            while (header.hasRemaining() && data.hasRemaining()) {
+                header.put(data.get());
+            }
+            if (header.hasRemaining()) {
+                return null;
+            }
+            header.flip();
+            long length = header.getInt() & 0xFFFFFFFFL;
+            code = header.get() & 0xFF;
+            int argumentsLength = header.getInt();
+            header.clear();
+            if (argumentsLength < 0 || argumentsLength > BinaryProtocol.MAX_ARGUMENTS_SIZE || argumentsLength > length - 5) {
+                throw new ProtocolException("Invalid frame");
+            }
+            bodyLength = length - 5 - argumentsLength;
+            if (code == BinaryProtocol.LINE && bodyLength > 0) {
+                throw new ProtocolException("Invalid frame");
+            }
+            if (bodyLength > BinaryProtocol.MAX_BODY_SIZE && !BinaryProtocol.isStreamed(BinaryProtocol.typeOf(code))) {
+                throw new ProtocolException("Frame too large");
+            }
+            arguments = new byte[argumentsLength];
+            argumentsRead = 0;
+        }
+
+        if (argumentsRead < arguments.length) {
+            int n = Math.min(arguments.length - argumentsRead, data.remaining());
+            data.get(arguments, argumentsRead, n);
+            argumentsRead += n;
+            if (argumentsRead < arguments.length) {
+                return null;
+            }
+        }
+
+        MessageType type = BinaryProtocol.typeOf(code);
+        if (code == BinaryProtocol.LINE) {
+            // A whole line in a frame, it's decoded like a line.
+            String line = new String(arguments, StandardCharsets.UTF_8);
+            arguments = null;
+            return new Message(line);
+        }
+        if (BinaryProtocol.isStreamed(type)) {
+            Message message = new Message(type, arguments, null, bodyLength);
+            arguments = null;
+            return message;
+        }
+
+        if (body == null) {
+            body = new byte[(int) bodyLength];
+            bodyRead = 0;
+        }
+        int n = Math.min(body.length - bodyRead, data.remaining());
+        data.get(body, bodyRead, n);
+        bodyRead += n;
+        if (bodyRead < body.length) {
+            return null;
+        }
+        Message message = new Message(type, arguments, ByteBuffer.wrap(body).asReadOnlyBuffer(), bodyLength);
+        arguments = null;
+        body = null;
+        return message;
+    }
+}
@@ -0,0 +1,142 @@
+package nl.saxion.internettech;
+
+import nl.saxion.internettech.Message.MessageType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The binary framing that clients can choose instead of lines, by logging in with
+ * "HELO username BINARY". The server answers "+OK username BINARY" as a line; everything after
+ * that, in both directions, is a binary frame:
+ *
+ * <pre>
+ *   length     u32  the number of bytes after this field
+ *   type       u8   the verb, see VERBS
+ *   argLength  u32  the number of bytes of the arguments
+ *   arguments       UTF-8, separated by spaces like in the line protocol
+ *   body            the remaining length - 5 - argLength bytes, raw
+ * </pre>
+ *
+ * Data that the line protocol encodes in Base64 or sends as raw blocks after a line travels in
+ * the body: the ciphertext of MSG and WHISPER, the X.509 encoding of keys (SENDKEY, GETKEY,
+ * GETNEWKEY) and the contents of files (TRNSFR, FTCHUNK and FTDATA). The arguments can contain
+ * any character, including line breaks.
+ *
+ * A DEFLATE frame carries another frame in {@link Compression compressed} form, it's only sent to
+ * clients that asked for compression.
+ *
+ * All numbers are big endian.
+ */
+public final class BinaryProtocol {
+
+    public static final int HEADER_SIZE = 9;
+    // The verb of a frame that carries a whole line, for lines with an unknown verb.
+    public static final int LINE = 255;
+    // Arguments are always kept in memory, so they are kept small.
+    public static final int MAX_ARGUMENTS_SIZE = 64 * 1024;
+    // Bodies of other commands than TRNSFR and FTCHUNK are kept in memory as well.
+    public static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    // The verb of every type code. The codes are part of the protocol and never change.
+    private static final String[] VERBS = new String[256];
+    private static final Map<String, Integer> CODES = new HashMap<>();
+    private static final MessageType[] TYPES = new MessageType[256];
+
+    static {
+        String[] verbs = {"+OK", "-ERR", "HELO", "SENDKEY", "GETKEY", "KEYDIR", "BCST", "LSTUS", "MSG", "MKGRP",
+                "JNGRP", "LSTGRP", "BCGRP", "LVGRP", "KICK", "TRNSFR", "FTOPEN", "FTCHUNK", "FTRESUME", "FTGET",
+                "FTACK", "STATS", "PING", "PONG", "QUIT", "GRPHIST"};
+        for (int code = 0; code < verbs.length; code++) {
+            define(code, verbs[code]);
+        }
+        // Verbs that only the server sends.
+        String[] events = {"WHISPER", "GETNEWKEY", "KEYDELTA", "FTOFFER", "FTDATA", "FTDONE", "DEFLATE", "HISTORY"};
+        for (int i = 0; i < events.length; i++) {
+            define(64 + i, events[i]);
+        }
+        for (MessageType type : MessageType.values()) {
+            Integer code = CODES.get(type.name());
+            if (code != null) {
+                TYPES[code] = type;
+            }
+        }
+    }
+
+    private BinaryProtocol() {
+    }
+
+    private static void define(int code, String verb) {
+        VERBS[code] = verb;
+        CODES.put(verb, code);
+    }
+
+    /**
+     * @param code The type code of a received frame.
+     * @return Returns the command of the code, UNKOWN for codes that are not a command.
+     */
+    public static MessageType typeOf(int code) {
+        MessageType type = TYPES[code & 0xFF];
+        return type != null ? type : MessageType.UNKOWN;
+    }
+
+    /**
+     * @return Returns true when the body of a command is streamed to an upload instead of being
+     *         read into memory.
+     */
+    public static boolean isStreamed(MessageType type) {
+        return type == MessageType.TRNSFR || type == MessageType.FTCHUNK;
+    }
+
+    /**
+     * Encodes a frame with a small body.
+     *
+     * @param head The verb and the arguments, separated by a space, like a line.
+     * @param body The body, may be null.
+     * @return Returns the encoded frame.
+     */
+    public static ByteBuffer encode(String head, byte[] body) {
+        int bodyLength = body != null ? body.length : 0;
+        ByteBuffer frame = header(head, bodyLength, bodyLength);
+        if (body != null) {
+            frame.put(body);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Encodes the start of a frame whose body is sent separately, like the contents of a file.
+     *
+     * @param head       The verb and the arguments, separated by a space, like a line.
+     * @param bodyLength The length of the body that follows.
+     * @return Returns the encoded header and arguments.
+     */
+    public static ByteBuffer header(String head, long bodyLength) {
+        return header(head, bodyLength, 0).flip();
+    }
+
+    private static ByteBuffer header(String head, long bodyLength, int room) {
+        int space = head.indexOf(' ');
+        String verb = space < 0 ? head : head.substring(0, space);
+        Integer code = CODES.get(verb);
+        byte[] arguments;
+        if (code == null) {
+            code = LINE;
+            arguments = head.getBytes(StandardCharsets.UTF_8);
+        } else {
+            arguments = space < 0 ? new byte[0] : head.substring(space + 1).getBytes(StandardCharsets.UTF_8);
+        }
+        long length = 5 + arguments.length + bodyLength;
+        if (length > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Frame too large: " + length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + arguments.length + room);
+        frame.putInt((int) length);
+        frame.put((byte) (int) code);
+        frame.putInt(arguments.length);
+        frame.put(arguments);
+        return frame;
+    }
+}
@@ -0,0 +1,59 @@
+package nl.saxion.internettech;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers of a fixed size. File transfers copy the received bytes into pooled
+ * buffers and hand them to the recipient's connection, which returns them once they have been
+ * written. The pool never limits the number of buffers in use, it only limits how many idle
+ * buffers it keeps around.
+ */
+public class BufferPool {
+
+    private int bufferSize;
+    private int maxIdle;
+    private ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * @param bufferSize The size of every buffer in bytes.
+     * @param maxIdle    The maximum number of idle buffers that are kept for reuse.
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return Returns an empty buffer, reused if possible.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        idleCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer may not be used anymore after releasing it.
+     *
+     * @param buffer A buffer that was acquired from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.add(buffer);
+        } else {
+            // Enough buffers pooled already, leave this one to the garbage collector.
+            idleCount.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,135 @@
+package nl.saxion.internettech;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The transport side of a single client connection. A {@link Server.ClientThread} only talks to
+ * its client through this interface, so the command handling doesn't have to know whether the
+ * client is served by a blocking socket or by one of the NIO selector threads.
+ */
+public interface ClientConnection {
+
+    /**
+     * Queues the remaining bytes of the buffer for sending to the client. Implementations must be
+     * safe to call from any thread and must keep the order of the writes.
+     *
+     * @param data The bytes to send. The buffer must not be modified after handing it over.
+     */
+    void write(ByteBuffer data);
+
+    /**
+     * Like {@link #write(ByteBuffer)}, for a caller that must not wait for room in the outbound
+     * queue, like a timer task. Connections that never let the caller wait ignore the flag.
+     *
+     * @param data     The bytes to send. The buffer must not be modified after handing it over.
+     * @param mayBlock False when the caller must not wait for room.
+     */
+    default void write(ByteBuffer data, boolean mayBlock) {
+        write(data);
+    }
+
+    /**
+     * Queues data that may not be dropped, like the contents of a file transfer. The slow
+     * consumer policy doesn't apply; when the caller is allowed to block it waits for room in
+     * the outbound queue first.
+     *
+     * @param data      The bytes to send. The buffer must not be modified after handing it over.
+     * @param onWritten Called when the buffer is no longer used by the connection, because it
+     *                  was written or because the connection was closed. May be null.
+     */
+    void writeBulk(ByteBuffer data, Runnable onWritten);
+
+    /**
+     * Queues a part of a file, like a spooled file transfer. The region is released after it has
+     * been sent or when the connection is closed. Like writeBulk, this is never dropped.
+     *
+     * @param region The file region to send.
+     */
+    void writeFile(FileRegion region);
+
+    /**
+     * Opens a stream of data that must reach the client without any other message in between,
+     * like a file that is relayed while it's being uploaded. Messages that are written while the
+     * stream is open are sent after it has been closed.
+     *
+     * @return Returns the stream.
+     */
+    Stream openStream();
+
+    /**
+     * Why reading from a client is paused. Every reason is resumed on its own, so one of them
+     * ending doesn't continue reading while another still holds.
+     */
+    enum Pause {
+        /** A command waits for its result, like the answer of another node. */
+        AWAIT,
+        /** The client sent more bytes than it may for now. */
+        RATE_LIMIT,
+        /** The recipient of a relayed file doesn't keep up with the sender. */
+        RELAY
+    }
+
+    /**
+     * Stops reading from the client until {@link #resumeReads(Pause)} is called with the same
+     * reason and no other reason holds. Connections whose reader may block already wait in
+     * writeBulk, so for them this does nothing.
+     *
+     * @param reason Why reading stops.
+     */
+    void suspendReads(Pause reason);
+
+    /**
+     * Ends a reason given to {@link #suspendReads(Pause)} and continues reading when no other
+     * reason holds. May be called from any thread.
+     *
+     * @param reason The reason that ended.
+     */
+    void resumeReads(Pause reason);
+
+    /**
+     * Runs a task on the thread that handles the input of the client, after what that thread is
+     * doing now. This is used to finish a command that waited for something, like the answer of
+     * another node of the cluster, while reads are suspended.
+     *
+     * @param task The task.
+     */
+    void execute(Runnable task);
+
+    /**
+     * Closes the connection after the bytes that are already queued have been sent.
+     */
+    void close();
+
+    /**
+     * @return Returns the queue of data that still has to be sent to the client.
+     */
+    OutboundQueue getOutboundQueue();
+
+    /**
+     * Data that is sent in one piece, see {@link #openStream()}. Like writeBulk, the data of a
+     * stream is never dropped. Only a single thread may write to a stream.
+     */
+    interface Stream {
+
+        /**
+         * Queues the remaining bytes of the buffer.
+         *
+         * @param data      The bytes to send. The buffer must not be modified after handing it over.
+         * @param onWritten Called when the buffer is no longer used by the connection. May be null.
+         */
+        void write(ByteBuffer data, Runnable onWritten);
+
+        /**
+         * Queues a part of a file. The region is released after it has been sent or when the
+         * connection is closed.
+         *
+         * @param region The file region to send.
+         */
+        void writeFile(FileRegion region);
+
+        /**
+         * Ends the stream. It must always be closed, the client gets nothing else until then.
+         */
+        void close();
+    }
+}
@@ -0,0 +1,886 @@
+package nl.saxion.internettech;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Connects this server to the other nodes of a cluster, so users on different nodes can talk to
+ * each other. Every node has a TCP link to every other node; the node with the lower address sets
+ * up the link and sets it up again when it breaks.
+ *
+ * Every node knows the users and groups of the whole cluster. A user of another node is a
+ * session without a socket whose frames are forwarded to its node, so MSG, BCST, BCGRP, GETKEY
+ * and TRNSFR reach it like a local user. Logins, logouts, keys and group changes are announced
+ * to all nodes; when a link comes up both nodes announce everything they have.
+ *
+ * Usernames and group names must be unique in the whole cluster. Every name has a home node,
+ * picked by the hash of the name from the configured nodes; a node claims a name at its home
+ * before using it. When the home is down its successor takes over, so while a node is down a
+ * name that was claimed before may be claimed twice.
+ *
+ * A node proves that it knows the shared secret when it sets up a link: the proof is an HMAC of
+ * its role in the handshake, the random nonces of both nodes and both addresses, so the secret is
+ * never sent and a proof can't be replayed on another link or in the other direction. The node
+ * that connected proves itself first; the node that accepted the link only answers with its own
+ * proof after it has checked that one.
+ *
+ * The links carry lines, some followed by a number of raw bytes that is given in the line:
+ *
+ * <pre>
+ *   NODE address nonce / AUTH proof                  handshake, sent by both nodes, AUTH
+ *                                                    first by the node that connected
+ *   CLAIM id key / GRANT id 0|1 / RELEASE key        names, keys are u:username or g:groupname
+ *   JOIN user binary subscriber / LEAVE user / SUBSCRIBE user
+ *   KEY user length                                  followed by the X.509 encoded key
+ *   DELIVER user headLength bodyLength               followed by the frame, bodyLength -1 without body
+ *   FANOUT headLength                                followed by a frame for all local users
+ *   GROUP MK|JN|LV|DISBAND group [user]
+ *   STREAM id user / DATA id length / END id / DROP user
+ * </pre>
+ */
+public class Cluster {
+
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final long CLAIM_TIMEOUT_MILLIS = 5000;
+    private static final int STREAM_CHUNK_SIZE = 32 * 1024;
+    private static final int MAX_LINE_SIZE = 1024;
+    // The most bytes a line may announce, larger frames are refused by the nodes that send them.
+    private static final int MAX_DATA_SIZE = 16 * 1024 * 1024;
+    private static final int NONCE_SIZE = 16;
+
+    private final Server server;
+    private final ServerConfiguration conf;
+    private final UserDirectory users;
+    private final GroupDirectory groups;
+    private final PublicKeyStore publickeys;
+    // The address of this node, which is its name in the cluster.
+    private final String name;
+    // All configured nodes in the same order on every node, for picking the home of a name.
+    private final List<String> ring;
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    // The node that owns a name, for the names this node is the home of.
+    private final ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<>();
+    // Claims that wait for the answer of their home, by id.
+    private final ConcurrentHashMap<Long, Claim> claims = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    public Cluster(Server server, ServerConfiguration conf, UserDirectory users, GroupDirectory groups,
+                   PublicKeyStore publickeys) {
+        this.server = server;
+        this.conf = conf;
+        this.users = users;
+        this.groups = groups;
+        this.publickeys = publickeys;
+        this.name = conf.getClusterAddress() != null ? conf.getClusterAddress() : "local";
+        List<String> nodes = new ArrayList<>(conf.getPeers());
+        nodes.add(name);
+        Collections.sort(nodes);
+        this.ring = nodes;
+    }
+
+    /**
+     * Listens for the links of the other nodes and sets up the links to the nodes with a
+     * higher address. Does nothing when no cluster is configured.
+     */
+    public void start() throws IOException {
+        if (conf.getClusterAddress() == null) {
+            return;
+        }
+        if (conf.getClusterSecret() == null || conf.getClusterSecret().isEmpty()) {
+            throw new IOException("A cluster needs a shared secret, see --cluster-secret");
+        }
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(host(name), port(name)));
+        daemon(() -> accept(listener), "cluster-listener");
+        for (String peer : conf.getPeers()) {
+            if (peer.compareTo(name) > 0) {
+                daemon(() -> connect(peer), "cluster-connect-" + peer);
+            }
+        }
+        Log.log(Log.Level.INFO, Log.Category.CLUSTER, null, "[NODE] ", name + " of " + ring.size());
+    }
+
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                daemon(() -> {
+                    try {
+                        serve(socket, null);
+                    } catch (IOException e) {
+                        closeQuietly(socket);
+                    }
+                }, "cluster-link");
+            } catch (IOException e) {
+                Log.log(Log.Level.ERROR, Log.Category.CLUSTER, null, "Cannot accept nodes: ", e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void connect(String address) {
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host(address), port(address)));
+                serve(socket, address);
+            } catch (IOException e) {
+                closeQuietly(socket);
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Exchanges the addresses and proofs of the secret and handles the link until it breaks.
+     *
+     * @param expected The address that was connected to, null for links set up by the other node.
+     */
+    private void serve(Socket socket, String expected) throws IOException {
+        socket.setTcpNoDelay(true);
+        SocketConnection link = new SocketConnection(socket, conf, task -> daemon(task, "cluster-writer"));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+        byte[] nonce = new byte[NONCE_SIZE];
+        new SecureRandom().nextBytes(nonce);
+        String ourNonce = Base64.getEncoder().encodeToString(nonce);
+        link.writeBulk(encode("NODE " + name + " " + ourNonce, null, null), null);
+        String[] hello = readLine(in).split(" ");
+        if (!hello[0].equals("NODE") || hello.length < 3 || !ring.contains(hello[1]) || hello[1].equals(name)
+                || (expected != null && !expected.equals(hello[1]))) {
+            Log.log(Log.Level.WARN, Log.Category.CLUSTER, null, "Unknown node: ", String.join(" ", hello));
+            link.close();
+            return;
+        }
+        // Both proofs cover the same handshake, seen from the node that connected.
+        boolean connected = expected != null;
+        String handshake = connected
+                ? ourNonce + " " + hello[2] + " " + name + " " + hello[1]
+                : hello[2] + " " + ourNonce + " " + hello[1] + " " + name;
+        String ourRole = connected ? "CONNECT" : "ACCEPT";
+        String theirRole = connected ? "ACCEPT" : "CONNECT";
+        if (connected) {
+            link.writeBulk(encode("AUTH " + proof(ourRole, handshake), null, null), null);
+        }
+        String[] auth = readLine(in).split(" ");
+        if (!auth[0].equals("AUTH") || auth.length < 2 || !MessageDigest.isEqual(
+                auth[1].getBytes(StandardCharsets.US_ASCII), proof(theirRole, handshake).getBytes(StandardCharsets.US_ASCII))) {
+            Log.log(Log.Level.WARN, Log.Category.CLUSTER, null, "[AUTH FAILED] ", hello[1] + " from " + socket.getRemoteSocketAddress());
+            link.close();
+            return;
+        }
+        if (!connected) {
+            link.writeBulk(encode("AUTH " + proof(ourRole, handshake), null, null), null);
+        }
+
+        Peer peer = new Peer(hello[1], link);
+        Peer old = peers.put(peer.name, peer);
+        if (old != null) {
+            old.link.close();
+            lost(old);
+        }
+        Log.log(Log.Level.INFO, Log.Category.CLUSTER, null, "[NODE UP] ", peer.name);
+        announceAll(peer);
+        try {
+            while (true) {
+                handle(peer, readLine(in), in);
+            }
+        } catch (IOException e) {
+            // The link is broken, the node is gone until it's set up again.
+        } catch (RuntimeException e) {
+            Log.log(Log.Level.ERROR, Log.Category.CLUSTER, null, "Invalid line from " + peer.name + ": ", e.toString());
+        } finally {
+            link.close();
+            lost(peer);
+        }
+    }
+
+    /**
+     * Tells a node that just came up about the users, keys and groups of this node.
+     */
+    private void announceAll(Peer peer) {
+        for (Server.ClientThread ct : users.sessions()) {
+            if (!ct.isRemote()) {
+                peer.send(joinLine(ct), null, null);
+                PublicKeyStore.Entry key = publickeys.get(ct.getUsername());
+                if (key != null) {
+                    peer.send("KEY " + ct.getUsername() + " " + key.getEncoded().length, key.getEncoded(), null);
+                }
+            }
+        }
+        for (UserGroup group : groups.groups()) {
+            if (!group.getGroupowner().isRemote()) {
+                peer.send("GROUP MK " + group.getGroupname() + " " + group.getGroupowner().getUsername(), null, null);
+            }
+            // All participants, the node may not know the node of the owner yet.
+            for (Server.ClientThread participant : group.getParticipants()) {
+                peer.send("GROUP JN " + group.getGroupname() + " " + participant.getUsername(), null, null);
+            }
+        }
+    }
+
+    private void handle(Peer peer, String line, DataInputStream in) throws IOException {
+        String[] fields = line.split(" ");
+        switch (fields[0]) {
+            case "CLAIM": {
+                String owner = owners.putIfAbsent(fields[2], peer.name);
+                boolean granted = owner == null || owner.equals(peer.name);
+                peer.send("GRANT " + fields[1] + " " + (granted ? 1 : 0), null, null);
+                break;
+            }
+            case "GRANT":
+                complete(Long.parseLong(fields[1]), fields[2].equals("1"));
+                break;
+            case "RELEASE":
+                owners.remove(fields[1], peer.name);
+                break;
+            case "JOIN":
+                joined(peer, fields[1], fields[2].equals("1"), fields[3].equals("1"));
+                break;
+            case "LEAVE": {
+                owners.remove("u:" + fields[1], peer.name);
+                Server.ClientThread proxy = peer.remoteUsers.remove(fields[1]);
+                if (proxy != null) {
+                    proxy.onDisconnect();
+                }
+                break;
+            }
+            case "SUBSCRIBE": {
+                Server.ClientThread proxy = peer.remoteUsers.get(fields[1]);
+                if (proxy != null) {
+                    proxy.subscribeToKeyDirectory();
+                }
+                break;
+            }
+            case "KEY": {
+                byte[] encoded = readBytes(in, length(fields[2]));
+                Server.ClientThread proxy = peer.remoteUsers.get(fields[1]);
+                if (proxy != null) {
+                    try {
+                        proxy.setRemoteKey(publickeys.register(fields[1], encoded));
+                    } catch (GeneralSecurityException e) {
+                        Log.log(Log.Level.WARN, Log.Category.CLUSTER, fields[1], "Invalid key from ", peer.name);
+                    }
+                }
+                break;
+            }
+            case "DELIVER": {
+                int bodyLength = Integer.parseInt(fields[3]);
+                Frame frame = readFrame(in, length(fields[2]), bodyLength < 0 ? -1 : length(fields[3]));
+                Server.ClientThread recipient = users.lookup(fields[1]);
+                if (recipient != null && !recipient.isRemote()) {
+                    recipient.writeToClient(frame);
+                }
+                break;
+            }
+            case "FANOUT": {
+                Frame frame = readFrame(in, length(fields[1]), -1);
+                for (Server.ClientThread ct : users.sessions()) {
+                    if (!ct.isRemote()) {
+                        ct.writeToClient(frame);
+                    }
+                }
+                break;
+            }
+            case "GROUP":
+                applyGroupChange(peer, fields[1], fields[2], fields.length > 3 ? fields[3] : null);
+                break;
+            case "STREAM": {
+                // An upload to a local user, it's relayed to the user as it arrives.
+                Server.ClientThread recipient = users.lookup(fields[2]);
+                if (recipient != null && !recipient.isRemote()) {
+                    peer.inbound.put(Long.parseLong(fields[1]), new InboundStream(recipient, recipient.getConnection().openStream()));
+                }
+                break;
+            }
+            case "DATA": {
+                byte[] data = readBytes(in, length(fields[2]));
+                InboundStream stream = peer.inbound.get(Long.parseLong(fields[1]));
+                if (stream != null) {
+                    stream.stream.write(ByteBuffer.wrap(data), null);
+                }
+                break;
+            }
+            case "END": {
+                InboundStream stream = peer.inbound.remove(Long.parseLong(fields[1]));
+                if (stream != null) {
+                    stream.stream.close();
+                }
+                break;
+            }
+            case "DROP": {
+                Server.ClientThread user = users.lookup(fields[1]);
+                if (user != null && !user.isRemote()) {
+                    Log.log(Log.Level.INFO, Log.Category.CLUSTER, fields[1], "[DROPPED BY] ", peer.name);
+                    user.getConnection().close();
+                }
+                break;
+            }
+            default:
+                Log.log(Log.Level.WARN, Log.Category.CLUSTER, null, "Unknown line from " + peer.name + ": ", line);
+        }
+    }
+
+    private void joined(Peer peer, String username, boolean binary, boolean subscriber) {
+        if (home("u:" + username).equals(name)) {
+            // The node claimed the name before this node became its home.
+            owners.putIfAbsent("u:" + username, peer.name);
+        }
+        if (peer.remoteUsers.containsKey(username)) {
+            return;
+        }
+        Server.ClientThread proxy = server.remoteUser(username, binary, peer);
+        if (!users.claim(username, proxy)) {
+            Log.log(Log.Level.WARN, Log.Category.CLUSTER, username, "[NAME CONFLICT] also logged in at ", peer.name);
+            return;
+        }
+        if (subscriber) {
+            proxy.subscribeToKeyDirectory();
+        }
+        peer.remoteUsers.put(username, proxy);
+    }
+
+    private void applyGroupChange(Peer peer, String change, String groupname, String username) {
+        UserGroup group = groups.get(groupname);
+        Server.ClientThread user = users.lookup(username);
+        switch (change) {
+            case "MK":
+                if (home("g:" + groupname).equals(name)) {
+                    owners.putIfAbsent("g:" + groupname, peer.name);
+                }
+                if (group == null && user != null) {
+                    group = groups.create(groupname, user);
+                    if (group != null) {
+                        user.joinGroup(group);
+                    }
+                }
+                break;
+            case "JN":
+                if (group != null && user != null && !group.Participates(username)) {
+                    group.addParticipant(user);
+                    user.joinGroup(group);
+                }
+                break;
+            case "LV":
+                if (group != null) {
+                    Server.ClientThread participant = group.getParticipant(username);
+                    if (participant != null) {
+                        participant.removeGroupFromJoinedGroups(group);
+                        group.removeParticipant(participant);
+                    }
+                }
+                break;
+            case "DISBAND":
+                owners.remove("g:" + groupname, peer.name);
+                if (group != null) {
+                    for (Server.ClientThread participant : group.getParticipants()) {
+                        participant.removeGroupFromJoinedGroups(group);
+                    }
+                    groups.remove(group);
+                }
+                break;
+            default:
+                Log.log(Log.Level.WARN, Log.Category.CLUSTER, null, "Unknown group change from " + peer.name + ": ", change);
+        }
+    }
+
+    /**
+     * Forgets everything about a node whose link broke.
+     */
+    private void lost(Peer peer) {
+        if (!peers.remove(peer.name, peer)) {
+            return;
+        }
+        Log.log(Log.Level.WARN, Log.Category.CLUSTER, null, "[NODE DOWN] ", peer.name);
+        owners.values().removeIf(peer.name::equals);
+        claims.values().removeIf(claim -> claim.home.equals(peer.name) && claim.result.complete(false));
+        // The groups of its users are gone, their local participants are told so.
+        for (UserGroup group : groups.groups()) {
+            if (group.getGroupowner().isRemote() && peer.remoteUsers.get(group.getGroupowner().getUsername()) == group.getGroupowner()) {
+                Frame disbanded = Frame.of("BCST [" + group.getGroupname() + "] Disbanded");
+                for (Server.ClientThread participant : group.getParticipants()) {
+                    participant.removeGroupFromJoinedGroups(group);
+                    if (!participant.isRemote()) {
+                        participant.writeToClient(disbanded);
+                    }
+                }
+                groups.remove(group);
+            }
+        }
+        for (Server.ClientThread proxy : peer.remoteUsers.values()) {
+            proxy.onDisconnect();
+        }
+        peer.remoteUsers.clear();
+        // Local users that got part of a file can't tell where it ends.
+        for (InboundStream stream : peer.inbound.values()) {
+            stream.stream.close();
+            Log.log(Log.Level.WARN, Log.Category.CLUSTER, stream.recipient.getUsername(), "[TRANSFER ABORTED] node down: ", peer.name);
+            stream.recipient.getConnection().close();
+        }
+        peer.inbound.clear();
+    }
+
+    /**
+     * Claims a username in the whole cluster. When the home of the name is another node the
+     * answer takes a round trip over the link; the caller must not wait for it on a thread
+     * that serves other clients.
+     *
+     * @param username The username.
+     * @return Returns the answer: true when the name may be used by this node. It's false when
+     *         the home doesn't answer in time.
+     */
+    public CompletableFuture<Boolean> claimUser(String username) {
+        return claim("u:" + username);
+    }
+
+    /**
+     * Claims a group name in the whole cluster, see {@link #claimUser(String)}.
+     */
+    public CompletableFuture<Boolean> claimGroup(String groupname) {
+        return claim("g:" + groupname);
+    }
+
+    /**
+     * Gives up a username that was claimed but isn't used after all.
+     */
+    public void releaseUser(String username) {
+        release("u:" + username);
+    }
+
+    /**
+     * Gives up a group name that was claimed but isn't used after all.
+     */
+    public void releaseGroup(String groupname) {
+        release("g:" + groupname);
+    }
+
+    private CompletableFuture<Boolean> claim(String key) {
+        String home = home(key);
+        Peer peer = peers.get(home);
+        if (home.equals(name) || peer == null) {
+            String owner = owners.putIfAbsent(key, name);
+            return CompletableFuture.completedFuture(owner == null || owner.equals(name));
+        }
+        long id = ids.incrementAndGet();
+        Claim claim = new Claim(home);
+        claims.put(id, claim);
+        peer.send("CLAIM " + id + " " + key, null, null);
+        CompletableFuture.delayedExecutor(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+            if (claims.remove(id, claim) && claim.result.complete(false)) {
+                // The home may still grant it, the release follows the claim over the link.
+                Log.log(Log.Level.WARN, Log.Category.CLUSTER, null, "No answer from " + home + " for ", key);
+                peer.send("RELEASE " + key, null, null);
+            }
+        });
+        return claim.result;
+    }
+
+    private void complete(long id, boolean granted) {
+        Claim claim = claims.remove(id);
+        if (claim != null) {
+            claim.result.complete(granted);
+        }
+    }
+
+    private void release(String key) {
+        String home = home(key);
+        Peer peer = peers.get(home);
+        if (home.equals(name) || peer == null) {
+            owners.remove(key, name);
+        } else {
+            peer.send("RELEASE " + key, null, null);
+        }
+    }
+
+    /**
+     * @return Returns the node that decides who may use a name: the configured node picked by the
+     *         hash of the name, or the first node after it that is up.
+     */
+    private String home(String key) {
+        int start = Math.floorMod(key.hashCode(), ring.size());
+        for (int i = 0; i < ring.size(); i++) {
+            String node = ring.get((start + i) % ring.size());
+            if (node.equals(name) || peers.containsKey(node)) {
+                return node;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Announces a user that logged in at this node.
+     */
+    public void joined(Server.ClientThread client) {
+        sendToAll(joinLine(client), null, null);
+    }
+
+    /**
+     * Announces a user that logged out of this node, or changed its name.
+     */
+    public void left(String username) {
+        owners.remove("u:" + username, name);
+        sendToAll("LEAVE " + username, null, null);
+    }
+
+    public void subscribed(String username) {
+        sendToAll("SUBSCRIBE " + username, null, null);
+    }
+
+    public void keyChanged(String username, PublicKeyStore.Entry key) {
+        sendToAll("KEY " + username + " " + key.getEncoded().length, key.getEncoded(), null);
+    }
+
+    /**
+     * Sends a frame to the local users of all other nodes, once per node.
+     */
+    public void broadcast(Frame frame) {
+        byte[] head = frame.getHead().getBytes(StandardCharsets.UTF_8);
+        if (head.length > MAX_DATA_SIZE) {
+            Log.log(Log.Level.WARN, Log.Category.CLUSTER, null, "Frame too large for the other nodes: ", head.length);
+            return;
+        }
+        sendToAll("FANOUT " + head.length, head, null);
+    }
+
+    /**
+     * Announces a change of a group.
+     *
+     * @param change   MK, JN, LV or DISBAND.
+     * @param group    The group.
+     * @param username The user that created, joined or left the group, null for DISBAND.
+     */
+    public void groupChanged(String change, UserGroup group, String username) {
+        if (change.equals("DISBAND")) {
+            owners.remove("g:" + group.getGroupname(), name);
+        }
+        sendToAll("GROUP " + change + " " + group.getGroupname() + (username != null ? " " + username : ""), null, null);
+    }
+
+    private String joinLine(Server.ClientThread client) {
+        return "JOIN " + client.getUsername() + " " + (client.isBinary() ? 1 : 0) + " " + (client.isKeyDirectorySubscriber() ? 1 : 0);
+    }
+
+    private void sendToAll(String line, byte[] first, byte[] second) {
+        for (Peer peer : peers.values()) {
+            peer.send(line, first, second);
+        }
+    }
+
+    private static ByteBuffer encode(String line, byte[] first, byte[] second) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length + (first != null ? first.length : 0) + (second != null ? second.length : 0);
+        ByteBuffer message = ByteBuffer.allocate(length).put(bytes);
+        if (first != null) {
+            message.put(first);
+        }
+        if (second != null) {
+            message.put(second);
+        }
+        return message.flip();
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (line.size() == MAX_LINE_SIZE) {
+                throw new IOException("Line too long");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Returns the number of bytes a line announces, checked before they're allocated.
+     */
+    private static int length(String field) throws IOException {
+        int length = Integer.parseInt(field);
+        if (length < 0 || length > MAX_DATA_SIZE) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * @param role      CONNECT for the node that set up the link, ACCEPT for the other node.
+     * @param handshake The nonces and then the addresses of the node that connected and the node
+     *                  that accepted.
+     * @return Returns the proof that a node in the role knows the secret: the HMAC of the role and
+     *         the handshake, in Base64.
+     */
+    private String proof(String role, String handshake) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(conf.getClusterSecret().getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal((role + " " + handshake).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot compute the proof of the secret", e);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static Frame readFrame(DataInputStream in, int headLength, int bodyLength) throws IOException {
+        String head = new String(readBytes(in, headLength), StandardCharsets.UTF_8);
+        if (bodyLength < 0) {
+            return Frame.ofUserText(head);
+        }
+        return Frame.withBody(head, readBytes(in, bodyLength), null);
+    }
+
+    private static String host(String address) {
+        return address.substring(0, address.lastIndexOf(':'));
+    }
+
+    private static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    private static void daemon(Runnable task, String threadName) {
+        Thread thread = new Thread(task, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to clean up.
+        }
+    }
+
+    /**
+     * Another node of the cluster and the users that are logged in at it.
+     */
+    public final class Peer {
+        private final String name;
+        private final SocketConnection link;
+        // The sessions that stand in for the users of the node, by username.
+        private final ConcurrentHashMap<String, Server.ClientThread> remoteUsers = new ConcurrentHashMap<>();
+        // Uploads from the node to local users, by the id the node gave them.
+        private final ConcurrentHashMap<Long, InboundStream> inbound = new ConcurrentHashMap<>();
+        private final AtomicLong streamIds = new AtomicLong();
+
+        private Peer(String name, SocketConnection link) {
+            this.name = name;
+            this.link = link;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Sends a line and the bytes that follow it as one message, so messages of different
+         * threads don't mix.
+         */
+        private void send(String line, byte[] first, byte[] second) {
+            link.writeBulk(encode(line, first, second), null);
+        }
+
+        /**
+         * Forwards a frame to a user of this node.
+         *
+         * @param username The user.
+         * @param frame    The frame, the node of the user encodes it like it does for its own.
+         */
+        public void deliver(String username, Frame frame) {
+            byte[] head = frame.getHead().getBytes(StandardCharsets.UTF_8);
+            byte[] body = frame.hasBody() ? frame.getBody() : null;
+            if (head.length > MAX_DATA_SIZE || (body != null && body.length > MAX_DATA_SIZE)) {
+                Log.log(Log.Level.WARN, Log.Category.CLUSTER, username, "Frame too large for its node: ", head.length);
+                return;
+            }
+            send("DELIVER " + username + " " + head.length + " " + (body != null ? body.length : -1), head, body);
+        }
+
+        /**
+         * @param username A user of this node.
+         * @return Returns a connection that sends raw bytes, like the contents of a file
+         *         transfer, to the user through the link.
+         */
+        public ClientConnection connectionFor(String username) {
+            return new RemoteConnection(this, username);
+        }
+    }
+
+    /**
+     * The connection of a user of another node. Frames don't pass through it, they are
+     * forwarded with {@link Peer#deliver(String, Frame)}; only raw data like the contents of
+     * a file transfer does.
+     */
+    private static class RemoteConnection implements ClientConnection {
+        private final Peer peer;
+        private final String username;
+
+        RemoteConnection(Peer peer, String username) {
+            this.peer = peer;
+            this.username = username;
+        }
+
+        @Override
+        public void write(ByteBuffer data) {
+            writeBulk(data, null);
+        }
+
+        @Override
+        public void writeBulk(ByteBuffer data, Runnable onWritten) {
+            Stream stream = openStream();
+            stream.write(data, onWritten);
+            stream.close();
+        }
+
+        @Override
+        public void writeFile(FileRegion region) {
+            Stream stream = openStream();
+            stream.writeFile(region);
+            stream.close();
+        }
+
+        @Override
+        public Stream openStream() {
+            long id = peer.streamIds.incrementAndGet();
+            peer.send("STREAM " + id + " " + username, null, null);
+            DataChannel channel = new DataChannel(peer, id);
+            return new Stream() {
+                @Override
+                public void write(ByteBuffer data, Runnable onWritten) {
+                    ByteBuffer view = data.duplicate();
+                    while (view.hasRemaining()) {
+                        channel.write(view);
+                    }
+                    if (onWritten != null) {
+                        onWritten.run();
+                    }
+                }
+
+                @Override
+                public void writeFile(FileRegion region) {
+                    try {
+                        while (region.hasRemaining()) {
+                            region.transferTo(channel);
+                        }
+                    } catch (IOException e) {
+                        Log.log(Log.Level.WARN, Log.Category.CLUSTER, username, "Exception when reading file: ", e.getMessage());
+                    } finally {
+                        region.release();
+                    }
+                }
+
+                @Override
+                public void close() {
+                    peer.send("END " + id, null, null);
+                }
+            };
+        }
+
+        @Override
+        public void suspendReads(Pause reason) {
+        }
+
+        @Override
+        public void resumeReads(Pause reason) {
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            // The node of the user handles its input.
+            task.run();
+        }
+
+        @Override
+        public void close() {
+            // Only the node of the user can close its connection.
+            peer.send("DROP " + username, null, null);
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return peer.link.getOutboundQueue();
+        }
+    }
+
+    /**
+     * Sends what is written to it as the DATA messages of a stream.
+     */
+    private static class DataChannel implements WritableByteChannel {
+        private final Peer peer;
+        private final long id;
+
+        DataChannel(Peer peer, long id) {
+            this.peer = peer;
+            this.id = id;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = Math.min(src.remaining(), STREAM_CHUNK_SIZE);
+            byte[] data = new byte[n];
+            src.get(data);
+            peer.send("DATA " + id + " " + n, data, null);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class InboundStream {
+        final Server.ClientThread recipient;
+        final ClientConnection.Stream stream;
+
+        InboundStream(Server.ClientThread recipient, ClientConnection.Stream stream) {
+            this.recipient = recipient;
+            this.stream = stream;
+        }
+    }
+
+    private static class Claim {
+        final String home;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Claim(String home) {
+            this.home = home;
+        }
+    }
+}
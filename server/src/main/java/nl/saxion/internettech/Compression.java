@@ -0,0 +1,81 @@
+package nl.saxion.internettech;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * The compression that clients can choose by logging in with "HELO username COMPRESS", which
+ * the server confirms with "+OK username COMPRESS". From then on the server may send a frame
+ * compressed: as the line "DEFLATE length" followed by length bytes, or for binary clients as a
+ * DEFLATE frame with the compressed bytes as its body. The bytes are the raw DEFLATE (RFC 1951)
+ * of the line, including the line terminator, or of the binary frame that would have been sent,
+ * compressed with {@link #DICTIONARY} as the preset dictionary.
+ *
+ * Every frame is compressed on its own, so a frame that goes to many clients, like a broadcast,
+ * is compressed once and the same bytes are sent to every client that asked for compression.
+ * Only frames of at least the configured threshold are compressed, and only when that makes
+ * them smaller. Clients never send compressed frames.
+ */
+public final class Compression {
+
+    /**
+     * The preset dictionary, part of the protocol. DEFLATE finds strings near the end of the
+     * dictionary cheapest, so the most common ones come last: the start of a Base64 RSA key and
+     * the verbs and phrases of the messages that get large.
+     */
+    public static final byte[] DICTIONARY = ("FTOFFER FTDATA FTDONE TRNSFR from KICK -ERR Goodbye Disbanded "
+            + "joined Group IDAQAB KEYDELTA KEYDIR GETKEY GETNEWKEY MIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEA "
+            + "WHISPER +OK Groups: +OK [BCST [").getBytes(StandardCharsets.US_ASCII);
+
+    private Compression() {
+    }
+
+    /**
+     * @return Returns a deflater for {@link #compress}. It holds native memory, so it must be
+     *         ended when it's no longer used. Every connection that asked for compression has
+     *         one, so compressing a frame allocates nothing but its output.
+     */
+    public static Deflater newDeflater() {
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /**
+     * Compresses an encoded frame.
+     *
+     * @param encoding The line or binary encoding of the frame, it isn't consumed.
+     * @param binary   True for the binary encoding.
+     * @param deflater A deflater of {@link #newDeflater()}, only used by one thread at a time.
+     * @return Returns the compressed frame as it goes on the wire, or null when it isn't smaller
+     *         than the encoding.
+     */
+    public static ByteBuffer compress(ByteBuffer encoding, boolean binary, Deflater deflater) {
+        int size = encoding.remaining();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(encoding.duplicate());
+        deflater.finish();
+        // Output that doesn't fit in the size of the input isn't worth sending.
+        byte[] output = new byte[size];
+        int length = 0;
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+
+        ByteBuffer frame;
+        if (binary) {
+            frame = BinaryProtocol.header("DEFLATE", length);
+        } else {
+            frame = ByteBuffer.wrap(("DEFLATE " + length + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        if (frame.remaining() + length >= size) {
+            return null;
+        }
+        ByteBuffer compressed = ByteBuffer.allocate(frame.remaining() + length);
+        compressed.put(frame).put(output, 0, length).flip();
+        return compressed;
+    }
+}
@@ -0,0 +1,292 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Misbehaves on the outbound path of a single connection, to test how clients cope with a bad
+ * network: frames are dropped, corrupted, duplicated or reordered at the configured rates and
+ * are delayed by the configured latency and bandwidth.
+ *
+ * Every connection has its own random generator, seeded with the configured seed and the number
+ * of the connection. Running the same clients against a server with the same seed therefore
+ * gives every connection the same faults, so a failing run can be replayed. The generator is
+ * only used under the lock of the injector, so the faults don't depend on thread timing.
+ *
+ * Delayed frames wait in a queue per connection and are released by a timer on the timing
+ * wheel, frames are never delayed by sleeping. Frames that are due are queued under the lock and
+ * sent after it has been released, by one thread at a time so they keep their order. Frames that
+ * are sent by a timer never wait for room in the outbound queue.
+ */
+public class FaultInjector {
+
+    // How long a frame that is held back for reordering waits for a next frame to pass it.
+    private static final long REORDER_HOLD_MILLIS = 100;
+
+    private final ServerConfiguration conf;
+    private final SplittableRandom random;
+    private final TimingWheel timers;
+    private final Sink sink;
+    private final Supplier<String> username;
+
+    // A frame that is held back, it's sent after the next frame.
+    private Frame heldBack;
+    private boolean heldBackBinary;
+    private TimingWheel.Timeout heldBackTimer;
+    // Frames that wait for their release time, in order of release.
+    private final ArrayDeque<Delayed> delayed = new ArrayDeque<>();
+    private TimingWheel.Timeout releaseTimer;
+    // The moment the last frame was released and the moment the throttled link is free again.
+    private long lastRelease = Long.MIN_VALUE;
+    private long linkFreeAt = Long.MIN_VALUE;
+    // Frames that are due, in order, and whether a thread is sending them.
+    private final ArrayDeque<Delayed> outbox = new ArrayDeque<>();
+    private boolean sending = false;
+
+    /**
+     * @param conf       The configuration with the fault rates, latency and bandwidth.
+     * @param connection The number of the connection, used to seed its random generator.
+     * @param timers     The timing wheel that releases delayed frames.
+     * @param sink       Writes a frame to the connection in the given encoding. It's never
+     *                   called while holding the lock of the injector.
+     * @param username   Supplies the username for the log.
+     */
+    public FaultInjector(ServerConfiguration conf, long connection, TimingWheel timers, Sink sink, Supplier<String> username) {
+        this.conf = conf;
+        this.random = random(conf.getFaultSeed(), connection);
+        this.timers = timers;
+        this.sink = sink;
+        this.username = username;
+    }
+
+    /**
+     * @param seed       The configured seed.
+     * @param connection The number of the connection.
+     * @return Returns the random generator of a connection. The same seed and connection number
+     *         always give the same sequence.
+     */
+    public static SplittableRandom random(long seed, long connection) {
+        return new SplittableRandom(seed + connection * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * @return Returns true when the configuration asks for any outbound faults, so connections
+     *         without faults don't pay for an injector.
+     */
+    public static boolean isEnabled(ServerConfiguration conf) {
+        return conf.getDropRate() > 0 || conf.getCorruptRate() > 0 || conf.getDuplicateRate() > 0
+                || conf.getReorderRate() > 0 || conf.getLatency() > 0 || conf.getBandwidth() > 0;
+    }
+
+    /**
+     * Passes a frame through the injector.
+     *
+     * @param frame  The frame to be sent to the client.
+     * @param binary True to send the binary encoding of the frame, the encoding is picked when
+     *               the frame is written because it may change while the frame waits.
+     */
+    public void write(Frame frame, boolean binary) {
+        synchronized (this) {
+            inject(frame, binary);
+        }
+        flush(true);
+    }
+
+    private void inject(Frame frame, boolean binary) {
+        if (roll(conf.getDropRate())) {
+            Log.log(Log.Level.INFO, Log.Category.SIMULATION, username.get(), "[DROPPED] ", frame.toString());
+            return;
+        }
+        if (roll(conf.getCorruptRate())) {
+            // Corrupt a private copy, the frame may be shared with other clients.
+            frame = Frame.of(corrupt(frame.getLine()));
+            Log.log(Log.Level.INFO, Log.Category.SIMULATION, username.get(), "[CORRUPT] ", frame.getLine());
+        }
+        boolean duplicate = roll(conf.getDuplicateRate());
+        if (duplicate) {
+            Log.log(Log.Level.INFO, Log.Category.SIMULATION, username.get(), "[DUPLICATE] ", frame.toString());
+        }
+
+        if (heldBack == null && roll(conf.getReorderRate())) {
+            Log.log(Log.Level.INFO, Log.Category.SIMULATION, username.get(), "[REORDER] ", frame.toString());
+            heldBack = frame;
+            heldBackBinary = binary;
+            heldBackTimer = timers.schedule(this::releaseHeldBack, REORDER_HOLD_MILLIS, TimeUnit.MILLISECONDS);
+            if (duplicate) {
+                shape(frame, binary);
+            }
+            return;
+        }
+
+        shape(frame, binary);
+        if (duplicate) {
+            shape(frame, binary);
+        }
+        if (heldBack != null) {
+            heldBackTimer.cancel();
+            shape(heldBack, heldBackBinary);
+            heldBack = null;
+        }
+    }
+
+    /**
+     * Sends the frame that was held back when no other frame passed it in time.
+     */
+    private void releaseHeldBack() {
+        synchronized (this) {
+            if (heldBack != null) {
+                shape(heldBack, heldBackBinary);
+                heldBack = null;
+            }
+        }
+        flush(false);
+    }
+
+    /**
+     * Delays a frame by the time it takes to send it over the throttled link plus the latency.
+     * Frames keep their order, only reordering changes it.
+     */
+    private void shape(Frame frame, boolean binary) {
+        if (conf.getLatency() <= 0 && conf.getBandwidth() <= 0) {
+            outbox.add(new Delayed(frame, binary, 0));
+            return;
+        }
+        long now = System.nanoTime();
+        long release = now;
+        if (conf.getBandwidth() > 0) {
+            // The frame is on the wire once the frames before it have been sent.
+            int size = binary ? frame.binarySize() : frame.size();
+            linkFreeAt = Math.max(linkFreeAt, now) + size * 1_000_000_000L / conf.getBandwidth();
+            release = linkFreeAt;
+        }
+        if (conf.getLatency() > 0) {
+            long jitter = conf.getLatencyJitter() > 0 ? random.nextLong(conf.getLatencyJitter() + 1) : 0;
+            release += TimeUnit.MILLISECONDS.toNanos(conf.getLatency() + jitter);
+        }
+        release = Math.max(release, lastRelease);
+        lastRelease = release;
+
+        if (release <= now && delayed.isEmpty()) {
+            outbox.add(new Delayed(frame, binary, release));
+            return;
+        }
+        delayed.add(new Delayed(frame, binary, release));
+        if (releaseTimer == null) {
+            releaseTimer = timers.schedule(this::releaseDelayed, release - now, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Sends the delayed frames that are due and waits for the next one.
+     */
+    private void releaseDelayed() {
+        synchronized (this) {
+            long now = System.nanoTime();
+            while (!delayed.isEmpty() && delayed.peek().release <= now) {
+                outbox.add(delayed.poll());
+            }
+            releaseTimer = delayed.isEmpty() ? null
+                    : timers.schedule(this::releaseDelayed, delayed.peek().release - now, TimeUnit.NANOSECONDS);
+        }
+        flush(false);
+    }
+
+    /**
+     * Sends the frames that are due. When another thread is already sending, that thread sends
+     * them after its own.
+     *
+     * @param mayBlock False when the calling thread must not wait for room, like the wheel thread.
+     */
+    private void flush(boolean mayBlock) {
+        synchronized (this) {
+            if (sending) {
+                return;
+            }
+            sending = true;
+        }
+        Delayed next = null;
+        try {
+            while ((next = nextDue()) != null) {
+                sink.send(next.frame, next.binary, mayBlock);
+            }
+        } finally {
+            if (next != null) {
+                // The sink failed, let the next writer continue.
+                synchronized (this) {
+                    sending = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Returns the next frame that is due, or null when there is none and the calling
+     *         thread stops sending.
+     */
+    private synchronized Delayed nextDue() {
+        Delayed next = outbox.poll();
+        if (next == null) {
+            sending = false;
+        }
+        return next;
+    }
+
+    /**
+     * Drops the frames that are still waiting, the connection is gone.
+     */
+    public synchronized void close() {
+        delayed.clear();
+        outbox.clear();
+        heldBack = null;
+        if (releaseTimer != null) {
+            releaseTimer.cancel();
+        }
+        if (heldBackTimer != null) {
+            heldBackTimer.cancel();
+        }
+    }
+
+    private boolean roll(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    /**
+     * This methods implements a (naive) simulation of a corrupt message by replacing
+     * some charaters at random indexes with the charater X.
+     *
+     * @param message The message to be corrupted.
+     * @return Returns the message with some charaters replaced with X's.
+     */
+    private String corrupt(String message) {
+        int x = random.nextInt(4);
+        char[] messageChars = message.toCharArray();
+
+        while (x < messageChars.length) {
+            messageChars[x] = 'X';
+            x = x + 1 + random.nextInt(9);
+        }
+
+        return new String(messageChars);
+    }
+
+    /**
+     * Writes a frame to the connection.
+     */
+    public interface Sink {
+        void send(Frame frame, boolean binary, boolean mayBlock);
+    }
+
+    private static class Delayed {
+        final Frame frame;
+        final boolean binary;
+        final long release;
+
+        Delayed(Frame frame, boolean binary, long release) {
+            this.frame = frame;
+            this.binary = binary;
+            this.release = release;
+        }
+    }
+}
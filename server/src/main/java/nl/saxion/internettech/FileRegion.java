@@ -0,0 +1,82 @@
+package nl.saxion.internettech;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A part of a file that is queued for sending to a client. The bytes are sent with
+ * {@link FileChannel#transferTo}, so for NIO connections they go from the page cache to the socket
+ * without being copied into the JVM. A region may own a spool file that is deleted when the region
+ * is released.
+ */
+public final class FileRegion {
+
+    private final FileChannel channel;
+    private final Path spoolFile;
+    private long position;
+    private long remaining;
+
+    private FileRegion(FileChannel channel, Path spoolFile, long position, long count) {
+        this.channel = channel;
+        this.spoolFile = spoolFile;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    /**
+     * Opens the first bytes of a spool file. The file is deleted when the region is released.
+     *
+     * @param spoolFile The file to send.
+     * @param count     The number of bytes to send.
+     * @return Returns the region.
+     */
+    public static FileRegion ofSpoolFile(Path spoolFile, long count) throws IOException {
+        return new FileRegion(FileChannel.open(spoolFile, StandardOpenOption.READ), spoolFile, 0, count);
+    }
+
+    /**
+     * Sends as many bytes as the target accepts.
+     *
+     * @param target The channel to write to.
+     * @return Returns the number of bytes sent.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long sent = channel.transferTo(position, remaining, target);
+        if (sent == 0 && position >= channel.size()) {
+            throw new EOFException("File region ends after the end of the file");
+        }
+        position += sent;
+        remaining -= sent;
+        return sent;
+    }
+
+    public boolean hasRemaining() {
+        return remaining > 0;
+    }
+
+    /**
+     * @return Returns the number of bytes that still have to be sent.
+     */
+    public long remaining() {
+        return remaining;
+    }
+
+    /**
+     * Closes the file and deletes the spool file.
+     */
+    public void release() {
+        try {
+            channel.close();
+            if (spoolFile != null) {
+                Files.deleteIfExists(spoolFile);
+            }
+        } catch (IOException e) {
+            Log.log(Log.Level.WARN, Log.Category.TRANSFER, null, "Exception when removing spool file: ", e.getMessage());
+        }
+    }
+}
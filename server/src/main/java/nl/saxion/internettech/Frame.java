@@ -0,0 +1,216 @@
+package nl.saxion.internettech;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+/**
+ * A protocol line that has been encoded for the wire exactly once. A frame is immutable, so the
+ * same frame can be handed to any number of clients; every client gets its own read-only view of
+ * the shared bytes. Broadcasting a frame therefore doesn't copy the line per recipient.
+ *
+ * A frame has a line encoding and a {@link BinaryProtocol binary} encoding. Each is made the first
+ * time a client asks for it and then shared as well. Frames with a body, like WHISPER, carry the
+ * body in Base64 at the end of the line and raw in the binary encoding; only the form that a
+ * recipient needs is ever converted.
+ *
+ * The {@link Compression compressed} form of each encoding is cached the same way, so a broadcast
+ * is compressed once no matter how many of its recipients asked for compression.
+ */
+public final class Frame {
+
+    // The verb and arguments; the line is head + " " + body in Base64 for frames with a body.
+    private final String head;
+    private final boolean hasBody;
+    private volatile String line;
+    private volatile byte[] body;
+    private volatile String base64;
+    private volatile ByteBuffer bytes;
+    private volatile ByteBuffer binary;
+    private volatile ByteBuffer deflated;
+    private volatile ByteBuffer deflatedBinary;
+
+    // Marks an encoding that compression doesn't make smaller.
+    private static final ByteBuffer NOT_SMALLER = ByteBuffer.allocate(0);
+
+    private Frame(String head, boolean hasBody) {
+        this.head = head;
+        this.hasBody = hasBody;
+    }
+
+    /**
+     * Encodes a line, including the line terminator.
+     *
+     * @param line The line without the line terminator.
+     * @return Returns the encoded frame.
+     */
+    public static Frame of(String line) {
+        Frame frame = new Frame(line, false);
+        frame.line = line;
+        frame.bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        return frame;
+    }
+
+    /**
+     * Creates a frame with text that a user typed, like a broadcast. Binary clients get the
+     * text as it is; line breaks can't be sent as a line, so line clients get spaces instead.
+     *
+     * @param line The line.
+     * @return Returns the frame.
+     */
+    public static Frame ofUserText(String line) {
+        if (line.indexOf('\n') < 0 && line.indexOf('\r') < 0) {
+            return of(line);
+        }
+        Frame frame = new Frame(line, false);
+        frame.line = line.replace('\r', ' ').replace('\n', ' ');
+        return frame;
+    }
+
+    /**
+     * Creates a frame with binary data at the end, like the ciphertext of a WHISPER. Pass the
+     * forms of the body that are known; the other one is made when a client needs it.
+     *
+     * @param head   The verb and the arguments before the body.
+     * @param body   The raw body, or null.
+     * @param base64 The body in Base64, or null.
+     * @return Returns the frame.
+     */
+    public static Frame withBody(String head, byte[] body, String base64) {
+        Frame frame = new Frame(head, true);
+        frame.body = body;
+        frame.base64 = base64;
+        return frame;
+    }
+
+    /**
+     * @return Returns the line without the line terminator.
+     */
+    public String getLine() {
+        String current = line;
+        if (current == null) {
+            current = head + " " + getBase64();
+            line = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return Returns a new read-only view of the encoded bytes. The view has its own position,
+     *         so consuming it doesn't affect other recipients of the frame.
+     */
+    public ByteBuffer buffer() {
+        return text().duplicate();
+    }
+
+    /**
+     * @return Returns the number of bytes on the wire.
+     */
+    public int size() {
+        return text().remaining();
+    }
+
+    /**
+     * @return Returns a new read-only view of the binary encoding, like {@link #buffer()}.
+     */
+    public ByteBuffer binaryBuffer() {
+        return binary().duplicate();
+    }
+
+    /**
+     * @return Returns the number of bytes on the wire in the binary encoding.
+     */
+    public int binarySize() {
+        return binary().remaining();
+    }
+
+    /**
+     * @param binary   True for the binary encoding.
+     * @param deflater Compresses the frame when that hasn't been done yet, see
+     *                 {@link Compression#compress}.
+     * @return Returns a new read-only view of the compressed encoding, or null when compressing
+     *         doesn't make the frame smaller.
+     */
+    public ByteBuffer compressedBuffer(boolean binary, Deflater deflater) {
+        ByteBuffer current = binary ? deflatedBinary : deflated;
+        if (current == null) {
+            current = Compression.compress(binary ? binary() : text(), binary, deflater);
+            current = current != null ? current.asReadOnlyBuffer() : NOT_SMALLER;
+            if (binary) {
+                deflatedBinary = current;
+            } else {
+                deflated = current;
+            }
+        }
+        return current != NOT_SMALLER ? current.duplicate() : null;
+    }
+
+    private ByteBuffer text() {
+        ByteBuffer current = bytes;
+        if (current == null) {
+            current = ByteBuffer.wrap((getLine() + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+            bytes = current;
+        }
+        return current;
+    }
+
+    private ByteBuffer binary() {
+        ByteBuffer current = binary;
+        if (current == null) {
+            // The head still has the line breaks of user text.
+            current = BinaryProtocol.encode(head, hasBody ? getBody() : null).asReadOnlyBuffer();
+            binary = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return Returns the verb and arguments, without the body.
+     */
+    String getHead() {
+        return head;
+    }
+
+    /**
+     * @return Returns true when the frame has a body.
+     */
+    boolean hasBody() {
+        return hasBody;
+    }
+
+    /**
+     * @return Returns the raw body.
+     */
+    byte[] getBody() {
+        byte[] current = body;
+        if (current == null) {
+            try {
+                current = Base64.getDecoder().decode(base64);
+            } catch (IllegalArgumentException e) {
+                // Pass on what the client sent, it's not our data to fix.
+                current = base64.getBytes(StandardCharsets.UTF_8);
+            }
+            body = current;
+        }
+        return current;
+    }
+
+    private String getBase64() {
+        String current = base64;
+        if (current == null) {
+            current = Base64.getEncoder().encodeToString(body);
+            base64 = current;
+        }
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        // Don't convert a body just for the log.
+        if (line == null && body != null) {
+            return head + " <" + body.length + " bytes>";
+        }
+        return getLine();
+    }
+}
@@ -0,0 +1,172 @@
+package nl.saxion.internettech;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory of all user groups, indexed by group name.
+ */
+public class GroupDirectory {
+
+    private ConcurrentHashMap<String, UserGroup> groups = new ConcurrentHashMap<>();
+    // Sorted group names for listings.
+    private NameIndex index = new NameIndex();
+    // The number of messages every group keeps and the bytes all groups together may keep.
+    private final int historySize;
+    private final long historyBudget;
+    private final AtomicLong historyBytes = new AtomicLong();
+    // Orders the messages of all groups, for evicting the oldest.
+    private final AtomicLong historyOrder = new AtomicLong();
+    // The groups with history by the order of their oldest message, so the oldest message of
+    // all groups is found without scanning them. Changed while holding the lock of the history.
+    private final ConcurrentSkipListMap<Long, UserGroup> oldestMessages = new ConcurrentSkipListMap<>();
+
+    public GroupDirectory() {
+        this(0, 0);
+    }
+
+    /**
+     * @param historySize   The number of messages every group keeps, 0 keeps no history.
+     * @param historyBudget The number of bytes the histories of all groups may use.
+     */
+    public GroupDirectory(int historySize, long historyBudget) {
+        this.historySize = historySize;
+        this.historyBudget = historyBudget;
+    }
+
+    /**
+     * Atomically creates a new group.
+     *
+     * @param groupname The name of the new group.
+     * @param owner     The client that creates (and owns) the group.
+     * @return Returns the new group or null if a group with this name already exists.
+     */
+    public UserGroup create(String groupname, Server.ClientThread owner) {
+        UserGroup group = new UserGroup(groupname, owner, historySize);
+        if (groups.putIfAbsent(groupname, group) != null) {
+            return null;
+        }
+        index.refresh(groupname, groups::containsKey);
+        return group;
+    }
+
+    /**
+     * @param groupname The name of the group.
+     * @return Returns the group with this name or null if it doesn't exist.
+     */
+    public UserGroup get(String groupname) {
+        if (groupname == null) {
+            return null;
+        }
+        return groups.get(groupname);
+    }
+
+    /**
+     * Removes a group from the directory, for example when it has been disbanded.
+     *
+     * @param group The group to remove.
+     */
+    public void remove(UserGroup group) {
+        if (groups.remove(group.getGroupname(), group)) {
+            index.refresh(group.getGroupname(), groups::containsKey);
+            GroupHistory history = group.getHistory();
+            synchronized (history) {
+                oldestMessages.remove(history.oldestOrder());
+                historyBytes.addAndGet(-history.close());
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the history of a group. When the histories of all groups use more than
+     * the budget, the oldest messages of all groups are evicted until an eighth of the budget
+     * is free again.
+     *
+     * @param group The group.
+     * @param text  The message as it is broadcast, after the group name.
+     */
+    public void addHistory(UserGroup group, String text) {
+        GroupHistory history = group.getHistory();
+        long used;
+        synchronized (history) {
+            long oldest = history.oldestOrder();
+            used = historyBytes.addAndGet(history.add(text, historyOrder.incrementAndGet()));
+            indexOldest(group, oldest);
+        }
+        if (used > historyBudget) {
+            evictHistory();
+        }
+    }
+
+    /**
+     * Evicts the oldest messages of all groups. Every step takes the group with the oldest
+     * message from the index, so it doesn't depend on the number of groups; several threads
+     * may evict at once.
+     */
+    private void evictHistory() {
+        long target = historyBudget - historyBudget / 8;
+        while (historyBytes.get() > target) {
+            Map.Entry<Long, UserGroup> oldest = oldestMessages.pollFirstEntry();
+            if (oldest == null) {
+                return;
+            }
+            UserGroup group = oldest.getValue();
+            GroupHistory history = group.getHistory();
+            synchronized (history) {
+                if (history.oldestOrder() != oldest.getKey()) {
+                    // Changed since it was indexed, its current oldest message is indexed again.
+                    continue;
+                }
+                historyBytes.addAndGet(-history.evictOldest());
+                indexOldest(group, oldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Updates the index after the oldest message of a group may have changed. Must hold the lock
+     * of the history.
+     *
+     * @param before The order of the oldest message before the change, Long.MAX_VALUE for none.
+     */
+    private void indexOldest(UserGroup group, long before) {
+        long after = group.getHistory().oldestOrder();
+        if (after != before) {
+            if (before != Long.MAX_VALUE) {
+                oldestMessages.remove(before, group);
+            }
+            if (after != Long.MAX_VALUE) {
+                oldestMessages.put(after, group);
+            }
+        }
+    }
+
+    /**
+     * @return Returns the number of bytes the histories of all groups use.
+     */
+    public long getHistoryBytes() {
+        return historyBytes.get();
+    }
+
+    /**
+     * @return Returns a live view of all groups. Iterating it never throws a
+     *         ConcurrentModificationException.
+     */
+    public Collection<UserGroup> groups() {
+        return groups.values();
+    }
+
+    /**
+     * @return Returns the sorted index of the group names.
+     */
+    public NameIndex index() {
+        return index;
+    }
+
+    public int size() {
+        return groups.size();
+    }
+}
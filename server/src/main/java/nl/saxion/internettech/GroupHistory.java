@@ -0,0 +1,163 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent messages of a group, in a ring of a fixed capacity. Every message gets the next
+ * sequence number of the group, so a client can ask for the messages after the last one it saw.
+ * A message is kept as the HISTORY frame that replays it, encoded for the wire when it's added,
+ * so replaying it to any number of clients doesn't encode it again.
+ *
+ * The rings of all groups share a memory budget, which the {@link GroupDirectory} enforces by
+ * evicting the messages that are the oldest of all groups. The directory locks the history to
+ * keep its index of the oldest messages in step with it.
+ */
+public class GroupHistory {
+
+    private final String groupname;
+    private final Entry[] ring;
+    // The index of the oldest message and the number of messages in the ring.
+    private int first = 0;
+    private int count = 0;
+    private long lastSequence = 0;
+    private long bytes = 0;
+    // Set when the group is gone, nothing is added anymore.
+    private boolean closed = false;
+
+    /**
+     * @param groupname The name of the group, which the replayed messages carry.
+     * @param capacity  The maximum number of messages, 0 keeps none.
+     */
+    public GroupHistory(String groupname, int capacity) {
+        this.groupname = groupname;
+        this.ring = new Entry[capacity];
+    }
+
+    /**
+     * Adds a message, replacing the oldest one when the ring is full.
+     *
+     * @param text  The message as it is broadcast, after the group name.
+     * @param order The position of the message among the messages of all groups.
+     * @return Returns the change of the number of bytes kept.
+     */
+    synchronized long add(String text, long order) {
+        if (ring.length == 0 || closed) {
+            return 0;
+        }
+        long before = bytes;
+        if (count == ring.length) {
+            evictOldest();
+        }
+        long sequence = ++lastSequence;
+        Entry entry = new Entry(sequence, order, Frame.ofUserText("HISTORY " + groupname + " " + sequence + " " + text));
+        ring[(first + count) % ring.length] = entry;
+        count++;
+        bytes += entry.size();
+        return bytes - before;
+    }
+
+    /**
+     * Removes the oldest message.
+     *
+     * @return Returns the number of bytes freed.
+     */
+    synchronized long evictOldest() {
+        if (count == 0) {
+            return 0;
+        }
+        Entry entry = ring[first];
+        ring[first] = null;
+        first = (first + 1) % ring.length;
+        count--;
+        bytes -= entry.size();
+        return entry.size();
+    }
+
+    /**
+     * @return Returns the position among the messages of all groups of the oldest message, or
+     *         Long.MAX_VALUE when the history is empty.
+     */
+    synchronized long oldestOrder() {
+        return count == 0 ? Long.MAX_VALUE : ring[first].order;
+    }
+
+    /**
+     * Removes all messages, the group is gone. Messages that are added later aren't kept.
+     *
+     * @return Returns the number of bytes freed.
+     */
+    synchronized long close() {
+        closed = true;
+        long freed = bytes;
+        while (count > 0) {
+            evictOldest();
+        }
+        return freed;
+    }
+
+    /**
+     * @param since The sequence number of the last message the client has, 0 for all.
+     * @param limit The maximum number of messages, the most recent ones are returned.
+     * @return Returns the kept messages after the sequence number, oldest first.
+     */
+    public synchronized List<Entry> since(long since, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = Math.max(0, count - limit); i < count; i++) {
+            Entry entry = ring[(first + i) % ring.length];
+            if (entry.sequence > since) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return Returns the sequence number of the last message, 0 when nothing was said yet.
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * A message in the history.
+     */
+    public static final class Entry {
+        // The Java object overhead of an entry, its frame and their buffers, counted against the
+        // budget.
+        private static final int OVERHEAD = 160;
+
+        private final long sequence;
+        private final long order;
+        private final Frame frame;
+        private final int size;
+
+        Entry(long sequence, long order, Frame frame) {
+            this.sequence = sequence;
+            this.order = order;
+            this.frame = frame;
+            // Both encodings are made now, so the budget counts what is kept. A compressed form
+            // that a replay makes is cached by the frame too, it isn't counted but is smaller.
+            this.size = OVERHEAD + frame.size() + frame.binarySize();
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return Returns the "HISTORY group sequence message" frame of the message.
+         */
+        public Frame getFrame() {
+            return frame;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package nl.saxion.internettech;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logging for the server. Threads that log only claim a slot in a preallocated ring
+ * buffer and store references to the strings they already have, so logging doesn't allocate and
+ * doesn't take the System.out lock on the message path. A single background thread formats the
+ * entries and writes them to the console and the optional file and binary sinks.
+ *
+ * When the ring buffer is full new entries are dropped rather than blocking the caller; the
+ * number of dropped entries is reported by the background thread.
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    public enum Category {
+        // Lines received from clients.
+        INCOMING,
+        // Lines sent to clients.
+        OUTGOING,
+        CONNECTION,
+        KEYS,
+        GROUPS,
+        TRANSFER,
+        // Simulated drops and corruption of the bad server modes.
+        SIMULATION,
+        SERVER,
+        // The links between the nodes of a cluster.
+        CLUSTER
+    }
+
+    private static final int RING_SIZE = 16 * 1024;
+    private static final long NO_VALUE = Long.MIN_VALUE;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Entry[] ring = new Entry[RING_SIZE];
+    // The next sequence number to claim and the next sequence number to consume.
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final AtomicLong consumed = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+
+    private static volatile Level level = Level.DEBUG;
+    private static volatile int[] sampleRates = new int[Category.values().length];
+    private static volatile ServerConfiguration conf = new ServerConfiguration();
+    private static final PrintStream stdout = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false);
+    private static PrintStream console = stdout;
+    private static PrintStream file;
+    private static DataOutputStream binary;
+    private static Thread consumer;
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Entry();
+        }
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Applies the logging options of the configuration and opens the configured sinks. Call
+     * this once at startup, before the server starts logging.
+     *
+     * @param configuration The server configuration.
+     */
+    public static synchronized void configure(ServerConfiguration configuration) throws IOException {
+        conf = configuration;
+        level = configuration.getLogLevel();
+        int[] rates = new int[Category.values().length];
+        for (Map.Entry<Category, Integer> rate : configuration.getLogSampleRates().entrySet()) {
+            rates[rate.getKey().ordinal()] = rate.getValue();
+        }
+        sampleRates = rates;
+        console = configuration.isLogToConsole() ? stdout : null;
+        if (configuration.getLogFile() != null) {
+            file = new PrintStream(new BufferedOutputStream(new FileOutputStream(configuration.getLogFile(), true)), false, "UTF-8");
+        }
+        if (configuration.getLogBinaryFile() != null) {
+            binary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(configuration.getLogBinaryFile(), true)));
+        }
+    }
+
+    /**
+     * Decides whether an entry is logged: its level must be enabled and, when its category is
+     * sampled, the entry must be picked. Use this to skip building a log text that would be
+     * thrown away, and log a picked entry with {@link #logChecked}, which doesn't sample it again.
+     *
+     * @return Returns true when the entry is logged.
+     */
+    public static boolean isEnabled(Level entryLevel, Category category) {
+        if (entryLevel.ordinal() < level.ordinal()) {
+            return false;
+        }
+        int sampleRate = sampleRates[category.ordinal()];
+        return sampleRate <= 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    public static void log(Level entryLevel, Category category, String user, String text) {
+        if (isEnabled(entryLevel, category)) {
+            append(entryLevel, category, user, text, null, NO_VALUE);
+        }
+    }
+
+    public static void log(Level entryLevel, Category category, String user, String text, String detail) {
+        if (isEnabled(entryLevel, category)) {
+            append(entryLevel, category, user, text, detail, NO_VALUE);
+        }
+    }
+
+    public static void log(Level entryLevel, Category category, String user, String text, long value) {
+        if (isEnabled(entryLevel, category)) {
+            append(entryLevel, category, user, text, null, value);
+        }
+    }
+
+    /**
+     * Logs an entry for which {@link #isEnabled} returned true.
+     */
+    public static void logChecked(Level entryLevel, Category category, String user, String text) {
+        append(entryLevel, category, user, text, null, NO_VALUE);
+    }
+
+    /**
+     * @return Returns the number of entries that were dropped because the ring buffer was full.
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void append(Level entryLevel, Category category, String user, String text, String detail, long value) {
+        if (consumer == null) {
+            startConsumer();
+        }
+
+        // Claim a slot, unless the consumer is a full ring behind.
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() >= RING_SIZE) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) (sequence & (RING_SIZE - 1))];
+        entry.timestamp = System.currentTimeMillis();
+        entry.level = entryLevel;
+        entry.category = category;
+        entry.user = user;
+        entry.text = text;
+        entry.detail = detail;
+        entry.value = value;
+        // Publishing the sequence makes the entry visible to the consumer.
+        entry.published = sequence;
+    }
+
+    private static synchronized void startConsumer() {
+        if (consumer != null) {
+            return;
+        }
+        Thread thread = new Thread(Log::consume, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        consumer = thread;
+    }
+
+    private static void consume() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (true) {
+            long sequence = consumed.get();
+            Entry entry = ring[(int) (sequence & (RING_SIZE - 1))];
+            if (entry.published != sequence) {
+                // Nothing (complete) to write, flush what we have and wait a little.
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    writeLine("[LOG] dropped " + (drops - reportedDrops) + " entries, the log buffer was full", null);
+                    reportedDrops = drops;
+                }
+                flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                write(entry, line);
+            } catch (RuntimeException e) {
+                // Never let a bad entry stop the logging thread.
+            }
+            entry.user = null;
+            entry.text = null;
+            entry.detail = null;
+            consumed.lazySet(sequence + 1);
+        }
+    }
+
+    private static void write(Entry entry, StringBuilder line) {
+        line.setLength(0);
+        String colorCode = null;
+        if (entry.category == Category.INCOMING) {
+            colorCode = conf.CLI_COLOR_INCOMING;
+            line.append("<< ");     // Incoming message.
+        } else if (entry.category == Category.OUTGOING) {
+            colorCode = conf.CLI_COLOR_OUTGOING;
+            line.append(">> ");     // Outgoing message.
+        } else if (entry.level.ordinal() >= Level.WARN.ordinal()) {
+            line.append('[').append(entry.level).append("] ");
+        }
+        // Add username to log if present.
+        // Note when setting up the connection the user is not known.
+        if (entry.user != null) {
+            line.append('[').append(entry.user).append("] ");
+        }
+        line.append(entry.text);
+        if (entry.detail != null) {
+            line.append(entry.detail);
+        }
+        if (entry.value != NO_VALUE) {
+            line.append(entry.value);
+        }
+        writeLine(line, colorCode);
+
+        if (binary != null) {
+            // long timestamp, byte level, byte category, user, text, detail, long value; the
+            // strings as an int length and that many bytes of UTF-8, so any length fits.
+            try {
+                binary.writeLong(entry.timestamp);
+                binary.writeByte(entry.level.ordinal());
+                binary.writeByte(entry.category.ordinal());
+                writeString(entry.user);
+                writeString(entry.text);
+                writeString(entry.detail);
+                binary.writeLong(entry.value);
+            } catch (IOException e) {
+                binaryFailed(e);
+            }
+        }
+    }
+
+    private static void writeString(String value) throws IOException {
+        byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        binary.writeInt(bytes.length);
+        binary.write(bytes);
+    }
+
+    /**
+     * Stops writing the binary log after it failed and says so in the other sinks.
+     */
+    private static void binaryFailed(IOException e) {
+        binary = null;
+        writeLine("[LOG] the binary log failed and is no longer written: " + e, null);
+    }
+
+    private static void writeLine(CharSequence line, String colorCode) {
+        if (console != null) {
+            // Log debug messages with or without colors.
+            if (colorCode != null && conf.isShowColors()) {
+                console.print(colorCode);
+                console.append(line);
+                console.println(conf.RESET_CLI_COLORS);
+            } else {
+                console.append(line);
+                console.println();
+            }
+        }
+        if (file != null) {
+            file.append(line);
+            file.println();
+        }
+    }
+
+    private static void flush() {
+        if (console != null) {
+            console.flush();
+        }
+        if (file != null) {
+            file.flush();
+        }
+        if (binary != null) {
+            try {
+                binary.flush();
+            } catch (IOException e) {
+                binaryFailed(e);
+            }
+        }
+    }
+
+    /**
+     * A preallocated slot of the ring buffer.
+     */
+    private static class Entry {
+        volatile long published = -1;
+        long timestamp;
+        Level level;
+        Category category;
+        String user;
+        String text;
+        String detail;
+        long value;
+    }
+}
@@ -0,0 +1,240 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+
+public class Main {
+
+    public static void main(String[] args) {
+        System.out.println("Usage:");
+        System.out.println("\t--bad-server: starts a server instance that drops client, packets and corrupts packets.");
+        System.out.println("\t--bad-server-drop-msg: starts a server instance that drops packets.");
+        System.out.println("\t--bad-server-corrupt: starts a server instance that corrupts packets.");
+        System.out.println("\t--bad-server-drop-client: starts a server instance that drops client, packets and corrupts packets.");
+        System.out.println("\t--fault-seed=<n>: seed of the simulated faults, to replay a run (default: random).");
+        System.out.println("\t--fault-drop=<rate>: drop this fraction of the messages, e.g. 0.1.");
+        System.out.println("\t--fault-corrupt=<rate>: corrupt this fraction of the messages.");
+        System.out.println("\t--fault-duplicate=<rate>: send this fraction of the messages twice.");
+        System.out.println("\t--fault-reorder=<rate>: send this fraction of the messages after the next message.");
+        System.out.println("\t--fault-latency=<ms>[:<jitter ms>]: delay every message.");
+        System.out.println("\t--fault-bandwidth=<bytes/s>: limit the messages sent to a single client.");
+        System.out.println("\t--port=<port>: port clients connect to (default: 1337).");
+        System.out.println("\t--cluster=<host:port>: run as a node of a cluster, the other nodes connect to this address.");
+        System.out.println("\t--peers=<host:port>[,<host:port>]: the cluster addresses of the other nodes.");
+        System.out.println("\t--cluster-secret=<secret>: the secret all nodes of the cluster share, required for a cluster.");
+        System.out.println("\t--no-colors: log bedug messages without colors in the console.");
+        System.out.println("\t--log-level=<debug|info|warn|error|off>: minimum level of logged messages (default: debug).");
+        System.out.println("\t--log-sample=<category>:<n>: only log one in n entries of a category, e.g. outgoing:100.");
+        System.out.println("\t--log-file=<path>: also write the log to a text file.");
+        System.out.println("\t--log-binary=<path>: also write the log to a compact binary file.");
+        System.out.println("\t--no-console-log: don't write the log to the console.");
+        System.out.println("\t--nio: serve all clients from a few selector threads instead of a thread per client.");
+        System.out.println("\t--selector-threads=<n>: number of selector threads for --nio (default: one per core).");
+        System.out.println("\t--virtual-threads: run every client on a virtual thread instead of a platform thread.");
+        System.out.println("\t--outbound-queue-size=<bytes>: maximum number of bytes queued for a single client (default: 1048576).");
+        System.out.println("\t--slow-consumer=<drop|disconnect|block>: what to do when a client's queue is full (default: disconnect).");
+        System.out.println("\t--slow-consumer-timeout=<ms>: how long block waits before disconnecting the client (default: 1000).");
+        System.out.println("\t--spool-transfers: store file transfers in a temporary file before sending them to the recipient.");
+        System.out.println("\t--max-transfer-size=<bytes>: largest file that FTOPEN accepts (default: 4294967296).");
+        System.out.println("\t--max-open-transfers=<n>: resumable transfers a user may have open at once (default: 16).");
+        System.out.println("\t--compression-threshold=<bytes>: compress frames of this size for clients that ask for it, 0 to refuse (default: 256).");
+        System.out.println("\t--message-store=<dir>: store messages to offline users in this directory and deliver them at login.");
+        System.out.println("\t--message-sync-interval=<ms>: how often stored messages are forced to disk (default: 100).");
+        System.out.println("\t--message-segment-size=<bytes>: size of the files of the message store (default: 16777216).");
+        System.out.println("\t--message-retention=<ms>: drop stored messages that weren't delivered in time (default: 604800000).");
+        System.out.println("\t--group-history=<n>: number of recent messages every group keeps for GRPHIST, 0 to disable (default: 100).");
+        System.out.println("\t--group-history-budget=<bytes>: memory all group histories together may use (default: 16777216).");
+        System.out.println("\t--group-history-replay=<n>: send the last n messages of a group to members that join it (default: 0).");
+        System.out.println("\t--key-batch-interval=<ms>: how often key changes are pushed to KEYDIR clients (default: 100).");
+        System.out.println("\t--handshake-timeout=<ms>: disconnect clients that don't send HELO in time, 0 to disable (default: 30000).");
+        System.out.println("\t--idle-timeout=<ms>: disconnect clients that don't send anything in time, 0 to disable (default: 0).");
+        System.out.println("\t--heartbeat=<ms>: send PING to quiet clients and disconnect them without PONG, 0 to disable (default: 0).");
+        System.out.println("\t--rate-limit=<commands/s>[:<burst>]: limit the commands per session, broadcasts count once per recipient, 0 to disable (default: 0).");
+        System.out.println("\t--byte-rate-limit=<bytes/s>[:<burst>]: limit the bytes received per session, 0 to disable (default: 0).");
+        System.out.println("\t--rate-limit-policy=<throttle|disconnect>: what to do with sessions over their limit (default: throttle).");
+        System.out.println("\t--metrics-port=<port>: serve Prometheus metrics at http://127.0.0.1:<port>/metrics.");
+        System.out.println("\t--admin=<user>[,<user>]: users that may use the STATS command.");
+        System.out.println("");
+
+        if (args.length == 0) {
+            System.out.println("Starting the server with the default configuration.");
+        } else {
+            System.out.println("Starting the server with:");
+        }
+
+        ServerConfiguration config = new ServerConfiguration();
+        for (String arg : args) {
+            if(arg.startsWith("--port=")) {
+                config.setPort(Integer.parseInt(arg.substring("--port=".length())));
+                System.out.println(" * Port: " + config.getPort());
+            } else if(arg.startsWith("--cluster=")) {
+                config.setClusterAddress(arg.substring("--cluster=".length()));
+                System.out.println(" * Cluster node: " + config.getClusterAddress());
+            } else if(arg.startsWith("--peers=")) {
+                for (String peer : arg.substring("--peers=".length()).split(",")) {
+                    config.addPeer(peer);
+                }
+                System.out.println(" * Cluster peers: " + config.getPeers());
+            } else if(arg.startsWith("--cluster-secret=")) {
+                config.setClusterSecret(arg.substring("--cluster-secret=".length()));
+                System.out.println(" * Cluster secret set");
+            } else if(arg.equals("--no-colors")) {
+                config.setShowColors(false);
+                System.out.println(" * Colors in debug message disabled");
+            } else if(arg.startsWith("--log-level=")) {
+                config.setLogLevel(Log.Level.valueOf(arg.substring("--log-level=".length()).toUpperCase()));
+                System.out.println(" * Log level: " + config.getLogLevel());
+            } else if(arg.startsWith("--log-sample=")) {
+                String[] sample = arg.substring("--log-sample=".length()).split(":");
+                config.setLogSampleRate(Log.Category.valueOf(sample[0].toUpperCase()), Integer.parseInt(sample[1]));
+                System.out.println(" * Logging 1 in " + sample[1] + " " + sample[0] + " entries");
+            } else if(arg.startsWith("--log-file=")) {
+                config.setLogFile(arg.substring("--log-file=".length()));
+                System.out.println(" * Logging to file " + config.getLogFile());
+            } else if(arg.startsWith("--log-binary=")) {
+                config.setLogBinaryFile(arg.substring("--log-binary=".length()));
+                System.out.println(" * Logging to binary file " + config.getLogBinaryFile());
+            } else if(arg.equals("--no-console-log")) {
+                config.setLogToConsole(false);
+                System.out.println(" * Console log disabled");
+            } else if(arg.equals("--bad-server-drop-msg")) {
+                config.setSimulateDroppedPackets(true);
+                System.out.println(" * Drop message simulation enabled");
+            } else if(arg.equals("--bad-server-corrupt")) {
+                config.setSimulateCorruptedPackets(true);
+                System.out.println(" * Corrupt message simulation enabled");
+            } else if(arg.equals("--bad-server-drop-client")) {
+                config.setSimulateConnectionLost(true);
+                System.out.println(" * Connection lost simulation (drop clients) enabled");
+            } else if(arg.equals("--bad-server")) {
+                config.setSimulateCorruptedPackets(true);
+                config.setSimulateDroppedPackets(true);
+                config.setSimulateConnectionLost(true);
+                System.out.println(" * Full bad server mode enabled");
+            } else if(arg.startsWith("--fault-seed=")) {
+                config.setFaultSeed(Long.parseLong(arg.substring("--fault-seed=".length())));
+            } else if(arg.startsWith("--fault-drop=")) {
+                config.setDropRate(Double.parseDouble(arg.substring("--fault-drop=".length())));
+                System.out.println(" * Dropping " + config.getDropRate() + " of the messages");
+            } else if(arg.startsWith("--fault-corrupt=")) {
+                config.setCorruptRate(Double.parseDouble(arg.substring("--fault-corrupt=".length())));
+                System.out.println(" * Corrupting " + config.getCorruptRate() + " of the messages");
+            } else if(arg.startsWith("--fault-duplicate=")) {
+                config.setDuplicateRate(Double.parseDouble(arg.substring("--fault-duplicate=".length())));
+                System.out.println(" * Duplicating " + config.getDuplicateRate() + " of the messages");
+            } else if(arg.startsWith("--fault-reorder=")) {
+                config.setReorderRate(Double.parseDouble(arg.substring("--fault-reorder=".length())));
+                System.out.println(" * Reordering " + config.getReorderRate() + " of the messages");
+            } else if(arg.startsWith("--fault-latency=")) {
+                String[] latency = arg.substring("--fault-latency=".length()).split(":");
+                config.setLatency(Long.parseLong(latency[0]), latency.length > 1 ? Long.parseLong(latency[1]) : 0);
+                System.out.println(" * Latency: " + config.getLatency() + " ms + up to " + config.getLatencyJitter() + " ms jitter");
+            } else if(arg.startsWith("--fault-bandwidth=")) {
+                config.setBandwidth(Long.parseLong(arg.substring("--fault-bandwidth=".length())));
+                System.out.println(" * Bandwidth per client: " + config.getBandwidth() + " bytes/s");
+            } else if(arg.equals("--nio")) {
+                config.setUseNio(true);
+                System.out.println(" * NIO transport enabled");
+            } else if(arg.equals("--virtual-threads")) {
+                if (Server.isVirtualThreadsSupported()) {
+                    config.setUseVirtualThreads(true);
+                    System.out.println(" * Virtual threads enabled");
+                } else {
+                    System.out.println("Virtual threads need Java 21 or newer, this is Java " + Runtime.version().feature() + ".");
+                    return;
+                }
+            } else if(arg.startsWith("--selector-threads=")) {
+                config.setSelectorThreads(Integer.parseInt(arg.substring("--selector-threads=".length())));
+                System.out.println(" * Selector threads: " + config.getSelectorThreads());
+            } else if(arg.startsWith("--outbound-queue-size=")) {
+                config.setOutboundQueueSize(Long.parseLong(arg.substring("--outbound-queue-size=".length())));
+                System.out.println(" * Outbound queue size: " + config.getOutboundQueueSize() + " bytes");
+            } else if(arg.startsWith("--slow-consumer=")) {
+                String policy = arg.substring("--slow-consumer=".length()).toUpperCase();
+                config.setSlowConsumerPolicy(OutboundQueue.SlowConsumerPolicy.valueOf(policy));
+                System.out.println(" * Slow consumer policy: " + config.getSlowConsumerPolicy());
+            } else if(arg.startsWith("--slow-consumer-timeout=")) {
+                config.setSlowConsumerTimeout(Long.parseLong(arg.substring("--slow-consumer-timeout=".length())));
+                System.out.println(" * Slow consumer timeout: " + config.getSlowConsumerTimeout() + " ms");
+            } else if(arg.equals("--spool-transfers")) {
+                config.setSpoolTransfers(true);
+                System.out.println(" * Spooling file transfers");
+            } else if(arg.startsWith("--max-transfer-size=")) {
+                config.setMaxTransferSize(Long.parseLong(arg.substring("--max-transfer-size=".length())));
+                System.out.println(" * Max transfer size: " + config.getMaxTransferSize() + " bytes");
+            } else if(arg.startsWith("--max-open-transfers=")) {
+                config.setMaxOpenTransfers(Integer.parseInt(arg.substring("--max-open-transfers=".length())));
+                System.out.println(" * Max open transfers per user: " + config.getMaxOpenTransfers());
+            } else if(arg.startsWith("--compression-threshold=")) {
+                config.setCompressionThreshold(Integer.parseInt(arg.substring("--compression-threshold=".length())));
+                System.out.println(" * Compression threshold: " + config.getCompressionThreshold() + " bytes");
+            } else if(arg.startsWith("--message-store=")) {
+                config.setMessageStore(arg.substring("--message-store=".length()));
+                System.out.println(" * Message store: " + config.getMessageStore());
+            } else if(arg.startsWith("--message-sync-interval=")) {
+                config.setMessageSyncInterval(Long.parseLong(arg.substring("--message-sync-interval=".length())));
+                System.out.println(" * Message sync interval: " + config.getMessageSyncInterval() + " ms");
+            } else if(arg.startsWith("--message-segment-size=")) {
+                config.setMessageSegmentSize(Integer.parseInt(arg.substring("--message-segment-size=".length())));
+                System.out.println(" * Message segment size: " + config.getMessageSegmentSize() + " bytes");
+            } else if(arg.startsWith("--message-retention=")) {
+                config.setMessageRetention(Long.parseLong(arg.substring("--message-retention=".length())));
+                System.out.println(" * Message retention: " + config.getMessageRetention() + " ms");
+            } else if(arg.startsWith("--group-history=")) {
+                config.setGroupHistorySize(Integer.parseInt(arg.substring("--group-history=".length())));
+                System.out.println(" * Group history: " + config.getGroupHistorySize() + " messages");
+            } else if(arg.startsWith("--group-history-budget=")) {
+                config.setGroupHistoryBudget(Long.parseLong(arg.substring("--group-history-budget=".length())));
+                System.out.println(" * Group history budget: " + config.getGroupHistoryBudget() + " bytes");
+            } else if(arg.startsWith("--group-history-replay=")) {
+                config.setGroupHistoryReplay(Integer.parseInt(arg.substring("--group-history-replay=".length())));
+                System.out.println(" * Replaying " + config.getGroupHistoryReplay() + " messages on JNGRP");
+            } else if(arg.startsWith("--key-batch-interval=")) {
+                config.setKeyBatchInterval(Long.parseLong(arg.substring("--key-batch-interval=".length())));
+                System.out.println(" * Key batch interval: " + config.getKeyBatchInterval() + " ms");
+            } else if(arg.startsWith("--handshake-timeout=")) {
+                config.setHandshakeTimeout(Long.parseLong(arg.substring("--handshake-timeout=".length())));
+                System.out.println(" * Handshake timeout: " + config.getHandshakeTimeout() + " ms");
+            } else if(arg.startsWith("--idle-timeout=")) {
+                config.setIdleTimeout(Long.parseLong(arg.substring("--idle-timeout=".length())));
+                System.out.println(" * Idle timeout: " + config.getIdleTimeout() + " ms");
+            } else if(arg.startsWith("--rate-limit=")) {
+                String[] limit = arg.substring("--rate-limit=".length()).split(":");
+                config.setCommandRateLimit(Long.parseLong(limit[0]), limit.length > 1 ? Long.parseLong(limit[1]) : 0);
+                System.out.println(" * Rate limit: " + config.getCommandRateLimit() + " commands/s, burst " + config.getCommandBurst());
+            } else if(arg.startsWith("--byte-rate-limit=")) {
+                String[] limit = arg.substring("--byte-rate-limit=".length()).split(":");
+                config.setByteRateLimit(Long.parseLong(limit[0]), limit.length > 1 ? Long.parseLong(limit[1]) : 0);
+                System.out.println(" * Byte rate limit: " + config.getByteRateLimit() + " bytes/s, burst " + config.getByteBurst());
+            } else if(arg.startsWith("--rate-limit-policy=")) {
+                String policy = arg.substring("--rate-limit-policy=".length()).toUpperCase();
+                config.setRateLimitPolicy(TokenBucket.LimitPolicy.valueOf(policy));
+                System.out.println(" * Rate limit policy: " + config.getRateLimitPolicy());
+            } else if(arg.startsWith("--heartbeat=")) {
+                config.setHeartbeatInterval(Long.parseLong(arg.substring("--heartbeat=".length())));
+                System.out.println(" * Heartbeat interval: " + config.getHeartbeatInterval() + " ms");
+            } else if(arg.startsWith("--metrics-port=")) {
+                config.setMetricsPort(Integer.parseInt(arg.substring("--metrics-port=".length())));
+                System.out.println(" * Metrics endpoint on port " + config.getMetricsPort());
+            } else if(arg.startsWith("--admin=")) {
+                for (String admin : arg.substring("--admin=".length()).split(",")) {
+                    config.addAdminUser(admin);
+                }
+                System.out.println(" * Admin users: " + config.getAdminUsers());
+            }
+        }
+        if (FaultInjector.isEnabled(config) || config.doSimulateConnectionLost()) {
+            System.out.println(" * Fault seed: " + config.getFaultSeed() + " (replay with --fault-seed=" + config.getFaultSeed() + ")");
+        }
+        System.out.println("-------------------------------");
+        System.out.println("\tversion:\t"+ config.VERSION);
+        System.out.println("\tport:\t\t"+ config.getPort());
+        System.out.println("-------------------------------");
+        try {
+            Log.configure(config);
+        } catch (IOException e) {
+            System.out.println("Cannot open the log: " + e.getMessage());
+            return;
+        }
+        new Server(config).run();
+    }
+}
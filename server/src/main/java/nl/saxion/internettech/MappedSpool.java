@@ -0,0 +1,107 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A spool file of a fixed size that is accessed through memory mappings. The file is mapped in
+ * segments of 64 MB when they are first used, so files larger than a single mapping are supported
+ * and only the parts that are in use take address space. Reads return views of the mapping, which
+ * can be written to a socket without copying them into the JVM.
+ */
+public class MappedSpool {
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private Path path;
+    private FileChannel channel;
+    private long size;
+    private MappedByteBuffer[] segments;
+
+    private MappedSpool(Path path, FileChannel channel, long size) {
+        this.path = path;
+        this.channel = channel;
+        this.size = size;
+        this.segments = new MappedByteBuffer[(int) (size / SEGMENT_SIZE + (size % SEGMENT_SIZE == 0 ? 0 : 1))];
+    }
+
+    /**
+     * Creates a new temporary spool file.
+     *
+     * @param size The size of the file in bytes.
+     * @return Returns the spool.
+     */
+    public static MappedSpool create(long size) throws IOException {
+        if (size < 0 || size / SEGMENT_SIZE >= Integer.MAX_VALUE) {
+            throw new IOException("Invalid spool size: " + size);
+        }
+        Path path = Files.createTempFile("transfer", ".spool");
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        // Only reserves the size, the file stays sparse until it is written.
+        file.setLength(size);
+        return new MappedSpool(path, file.getChannel(), size);
+    }
+
+    /**
+     * Copies the remaining bytes of the source to the spool.
+     *
+     * @param offset The position in the spool to write at.
+     * @param src    The bytes to write. All remaining bytes are consumed.
+     */
+    public void write(long offset, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            MappedByteBuffer segment = segment(offset);
+            int index = (int) (offset % SEGMENT_SIZE);
+            int n = Math.min(src.remaining(), segment.capacity() - index);
+            segment.put(index, src, src.position(), n);
+            src.position(src.position() + n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Returns a read-only view of a part of the spool. The view ends at the end of a segment, so
+     * it may be shorter than requested.
+     *
+     * @param offset The position in the spool to read from.
+     * @param length The maximum number of bytes to read.
+     * @return Returns the view.
+     */
+    public ByteBuffer read(long offset, int length) throws IOException {
+        MappedByteBuffer segment = segment(offset);
+        int index = (int) (offset % SEGMENT_SIZE);
+        int n = Math.min(length, segment.capacity() - index);
+        return segment.slice(index, n).asReadOnlyBuffer();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Closes and deletes the spool file. Views that are still in use stay valid until they are
+     * garbage collected.
+     */
+    public void delete() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            Log.log(Log.Level.WARN, Log.Category.TRANSFER, null, "Exception when removing spool file: ", e.getMessage());
+        }
+    }
+
+    private synchronized MappedByteBuffer segment(long offset) throws IOException {
+        int number = (int) (offset / SEGMENT_SIZE);
+        if (segments[number] == null) {
+            long start = (long) number * SEGMENT_SIZE;
+            segments[number] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+        return segments[number];
+    }
+}
@@ -0,0 +1,283 @@
+package nl.saxion.internettech;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class Message {
+    public enum MessageType {
+        HELO,
+        SENDKEY,
+        GETKEY,
+        KEYDIR,
+        BCST,
+        LSTUS,
+        MSG,
+        MKGRP,
+        JNGRP,
+        LSTGRP,
+        BCGRP,
+        LVGRP,
+        KICK,
+        GRPHIST,
+        TRNSFR,
+        FTOPEN,
+        FTCHUNK,
+        FTRESUME,
+        FTGET,
+        FTACK,
+        STATS,
+        PING,
+        PONG,
+        QUIT,
+        UNKOWN,
+    }
+
+    // Message types indexed by the length of their name, so a verb is classified by comparing
+    // it with at most a few candidates without creating a substring for it.
+    private static final MessageType[][] TYPES_BY_LENGTH = buildTypeTable();
+
+    private static final String[] NO_ARGUMENTS = new String[0];
+
+    private String line;
+    private MessageType type;
+    private String payload;
+    private String[] arguments;
+    private int[] argumentOffsets;
+    // Only set for binary frames, see BinaryProtocol.
+    private byte[] argumentBytes;
+    private ByteBuffer body;
+    private long bodyLength;
+
+    public Message(String line) {
+        this.line = line;
+        this.type = parseMessageType(line);
+    }
+
+    /**
+     * Creates a message from a binary frame. The arguments are only decoded when they are used.
+     *
+     * @param type       The command.
+     * @param arguments  The encoded arguments.
+     * @param body       The body, or null when the body is streamed to an upload.
+     * @param bodyLength The length of the body.
+     */
+    public Message(MessageType type, byte[] arguments, ByteBuffer body, long bodyLength) {
+        this.type = type;
+        this.argumentBytes = arguments;
+        this.body = body;
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * @return Returns true when the message was received as a binary frame.
+     */
+    public boolean isBinary() {
+        return argumentBytes != null;
+    }
+
+    /**
+     * @return Returns the raw body of a binary frame, or null for a line or a streamed body.
+     */
+    public ByteBuffer getBody() {
+        return body == null ? null : body.duplicate();
+    }
+
+    /**
+     * @return Returns the raw body of a binary frame as an array, or null.
+     */
+    public byte[] getBodyBytes() {
+        if (body == null) {
+            return null;
+        }
+        byte[] bytes = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return Returns the length of the body of a binary frame, 0 for a line.
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Gets the message type. The type is determined once, when the message is created.
+     * @return  Return a message type if it can be parsed correctly or UKNOWN if
+     *          the message type cannot be derived.
+     */
+    public MessageType getMessageType() {
+        return type;
+    }
+
+    /**
+     * Gets the payload of the message. This is interpreted as the raw message line
+     * without the message type.
+     * @return  Returns the raw line minus the message type. If the message type is
+     *          unkown then raw line is returned.
+     */
+    public String getPayload() {
+        if (payload == null) {
+            payload = parsePayload();
+        }
+        return payload;
+    }
+
+    /**
+     * Gets a single argument of the payload. Arguments are separated by a single space.
+     * @param index The index of the argument, starting at 0.
+     * @return  Returns the argument or an empty string if the payload has fewer arguments.
+     */
+    public String getArgument(int index) {
+        splitArguments();
+        if (index >= arguments.length) {
+            return "";
+        }
+        if (arguments[index] == null) {
+            arguments[index] = getPayload().substring(argumentOffsets[index], argumentOffsets[index + 1] - 1);
+        }
+        return arguments[index];
+    }
+
+    /**
+     * @return  Returns the number of arguments in the payload. An empty payload has one (empty)
+     *          argument.
+     */
+    public int getArgumentCount() {
+        splitArguments();
+        return arguments.length;
+    }
+
+    /**
+     * Gets the rest of the payload, starting at an argument. Use this for commands that end with
+     * free text, like BCGRP.
+     * @param index The index of the first argument to include.
+     * @return  Returns the payload from the start of the argument or an empty string if the
+     *          payload has fewer arguments.
+     */
+    public String getRemainder(int index) {
+        splitArguments();
+        if (index == 0) {
+            return getPayload();
+        }
+        if (index >= arguments.length) {
+            return "";
+        }
+        return getPayload().substring(argumentOffsets[index]);
+    }
+
+    private String parsePayload() {
+        if (argumentBytes != null) {
+            return new String(argumentBytes, StandardCharsets.UTF_8);
+        }
+
+        // Return the raw line if we don't know what the message type is.
+        if (type.equals(MessageType.UNKOWN)) {
+            return line;
+        }
+
+        // Return an empty string if the raw line was null or
+        // the length of the line is smaller than the message type plus one (this
+        // should prevent index out of bounds in the substring).
+        if (line == null || line.length() < type.name().length() + 1) {
+            return "";
+        }
+
+        // Return the part after the message type (excluding whitespace).
+        return line.substring(type.name().length() + 1);
+    }
+
+    @Override
+    public String toString() {
+        if (line != null) {
+            return line;
+        }
+        String text = type + " " + getPayload();
+        return bodyLength > 0 ? text + " <" + bodyLength + " bytes>" : text;
+    }
+
+    /**
+     * Finds the start of every argument in a single pass over the payload. The offsets array has
+     * one extra entry, so argument i ends one character before offset i + 1.
+     */
+    private void splitArguments() {
+        if (arguments != null) {
+            return;
+        }
+        String text = getPayload();
+        if (text == null) {
+            arguments = NO_ARGUMENTS;
+            argumentOffsets = new int[]{0};
+            return;
+        }
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == ' ') {
+                count++;
+            }
+        }
+        argumentOffsets = new int[count + 1];
+        int next = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == ' ') {
+                argumentOffsets[next++] = i + 1;
+            }
+        }
+        argumentOffsets[count] = text.length() + 1;
+        arguments = new String[count];
+    }
+
+    /**
+     * Parses the first word in the message in an attempt to get the message type. The first word
+     * ends at the first whitespace character.
+     */
+    private static MessageType parseMessageType(String line) {
+        if (line == null || line.length() == 0) {
+            return MessageType.UNKOWN;
+        }
+        int length = 0;
+        while (length < line.length() && !isWhitespace(line.charAt(length))) {
+            length++;
+        }
+        if (length >= TYPES_BY_LENGTH.length) {
+            return MessageType.UNKOWN;
+        }
+        for (MessageType candidate : TYPES_BY_LENGTH[length]) {
+            if (line.regionMatches(0, candidate.name(), 0, length)) {
+                return candidate;
+            }
+        }
+        return MessageType.UNKOWN;
+    }
+
+    /**
+     * Matches the same characters as \s in a regular expression.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static MessageType[][] buildTypeTable() {
+        int maxLength = 0;
+        for (MessageType type : MessageType.values()) {
+            maxLength = Math.max(maxLength, type.name().length());
+        }
+        MessageType[][] table = new MessageType[maxLength + 1][];
+        for (int length = 0; length <= maxLength; length++) {
+            int count = 0;
+            for (MessageType type : MessageType.values()) {
+                if (type.name().length() == length) {
+                    count++;
+                }
+            }
+            table[length] = new MessageType[count];
+            count = 0;
+            for (MessageType type : MessageType.values()) {
+                if (type.name().length() == length) {
+                    table[length][count++] = type;
+                }
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,579 @@
+package nl.saxion.internettech;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps private messages for users that are offline and delivers them, in the order they were
+ * sent, when the user logs in again. Only users that logged in before are known; messages to
+ * other names are still refused.
+ *
+ * The messages are appended to a log of segment files of a fixed size that are mapped into
+ * memory, so appending is a copy into the page cache. The mapped pages are forced to disk by a
+ * background thread once per sync interval, so a crash loses at most the messages of the last
+ * interval. That thread also opens the next segment ahead of time, so a full segment is replaced
+ * without touching the disk on the path of a message. Every record has a length and a CRC32; recovery stops at the first record that
+ * doesn't match, which is where a crash cut the log off.
+ *
+ * <pre>
+ *   record:    int length, int crc32 of the payload, payload
+ *   payload:   byte type, long timestamp, ...
+ *     USER       name                            the user logged in for the first time
+ *     MESSAGE    recipient, sender, byte base64, int length, body
+ *     DELIVERED  recipient                       the messages before it were delivered
+ * </pre>
+ *
+ * The index of the undelivered messages and the known users is written to a checkpoint file
+ * every checkpoint interval, with the position in the log it describes. On startup the
+ * checkpoint is loaded and only the records after that position are read, so startup doesn't
+ * depend on the size of the log. Segments before the checkpoint without undelivered messages
+ * are deleted; messages that are older than the retention are dropped.
+ */
+public class MessageStore {
+
+    private static final byte USER = 1;
+    private static final byte MESSAGE = 2;
+    private static final byte DELIVERED = 3;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int CHECKPOINT_MAGIC = 0x4D534743;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 10000;
+
+    /**
+     * The result of storing a message.
+     */
+    public enum Result {
+        // The message was appended to the log.
+        STORED,
+        // The recipient is online after all, the message must be sent to it.
+        ONLINE,
+        // Nobody ever logged in with the name.
+        UNKNOWN,
+        // The message doesn't fit in a segment.
+        TOO_LARGE,
+        // The message couldn't be written to the log.
+        FAILED
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long retention;
+    // The segments by their number, the last one is appended to.
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    // The next segment, opened ahead by the background thread. Null until it's ready.
+    private Segment spare;
+    // Full segments with records that haven't been forced to disk yet.
+    private final List<Segment> sealed = new ArrayList<>();
+    private final Set<String> knownUsers = new HashSet<>();
+    // The undelivered messages of every recipient, in the order they were sent.
+    private final Map<String, ArrayDeque<Pointer>> pending = new HashMap<>();
+    private int pendingCount = 0;
+    // Set when the active segment has records that haven't been forced to disk.
+    private boolean dirty = false;
+    // The position the last checkpoint describes, segments before it are no longer read at startup.
+    private long checkpointSegment = -1;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens the store in the directory and recovers its state: the checkpoint plus the records
+     * that were appended after it.
+     *
+     * @param conf The configuration with the directory, segment size and retention.
+     */
+    public MessageStore(ServerConfiguration conf) throws IOException {
+        this.directory = Path.of(conf.getMessageStore());
+        this.segmentSize = conf.getMessageSegmentSize();
+        this.retention = conf.getMessageRetention();
+        Files.createDirectories(directory);
+        recover();
+        if (active == null) {
+            active = open(0, true);
+            segments.put(0L, active);
+        }
+    }
+
+    /**
+     * Forces the appended messages to disk once per interval and writes a checkpoint every
+     * {@link #CHECKPOINT_INTERVAL_MILLIS}.
+     *
+     * @param syncInterval The sync interval in milliseconds.
+     */
+    public void start(long syncInterval) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "message-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores a private message for a recipient that is offline.
+     *
+     * @param recipient The recipient.
+     * @param sender    The sender.
+     * @param message   The message, or null.
+     * @param message64 The message in Base64, or null when the message is given.
+     * @param offline   Checks, under the lock of the store, that the recipient is still
+     *                  offline. A login delivers the stored messages under the same lock, so a
+     *                  message is either stored before the login or sent to the user.
+     * @return Returns what happened with the message.
+     */
+    public synchronized Result store(String recipient, String sender, byte[] message, String message64, BooleanSupplier offline) {
+        if (!knownUsers.contains(recipient)) {
+            return Result.UNKNOWN;
+        }
+        if (!offline.getAsBoolean()) {
+            return Result.ONLINE;
+        }
+        byte[] body = message != null ? message : message64.getBytes(StandardCharsets.US_ASCII);
+        byte[] to = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] from = sender.getBytes(StandardCharsets.UTF_8);
+        long timestamp = System.currentTimeMillis();
+        ByteBuffer payload = ByteBuffer.allocate(9 + 2 + to.length + 2 + from.length + 1 + 4 + body.length);
+        payload.put(MESSAGE).putLong(timestamp);
+        putString(payload, to);
+        putString(payload, from);
+        payload.put((byte) (message != null ? 0 : 1)).putInt(body.length).put(body).flip();
+        if (RECORD_HEADER_SIZE + payload.remaining() > segmentSize) {
+            return Result.TOO_LARGE;
+        }
+        try {
+            Pointer pointer = append(payload, timestamp);
+            pending.computeIfAbsent(recipient, name -> new ArrayDeque<>()).add(pointer);
+            pointer.segment.live++;
+            pendingCount++;
+            return Result.STORED;
+        } catch (IOException e) {
+            Log.log(Log.Level.ERROR, Log.Category.SERVER, recipient, "Cannot store message: ", e.getMessage());
+            return Result.FAILED;
+        }
+    }
+
+    /**
+     * Called when a user logged in: remembers the user and takes its stored messages.
+     *
+     * @param username The user.
+     * @return Returns the WHISPER frames of the stored messages in the order they were sent,
+     *         they are no longer stored.
+     */
+    public synchronized List<Frame> login(String username) {
+        List<Frame> frames = new ArrayList<>();
+        try {
+            if (knownUsers.add(username)) {
+                ByteBuffer payload = ByteBuffer.allocate(9 + 2 + username.length() * 3);
+                payload.put(USER).putLong(System.currentTimeMillis());
+                putString(payload, username.getBytes(StandardCharsets.UTF_8));
+                append(payload.flip(), 0);
+            }
+            ArrayDeque<Pointer> messages = pending.remove(username);
+            if (messages == null) {
+                return frames;
+            }
+            for (Pointer pointer : messages) {
+                frames.add(read(pointer));
+                pointer.segment.live--;
+                pendingCount--;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(9 + 2 + username.length() * 3);
+            payload.put(DELIVERED).putLong(System.currentTimeMillis());
+            putString(payload, username.getBytes(StandardCharsets.UTF_8));
+            append(payload.flip(), 0);
+        } catch (IOException e) {
+            Log.log(Log.Level.ERROR, Log.Category.SERVER, username, "Cannot update the message store: ", e.getMessage());
+        }
+        return frames;
+    }
+
+    /**
+     * @return Returns the number of messages that wait for their recipient.
+     */
+    public synchronized int size() {
+        return pendingCount;
+    }
+
+    /**
+     * Appends a record to the active segment, or to a new segment when it doesn't fit.
+     *
+     * @return Returns where the record is.
+     */
+    private Pointer append(ByteBuffer payload, long timestamp) throws IOException {
+        int length = payload.remaining();
+        if (active.position + RECORD_HEADER_SIZE + length > active.map.capacity()) {
+            roll();
+        }
+        crc.reset();
+        crc.update(payload.duplicate());
+        MappedByteBuffer map = active.map;
+        int position = active.position;
+        // The payload goes first, so a record with a valid header is complete.
+        map.put(position + RECORD_HEADER_SIZE, payload, payload.position(), length);
+        map.putInt(position + 4, (int) crc.getValue());
+        map.putInt(position, length);
+        active.position += RECORD_HEADER_SIZE + length;
+        dirty = true;
+        return new Pointer(active, position, timestamp);
+    }
+
+    /**
+     * Starts the next segment. The full segment is forced to disk by the background thread. The
+     * next segment is normally opened already; it's only opened here when segments fill up
+     * faster than the background thread runs.
+     */
+    private void roll() throws IOException {
+        long number = active.number + 1;
+        Segment next = spare;
+        spare = null;
+        if (next == null) {
+            next = open(number, true);
+        }
+        if (dirty) {
+            sealed.add(active);
+        }
+        active = next;
+        segments.put(number, active);
+        dirty = false;
+    }
+
+    private Segment open(long number, boolean create) throws IOException {
+        Path path = directory.resolve(String.format("segment-%016d.log", number));
+        try (FileChannel channel = create
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mapping beyond the end of the file grows it, the mapping stays valid after closing.
+            int size = create ? segmentSize : (int) Math.max(channel.size(), RECORD_HEADER_SIZE);
+            return new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    private Frame read(Pointer pointer) {
+        ByteBuffer record = pointer.segment.map.duplicate();
+        int length = record.getInt(pointer.offset);
+        record.position(pointer.offset + RECORD_HEADER_SIZE).limit(pointer.offset + RECORD_HEADER_SIZE + length);
+        record.get();
+        record.getLong();
+        getString(record);
+        String sender = getString(record);
+        boolean base64 = record.get() == 1;
+        byte[] body = new byte[record.getInt()];
+        record.get(body);
+        return base64
+                ? Frame.withBody("WHISPER " + sender, null, new String(body, StandardCharsets.US_ASCII))
+                : Frame.withBody("WHISPER " + sender, body, null);
+    }
+
+    /**
+     * Forces what was appended since the last sync to disk and opens the next segment when that
+     * hasn't been done yet. Runs outside the lock, appending goes on while the pages are written.
+     */
+    private void sync() {
+        try {
+            List<Segment> full;
+            Segment segment = null;
+            long next = -1;
+            synchronized (this) {
+                full = takeSealed();
+                if (dirty) {
+                    dirty = false;
+                    segment = active;
+                }
+                if (spare == null) {
+                    next = active.number + 1;
+                }
+            }
+            for (Segment old : full) {
+                old.map.force();
+            }
+            if (segment != null) {
+                segment.map.force();
+            }
+            if (next >= 0) {
+                Segment opened = open(next, true);
+                synchronized (this) {
+                    // A roll may have opened the segment itself in the meantime, the mapping
+                    // then refers to the same file and is simply not used.
+                    if (spare == null && active.number + 1 == next) {
+                        spare = opened;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // An exception would cancel the schedule.
+            Log.log(Log.Level.ERROR, Log.Category.SERVER, null, "Message store sync failed: ", e.toString());
+        }
+    }
+
+    /**
+     * @return Returns the full segments that still have to be forced to disk. Only called under
+     *         the lock.
+     */
+    private List<Segment> takeSealed() {
+        List<Segment> full = new ArrayList<>(sealed);
+        sealed.clear();
+        return full;
+    }
+
+    /**
+     * Drops the messages that are older than the retention, writes the index and deletes the
+     * segments that are no longer needed.
+     */
+    private void checkpoint() {
+        try {
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            Segment segment;
+            List<Segment> full;
+            List<Segment> unused = new ArrayList<>();
+            synchronized (this) {
+                expire(System.currentTimeMillis() - retention);
+                segment = active;
+                full = takeSealed();
+                writeCheckpoint(new DataOutputStream(index));
+                checkpointSegment = active.number;
+                for (Segment old : segments.headMap(checkpointSegment).values()) {
+                    if (old.live == 0) {
+                        unused.add(old);
+                    }
+                }
+                for (Segment old : unused) {
+                    segments.remove(old.number);
+                }
+            }
+            // The log up to the checkpoint must be on disk before the checkpoint is.
+            for (Segment old : full) {
+                old.map.force();
+            }
+            segment.map.force();
+            Path tmp = directory.resolve("checkpoint.tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = ByteBuffer.wrap(index.toByteArray());
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, directory.resolve("checkpoint"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (Segment old : unused) {
+                Files.deleteIfExists(old.path);
+            }
+        } catch (IOException | RuntimeException e) {
+            // An exception would cancel the schedule.
+            Log.log(Log.Level.ERROR, Log.Category.SERVER, null, "Message store checkpoint failed: ", e.toString());
+        }
+    }
+
+    private void expire(long deadline) {
+        for (Iterator<ArrayDeque<Pointer>> it = pending.values().iterator(); it.hasNext(); ) {
+            ArrayDeque<Pointer> messages = it.next();
+            while (!messages.isEmpty() && messages.peek().timestamp < deadline) {
+                messages.poll().segment.live--;
+                pendingCount--;
+            }
+            if (messages.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private void writeCheckpoint(DataOutputStream out) throws IOException {
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeLong(active.number);
+        out.writeInt(active.position);
+        out.writeInt(knownUsers.size());
+        for (String user : knownUsers) {
+            out.writeUTF(user);
+        }
+        out.writeInt(pending.size());
+        for (Map.Entry<String, ArrayDeque<Pointer>> entry : pending.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (Pointer pointer : entry.getValue()) {
+                out.writeLong(pointer.segment.number);
+                out.writeInt(pointer.offset);
+                out.writeLong(pointer.timestamp);
+            }
+        }
+    }
+
+    /**
+     * Loads the checkpoint and reads the records that were appended after it.
+     */
+    private void recover() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (var files = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length())));
+            }
+        }
+        numbers.sort(null);
+        for (long number : numbers) {
+            segments.put(number, open(number, false));
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        long startSegment = segments.firstKey();
+        int startOffset = 0;
+        Path checkpoint = directory.resolve("checkpoint");
+        if (Files.exists(checkpoint)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpoint)))) {
+                if (in.readInt() != CHECKPOINT_MAGIC) {
+                    throw new IOException("Not a checkpoint");
+                }
+                startSegment = in.readLong();
+                startOffset = in.readInt();
+                readCheckpoint(in);
+                checkpointSegment = startSegment;
+            }
+        }
+
+        int records = 0;
+        for (Segment segment : segments.tailMap(startSegment).values()) {
+            int position = segment.number == startSegment ? startOffset : 0;
+            while (true) {
+                ByteBuffer payload = readRecord(segment.map, position);
+                if (payload == null) {
+                    break;
+                }
+                replay(segment, position, payload);
+                position += RECORD_HEADER_SIZE + payload.remaining();
+                records++;
+            }
+            segment.position = position;
+        }
+        active = segments.lastEntry().getValue();
+        for (ArrayDeque<Pointer> messages : pending.values()) {
+            for (Pointer pointer : messages) {
+                pointer.segment.live++;
+            }
+        }
+        expire(System.currentTimeMillis() - retention);
+        Log.log(Log.Level.INFO, Log.Category.SERVER, null, "Message store recovered, records replayed: ", records);
+    }
+
+    private void readCheckpoint(DataInputStream in) throws IOException {
+        int users = in.readInt();
+        for (int i = 0; i < users; i++) {
+            knownUsers.add(in.readUTF());
+        }
+        int recipients = in.readInt();
+        for (int i = 0; i < recipients; i++) {
+            String recipient = in.readUTF();
+            int count = in.readInt();
+            ArrayDeque<Pointer> messages = new ArrayDeque<>(count);
+            for (int j = 0; j < count; j++) {
+                Segment segment = segments.get(in.readLong());
+                int offset = in.readInt();
+                long timestamp = in.readLong();
+                if (segment == null) {
+                    throw new IOException("Checkpoint refers to a missing segment");
+                }
+                messages.add(new Pointer(segment, offset, timestamp));
+            }
+            pending.put(recipient, messages);
+            pendingCount += count;
+        }
+    }
+
+    /**
+     * @return Returns the payload of the record at the position, or null when there is no
+     *         complete record.
+     */
+    private ByteBuffer readRecord(MappedByteBuffer map, int position) {
+        if (position + RECORD_HEADER_SIZE > map.capacity()) {
+            return null;
+        }
+        int length = map.getInt(position);
+        if (length <= 0 || position + RECORD_HEADER_SIZE + length > map.capacity()) {
+            return null;
+        }
+        ByteBuffer payload = map.duplicate();
+        payload.position(position + RECORD_HEADER_SIZE).limit(position + RECORD_HEADER_SIZE + length);
+        crc.reset();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue() == map.getInt(position + 4) ? payload : null;
+    }
+
+    private void replay(Segment segment, int position, ByteBuffer payload) {
+        byte type = payload.get(payload.position());
+        long timestamp = payload.getLong(payload.position() + 1);
+        ByteBuffer fields = payload.duplicate().position(payload.position() + 9);
+        String user = getString(fields);
+        if (type == USER) {
+            knownUsers.add(user);
+        } else if (type == MESSAGE) {
+            pending.computeIfAbsent(user, name -> new ArrayDeque<>()).add(new Pointer(segment, position, timestamp));
+            pendingCount++;
+        } else if (type == DELIVERED) {
+            ArrayDeque<Pointer> messages = pending.remove(user);
+            if (messages != null) {
+                pendingCount -= messages.size();
+            }
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putShort((short) value.length).put(value);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static class Segment {
+        final long number;
+        final Path path;
+        final MappedByteBuffer map;
+        // Where the next record goes.
+        int position = 0;
+        // The number of undelivered messages in the segment.
+        int live = 0;
+
+        Segment(long number, Path path, MappedByteBuffer map) {
+            this.number = number;
+            this.path = path;
+            this.map = map;
+        }
+    }
+
+    private static class Pointer {
+        final Segment segment;
+        final int offset;
+        final long timestamp;
+
+        Pointer(Segment segment, int offset, long timestamp) {
+            this.segment = segment;
+            this.offset = offset;
+            this.timestamp = timestamp;
+        }
+    }
+}
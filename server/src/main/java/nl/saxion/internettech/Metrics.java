@@ -0,0 +1,294 @@
+package nl.saxion.internettech;
+
+import com.sun.net.httpserver.HttpServer;
+import nl.saxion.internettech.Message.MessageType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The runtime metrics of the server: counters, histograms and gauges. Updates only touch striped
+ * counters (LongAdder and {@link Histogram}), so threads that handle messages don't contend on
+ * them. Gauges are read from the server state when the metrics are requested.
+ *
+ * The metrics can be read in three ways: as JMX attributes, in the Prometheus text format over
+ * HTTP on the loopback interface and with the STATS command.
+ */
+public class Metrics implements MetricsMXBean {
+
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private LongAdder[] commands = new LongAdder[TYPES.length];
+    // Handler latency in nanoseconds by command.
+    private Histogram[] handlerLatency = new Histogram[TYPES.length];
+    private LongAdder bytesReceived = new LongAdder();
+    private LongAdder bytesSent = new LongAdder();
+    private LongAdder transferBytes = new LongAdder();
+    // The bytes that compressed frames saved, compared to sending them uncompressed.
+    private LongAdder compressionSaved = new LongAdder();
+    // Commands refused and sessions disconnected because they went over their rate limit.
+    private LongAdder rateLimited = new LongAdder();
+    // The number of recipients of BCST, BCGRP and GETNEWKEY.
+    private Histogram fanOut = new Histogram();
+    private Map<String, Gauge> gauges = new LinkedHashMap<>();
+
+    public Metrics() {
+        for (int i = 0; i < TYPES.length; i++) {
+            commands[i] = new LongAdder();
+            handlerLatency[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records a handled command.
+     *
+     * @param type  The command.
+     * @param nanos The time it took to handle it.
+     */
+    public void command(MessageType type, long nanos) {
+        commands[type.ordinal()].increment();
+        handlerLatency[type.ordinal()].record(nanos);
+    }
+
+    public void received(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void sent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Records a frame that was sent compressed.
+     *
+     * @param size       The size of the frame without compression.
+     * @param compressed The size that was sent.
+     */
+    public void compressed(long size, long compressed) {
+        compressionSaved.add(size - compressed);
+    }
+
+    /**
+     * Records the bytes of a file transfer that were received from the sender.
+     */
+    public void transferred(long bytes) {
+        transferBytes.add(bytes);
+    }
+
+    /**
+     * Records a session that went over its rate limit.
+     */
+    public void rateLimited() {
+        rateLimited.increment();
+    }
+
+    /**
+     * Records the number of recipients a message was sent to.
+     */
+    public void fanOut(int recipients) {
+        fanOut.record(recipients);
+    }
+
+    /**
+     * Adds a value that is read from the server state whenever the metrics are requested.
+     * Register all gauges before the metrics are published.
+     *
+     * @param name  The name, in lower case with underscores.
+     * @param help  A description of the value.
+     * @param value Reads the current value.
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("nl.saxion.internettech:type=Metrics"));
+        } catch (JMException e) {
+            Log.log(Log.Level.WARN, Log.Category.SERVER, null, "Cannot register the metrics MBean: ", e.getMessage());
+        }
+    }
+
+    /**
+     * Serves the metrics in the Prometheus text format at /metrics. Only local clients can
+     * connect, the metrics are not meant for the outside world.
+     *
+     * @param port The port to listen on.
+     */
+    public void startHttpEndpoint(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        http.start();
+    }
+
+    /**
+     * @return Returns all metrics in the Prometheus text exposition format.
+     */
+    public String prometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP chat_commands_total Commands handled.\n");
+        text.append("# TYPE chat_commands_total counter\n");
+        for (MessageType type : TYPES) {
+            text.append("chat_commands_total{command=\"").append(type).append("\"} ").append(commands[type.ordinal()].sum()).append('\n');
+        }
+        text.append("# HELP chat_handler_latency_seconds Time to handle a command.\n");
+        text.append("# TYPE chat_handler_latency_seconds summary\n");
+        for (MessageType type : TYPES) {
+            Histogram.Snapshot latency = handlerLatency[type.ordinal()].snapshot();
+            if (latency.getCount() > 0) {
+                summary(text, "chat_handler_latency_seconds", "{command=\"" + type + "\"", latency, 1e9);
+            }
+        }
+        text.append("# HELP chat_fan_out_recipients Recipients of a broadcast.\n");
+        text.append("# TYPE chat_fan_out_recipients summary\n");
+        summary(text, "chat_fan_out_recipients", "{", fanOut.snapshot(), 1);
+        counter(text, "chat_bytes_received_total", "Bytes received from clients.", bytesReceived.sum());
+        counter(text, "chat_bytes_sent_total", "Bytes sent to clients.", bytesSent.sum());
+        counter(text, "chat_transfer_bytes_total", "File transfer bytes received from senders.", transferBytes.sum());
+        counter(text, "chat_compression_saved_bytes_total", "Bytes saved by sending frames compressed.", compressionSaved.sum());
+        counter(text, "chat_rate_limited_total", "Times a session went over its rate limit.", rateLimited.sum());
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            text.append("# HELP chat_").append(gauge.getKey()).append(' ').append(gauge.getValue().help).append('\n');
+            text.append("# TYPE chat_").append(gauge.getKey()).append(" gauge\n");
+            text.append("chat_").append(gauge.getKey()).append(' ').append(gauge.getValue().value.getAsLong()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return Returns the lines of the STATS response: a name and a value per line, latencies in
+     *         microseconds.
+     */
+    public List<String> statsLines() {
+        List<String> lines = new ArrayList<>();
+        for (MessageType type : TYPES) {
+            Histogram.Snapshot latency = handlerLatency[type.ordinal()].snapshot();
+            if (latency.getCount() > 0) {
+                lines.add("command " + type + " count=" + latency.getCount()
+                        + " p50=" + micros(latency.getPercentile(50)) + "us"
+                        + " p99=" + micros(latency.getPercentile(99)) + "us"
+                        + " p999=" + micros(latency.getPercentile(99.9)) + "us"
+                        + " max=" + micros(latency.getMax()) + "us");
+            }
+        }
+        Histogram.Snapshot recipients = fanOut.snapshot();
+        lines.add("fan_out count=" + recipients.getCount() + " p50=" + recipients.getPercentile(50)
+                + " p99=" + recipients.getPercentile(99) + " max=" + recipients.getMax());
+        lines.add("bytes_received " + bytesReceived.sum());
+        lines.add("bytes_sent " + bytesSent.sum());
+        lines.add("transfer_bytes " + transferBytes.sum());
+        lines.add("compression_saved_bytes " + compressionSaved.sum());
+        lines.add("rate_limited " + rateLimited.sum());
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            lines.add(gauge.getKey() + " " + gauge.getValue().value.getAsLong());
+        }
+        return lines;
+    }
+
+    @Override
+    public Map<String, Long> getCommands() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (MessageType type : TYPES) {
+            counts.put(type.name(), commands[type.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getHandlerLatencyP99Micros() {
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        for (MessageType type : TYPES) {
+            latencies.put(type.name(), micros(handlerLatency[type.ordinal()].snapshot().getPercentile(99)));
+        }
+        return latencies;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getTransferBytes() {
+        return transferBytes.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionSaved.sum();
+    }
+
+    @Override
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().value.getAsLong());
+        }
+        return values;
+    }
+
+    private static void summary(StringBuilder text, String name, String labels, Histogram.Snapshot snapshot, double unit) {
+        String separator = labels.equals("{") ? "" : ",";
+        for (double quantile : QUANTILES) {
+            text.append(name).append(labels).append(separator).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(snapshot.getPercentile(quantile * 100) / unit).append('\n');
+        }
+        String plainLabels = labels.equals("{") ? "" : labels + "}";
+        text.append(name).append("_sum").append(plainLabels).append(' ').append(snapshot.getSum() / unit).append('\n');
+        text.append(name).append("_count").append(plainLabels).append(' ').append(snapshot.getCount()).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static class Gauge {
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package nl.saxion.internettech;
+
+import java.util.Map;
+
+/**
+ * The server metrics as shown in JMX consoles, under nl.saxion.internettech:type=Metrics.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return Returns the number of commands handled, by command.
+     */
+    Map<String, Long> getCommands();
+
+    /**
+     * @return Returns the 99th percentile of the time it takes to handle a command in
+     *         microseconds, by command.
+     */
+    Map<String, Long> getHandlerLatencyP99Micros();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getTransferBytes();
+
+    long getCompressionSavedBytes();
+
+    long getRateLimited();
+
+    /**
+     * @return Returns the current value of every gauge, like the number of sessions.
+     */
+    Map<String, Long> getGauges();
+}
@@ -0,0 +1,112 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+/**
+ * A sorted index of names for listings. The complete listing is encoded once and cached until
+ * the index changes, so clients that poll it don't rebuild it. Prefix searches and pages walk the
+ * sorted set from the first match, so they cost the size of the page instead of the size of the
+ * index.
+ */
+public class NameIndex {
+
+    private ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+    private volatile long version = 0;
+    private volatile Listing listing;
+
+    /**
+     * Brings the index in line with the directory for a single name. The directory is checked
+     * while holding the lock, so concurrent updates for the same name can't leave a stale entry.
+     *
+     * @param name    The name that was added to or removed from the directory.
+     * @param present Tells whether a name is in the directory.
+     */
+    public synchronized void refresh(String name, Predicate<String> present) {
+        boolean changed = present.test(name) ? names.add(name) : names.remove(name);
+        if (changed) {
+            version++;
+        }
+    }
+
+    /**
+     * Returns the complete listing, built from the names in sorted order and cached until the
+     * index changes. A listing with the same layout is reused as long as nothing changed.
+     *
+     * @param head       Text before the names.
+     * @param separator  Text between two names.
+     * @param nameSuffix Text after every name.
+     * @param tail       Text after the names.
+     * @return Returns the listing.
+     */
+    public Frame list(String head, String separator, String nameSuffix, String tail) {
+        long current = version;
+        Listing cached = listing;
+        if (cached != null && cached.version == current && cached.head.equals(head)) {
+            return cached.frame;
+        }
+        Frame frame = Frame.of(format(names, head, separator, nameSuffix, tail));
+        listing = new Listing(current, head, frame);
+        return frame;
+    }
+
+    /**
+     * Returns a page of the names that start with a prefix, in sorted order.
+     *
+     * @param prefix The prefix, empty for all names.
+     * @param after  The last name of the previous page, or null for the first page.
+     * @param limit  The maximum number of names on the page.
+     * @return Returns up to limit + 1 names; an extra name means there is a next page.
+     */
+    public List<String> page(String prefix, String after, int limit) {
+        List<String> page = new ArrayList<>();
+        Iterable<String> from = after != null && after.compareTo(prefix) >= 0
+                ? names.tailSet(after, false)
+                : names.tailSet(prefix, true);
+        for (String name : from) {
+            if (!name.startsWith(prefix) || page.size() > limit) {
+                break;
+            }
+            page.add(name);
+        }
+        return page;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Joins names into a listing line.
+     */
+    public static String format(Iterable<String> names, String head, String separator, String nameSuffix, String tail) {
+        StringBuilder line = new StringBuilder(head);
+        boolean first = true;
+        for (String name : names) {
+            if (!first) {
+                line.append(separator);
+            }
+            line.append(name).append(nameSuffix);
+            first = false;
+        }
+        return line.append(tail).toString();
+    }
+
+    private static class Listing {
+        final long version;
+        final String head;
+        final Frame frame;
+
+        Listing(long version, String head, Frame frame) {
+            this.version = version;
+            this.head = head;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking transport for the server. One acceptor thread accepts the incoming connections and
+ * hands them out round robin to a fixed number of reactor threads. Every reactor owns a
+ * {@link Selector} and does all reads, writes and command handling for its connections, so the
+ * number of threads no longer grows with the number of clients.
+ */
+public class NioTransport {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    private Server server;
+    private ServerConfiguration conf;
+    private Reactor[] reactors;
+
+    public NioTransport(Server server, ServerConfiguration conf) {
+        this.server = server;
+        this.conf = conf;
+    }
+
+    /**
+     * Starts the reactor threads and runs the accept loop on the calling thread.
+     */
+    public void run() throws IOException {
+        reactors = new Reactor[Math.max(1, conf.getSelectorThreads())];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread thread = new ReactorThread(reactors[i], "reactor-" + i);
+            reactors[i].thread = thread;
+            thread.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(conf.getPort()));
+
+        int next = 0;
+        while (true) {
+            // Wait for an incoming client-connection request (blocking).
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            // Hand the connection to the next reactor.
+            reactors[next].register(channel);
+            next = (next + 1) % reactors.length;
+        }
+    }
+
+    /**
+     * A reactor runs a selector loop for a subset of the connections.
+     */
+    private class Reactor implements Runnable {
+
+        private Selector selector;
+        private Thread thread;
+        private Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+        // Connections that got data from this reactor during the current round. They are flushed
+        // once at the end of the round, so everything queued in the round goes out in one write.
+        private ArrayList<NioConnection> dirtyConnections = new ArrayList<>();
+
+        Reactor() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(NioConnection connection) {
+            pendingFlushes.add(connection);
+            selector.wakeup();
+        }
+
+        boolean inReactorThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Runs a task on the reactor thread, right away if called by the reactor itself.
+         */
+        void execute(Runnable task) {
+            if (inReactorThread()) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerNewChannels();
+                    runTasks();
+                    flushPendingConnections();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.closeNow();
+                            continue;
+                        }
+                        try {
+                            if (key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (RuntimeException e) {
+                            fail(connection, e);
+                        }
+                    }
+                    flushDirtyConnections();
+                } catch (IOException | RuntimeException e) {
+                    Log.log(Log.Level.ERROR, Log.Category.SERVER, null, "Reactor Exception: ", e.toString());
+                }
+            }
+        }
+
+        /**
+         * Closes a connection whose handling failed. The reactor carries on with its other
+         * connections.
+         */
+        private void fail(NioConnection connection, RuntimeException e) {
+            Log.log(Log.Level.ERROR, Log.Category.CONNECTION, null, "Exception while handling a connection: ", e.toString());
+            try {
+                connection.closeNow();
+            } catch (RuntimeException closeException) {
+                Log.log(Log.Level.ERROR, Log.Category.CONNECTION, null, "Exception when closing connection: ", closeException.toString());
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                NioConnection connection = new NioConnection(this, channel);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    continue;
+                }
+                try {
+                    connection.client = server.acceptClient(connection);
+                    connection.client.onConnect();
+                } catch (RuntimeException e) {
+                    if (connection.client != null) {
+                        fail(connection, e);
+                    } else {
+                        Log.log(Log.Level.ERROR, Log.Category.CONNECTION, null, "Exception while accepting a connection: ", e.toString());
+                        connection.key.cancel();
+                        try {
+                            channel.close();
+                        } catch (IOException closeException) {
+                            Log.log(Log.Level.WARN, Log.Category.CONNECTION, null, "Exception when closing channel: ", closeException.getMessage());
+                        }
+                    }
+                }
+            }
+            flushDirtyConnections();
+        }
+
+        private void markDirty(NioConnection connection) {
+            if (!connection.dirty) {
+                connection.dirty = true;
+                dirtyConnections.add(connection);
+            }
+        }
+
+        private void flushDirtyConnections() {
+            for (int i = 0; i < dirtyConnections.size(); i++) {
+                NioConnection connection = dirtyConnections.get(i);
+                connection.dirty = false;
+                try {
+                    connection.flush();
+                } catch (RuntimeException e) {
+                    fail(connection, e);
+                }
+            }
+            dirtyConnections.clear();
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.log(Log.Level.ERROR, Log.Category.SERVER, null, "Reactor task Exception: ", e.toString());
+                }
+            }
+        }
+
+        private void flushPendingConnections() {
+            NioConnection connection;
+            while ((connection = pendingFlushes.poll()) != null) {
+                connection.flushScheduled.set(false);
+                try {
+                    connection.flush();
+                } catch (RuntimeException e) {
+                    fail(connection, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Client connection that is served by a reactor. All writes are queued; writes from other
+     * threads wake up the reactor, writes from a reactor are flushed at the end of its round.
+     */
+    private class NioConnection implements ClientConnection {
+
+        private Reactor reactor;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private Server.ClientThread client;
+        private OutboundQueue outboundQueue = new OutboundQueue(conf);
+        private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private boolean dirty = false;
+        private volatile boolean closeRequested = false;
+        private volatile boolean abortRequested = false;
+        private boolean closed = false;
+        // The reasons reads are paused, one bit per Pause. Only used on the reactor thread.
+        private int pauses = 0;
+
+        NioConnection(Reactor reactor, SocketChannel channel) {
+            this.reactor = reactor;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(ByteBuffer data) {
+            write(data, true);
+        }
+
+        @Override
+        public void write(ByteBuffer data, boolean mayBlock) {
+            if (closeRequested) {
+                return;
+            }
+            mayBlock = mayBlock && mayBlock();
+            OutboundQueue.Result result = outboundQueue.offer(data, mayBlock);
+            if (result == OutboundQueue.Result.OVERFLOW) {
+                Log.log(Log.Level.WARN, Log.Category.CONNECTION, null, "[SLOW CONSUMER] disconnecting, bytes queued: ", outboundQueue.getQueuedBytes());
+                abortRequested = true;
+                closeRequested = true;
+            }
+            requestFlush();
+        }
+
+        @Override
+        public void writeBulk(ByteBuffer data, Runnable onWritten) {
+            if (closeRequested) {
+                if (onWritten != null) {
+                    onWritten.run();
+                }
+                return;
+            }
+            outboundQueue.force(data, mayBlock(), onWritten);
+            requestFlush();
+        }
+
+        @Override
+        public void writeFile(FileRegion region) {
+            if (closeRequested) {
+                region.release();
+                return;
+            }
+            outboundQueue.force(region, mayBlock());
+            requestFlush();
+        }
+
+        @Override
+        public Stream openStream() {
+            OutboundQueue.Stream stream = outboundQueue.openStream();
+            return new Stream() {
+                @Override
+                public void write(ByteBuffer data, Runnable onWritten) {
+                    stream.force(data, mayBlock(), onWritten);
+                    requestFlush();
+                }
+
+                @Override
+                public void writeFile(FileRegion region) {
+                    stream.force(region, mayBlock());
+                    requestFlush();
+                }
+
+                @Override
+                public void close() {
+                    stream.close();
+                    requestFlush();
+                }
+            };
+        }
+
+        @Override
+        public void suspendReads(Pause reason) {
+            reactor.execute(() -> {
+                pauses |= 1 << reason.ordinal();
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            });
+        }
+
+        @Override
+        public void resumeReads(Pause reason) {
+            reactor.execute(() -> {
+                pauses &= ~(1 << reason.ordinal());
+                if (pauses == 0 && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            });
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            reactor.execute(task);
+        }
+
+        @Override
+        public void close() {
+            closeRequested = true;
+            requestFlush();
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outboundQueue;
+        }
+
+        private void requestFlush() {
+            if (reactor.inReactorThread()) {
+                reactor.markDirty(this);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                reactor.scheduleFlush(this);
+            }
+        }
+
+        /**
+         * Reads whatever is available and hands it to the client for decoding. Only called by
+         * the reactor thread.
+         */
+        void read() {
+            ByteBuffer buffer = reactor.readBuffer;
+            buffer.clear();
+            try {
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    closeNow();
+                    return;
+                }
+                buffer.flip();
+                client.onBytes(buffer);
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        /**
+         * Writes as much of the queued data as the socket accepts. When the socket is full the
+         * reactor waits for it to become writable again. Only called by the reactor thread.
+         */
+        void flush() {
+            if (closed) {
+                return;
+            }
+            if (abortRequested) {
+                closeNow();
+                return;
+            }
+            try {
+                ByteBuffer[] batch = reactor.writeBatch;
+                int count;
+                while (true) {
+                    FileRegion region = outboundQueue.peekRegion();
+                    if (region != null) {
+                        // Let the kernel copy the file straight to the socket.
+                        region.transferTo(channel);
+                        if (region.hasRemaining()) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        outboundQueue.remove();
+                        continue;
+                    }
+                    count = outboundQueue.peek(batch);
+                    if (count == 0) {
+                        break;
+                    }
+                    // Write everything that is queued with a single gathering write.
+                    channel.write(batch, 0, count);
+                    for (int i = 0; i < count; i++) {
+                        if (batch[i].hasRemaining()) {
+                            break;
+                        }
+                        outboundQueue.remove();
+                    }
+                    boolean socketFull = batch[count - 1].hasRemaining();
+                    Arrays.fill(batch, 0, count, null);
+                    if (socketFull) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeRequested) {
+                    closeNow();
+                }
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeRequested = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.log(Log.Level.WARN, Log.Category.CONNECTION, null, "Exception when closing channel: ", e.getMessage());
+            }
+            outboundQueue.clear();
+            client.onDisconnect();
+        }
+    }
+
+    /**
+     * @return Returns true when called by a reactor thread of any NIO transport.
+     */
+    static boolean isReactorThread() {
+        return Thread.currentThread() instanceof ReactorThread;
+    }
+
+    /**
+     * @return Returns false when the calling thread must not wait for room in an outbound queue:
+     *         reactor threads serve many clients and the timing wheel runs the timers of all of
+     *         them, they must never wait for a slow one.
+     */
+    static boolean mayBlock() {
+        return !isReactorThread() && !TimingWheel.isWheelThread();
+    }
+
+    /**
+     * Marks the threads that run a reactor.
+     */
+    private static class ReactorThread extends Thread {
+        ReactorThread(Runnable reactor, String name) {
+            super(reactor, name);
+        }
+    }
+}
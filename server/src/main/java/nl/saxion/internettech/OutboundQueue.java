@@ -0,0 +1,557 @@
+package nl.saxion.internettech;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of the data that still has to be written to a single client. Any thread can add
+ * data, a single writer (the writer thread of a socket connection or the reactor of an NIO
+ * connection) takes it out. The queue is bounded by the number of queued bytes; what happens when
+ * a client doesn't keep up is decided by the {@link SlowConsumerPolicy}.
+ *
+ * The queue has two lanes. Chat messages go in the chat lane, the self-contained chunks of file
+ * transfers (FTDATA) in the bulk lane. Chat goes first, but after every {@link #FAIR_SHARE} bytes
+ * of chat the bulk lane may send a chunk, so a large download neither delays chat by more than a
+ * chunk nor starves when there is a lot of chat. Only the chat lane counts for the slow consumer
+ * policy; the bulk lane is bounded by the window of each transfer.
+ *
+ * Data that must reach the client without anything in between, like a file that is relayed while
+ * it's being uploaded, is written to a {@link Stream}. The stream takes the place of a message in
+ * the chat lane; once the writer gets to it, nothing else is sent until the stream is closed.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do with new data for a client whose queue is full.
+     */
+    public enum SlowConsumerPolicy {
+        // Drop the new data.
+        DROP,
+        // Disconnect the client.
+        DISCONNECT,
+        // Wait until there is room. The client is disconnected when the wait times out.
+        BLOCK
+    }
+
+    /**
+     * The outcome of adding data to the queue.
+     */
+    public enum Result {
+        QUEUED,
+        DROPPED,
+        OVERFLOW
+    }
+
+    // Totals over all queues.
+    private static final LongAdder totalQueuedMessages = new LongAdder();
+    private static final LongAdder totalQueuedBytes = new LongAdder();
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder totalOverflows = new LongAdder();
+
+    // The number of chat bytes after which a waiting bulk chunk gets its turn.
+    public static final int FAIR_SHARE = 64 * 1024;
+
+    private ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<Entry> bulk = new ConcurrentLinkedQueue<>();
+    private AtomicInteger depth = new AtomicInteger();
+    private AtomicLong queuedBytes = new AtomicLong();
+    private AtomicLong chatBytes = new AtomicLong();
+    private volatile int highWaterMark = 0;
+    private LongAdder dropped = new LongAdder();
+
+    private long capacity;
+    private SlowConsumerPolicy policy;
+    private long blockTimeoutMillis;
+
+    // Only used by producers that wait for room with the BLOCK policy.
+    private Lock lock = new ReentrantLock();
+    private Condition notFull = lock.newCondition();
+    private volatile int waitingProducers = 0;
+
+    // Run once when the queued bytes drop to their low water mark, see whenDrained.
+    private ConcurrentLinkedQueue<DrainListener> drainListeners = new ConcurrentLinkedQueue<>();
+
+    // Only used by the consumer: the items that were peeked but not removed yet, in the order
+    // they are written, the stream that is being sent and the chat bytes since the last chunk.
+    private ArrayDeque<Entry> selected = new ArrayDeque<>();
+    private Stream stream;
+    private long chatSinceBulk = 0;
+    // Set when the queue was cleared; whatever is added after that is discarded right away.
+    private volatile boolean discarded = false;
+
+    public OutboundQueue(ServerConfiguration conf) {
+        this(conf.getOutboundQueueSize(), conf.getSlowConsumerPolicy(), conf.getSlowConsumerTimeout());
+    }
+
+    public OutboundQueue(long capacity, SlowConsumerPolicy policy, long blockTimeoutMillis) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * Adds data to the queue, applying the slow consumer policy when the queue is full. A single
+     * item is always accepted by an empty queue, even when it is larger than the capacity.
+     *
+     * @param data     The data to queue.
+     * @param mayBlock Whether the calling thread is allowed to wait for room. Reactor threads
+     *                 must never wait; for them BLOCK behaves like DISCONNECT.
+     * @return Returns whether the data was queued, dropped or the client should be disconnected.
+     */
+    public Result offer(ByteBuffer data, boolean mayBlock) {
+        int size = data.remaining();
+        if (!hasRoomFor(chatBytes, size)) {
+            switch (policy) {
+                case DROP:
+                    dropped.increment();
+                    totalDropped.increment();
+                    return Result.DROPPED;
+                case BLOCK:
+                    if (mayBlock && awaitRoomFor(chatBytes, size)) {
+                        break;
+                    }
+                    totalOverflows.increment();
+                    return Result.OVERFLOW;
+                default:
+                    totalOverflows.increment();
+                    return Result.OVERFLOW;
+            }
+        }
+        add(new Entry(data, null, size, null, true, null), queue);
+        return Result.QUEUED;
+    }
+
+    /**
+     * Adds data to the bulk lane regardless of the capacity. This is meant for data that may not
+     * be dropped, like the chunks of a file transfer.
+     *
+     * @param data     The data to queue.
+     * @param mayBlock Whether the calling thread is allowed to wait for room first.
+     */
+    public void force(ByteBuffer data, boolean mayBlock) {
+        force(data, mayBlock, null);
+    }
+
+    /**
+     * Adds data to the bulk lane regardless of the capacity and runs a callback when it leaves
+     * the queue, either because it was written or because the queue was cleared.
+     *
+     * @param data      The data to queue.
+     * @param mayBlock  Whether the calling thread is allowed to wait for room first.
+     * @param onRemoved Called when the data is removed from the queue, may be null.
+     */
+    public void force(ByteBuffer data, boolean mayBlock, Runnable onRemoved) {
+        add(bulkEntry(data, mayBlock, onRemoved), bulk);
+    }
+
+    /**
+     * Adds a part of a file to the bulk lane regardless of the capacity. The region is released
+     * when it leaves the queue.
+     *
+     * @param region   The file region to queue.
+     * @param mayBlock Whether the calling thread is allowed to wait for room first.
+     */
+    public void force(FileRegion region, boolean mayBlock) {
+        add(bulkEntry(region, mayBlock), bulk);
+    }
+
+    /**
+     * Opens a stream in the chat lane. Everything that is queued before it is sent first, then
+     * only the data of the stream until it's closed.
+     *
+     * @return Returns the stream.
+     */
+    public Stream openStream() {
+        Stream opened = new Stream();
+        add(new Entry(null, null, 0, null, true, opened), queue);
+        return opened;
+    }
+
+    /**
+     * @return Returns the next data to write without removing it, or null if nothing can be sent
+     *         right now or the next item is a file region. Only the consumer may call this.
+     */
+    public ByteBuffer peek() {
+        Entry entry = next();
+        return entry != null ? entry.data : null;
+    }
+
+    /**
+     * @return Returns the next item to write if it is a file region, otherwise null.
+     */
+    public FileRegion peekRegion() {
+        Entry entry = next();
+        return entry != null ? entry.region : null;
+    }
+
+    /**
+     * @return Returns true when there is something that can be sent right now. Only the consumer
+     *         may call this; data may be queued while nothing can be sent, because an open
+     *         stream waits for more data.
+     */
+    public boolean hasNext() {
+        return next() != null;
+    }
+
+    /**
+     * Fills the array with the next data to write, without removing it. Only the consumer may
+     * call this.
+     *
+     * @param batch The array to fill.
+     * @return Returns the number of buffers put in the array.
+     */
+    public int peek(ByteBuffer[] batch) {
+        int count = 0;
+        for (Entry entry : selected) {
+            if (count == batch.length || entry.data == null) {
+                // A file region is sent on its own.
+                return count;
+            }
+            batch[count++] = entry.data;
+        }
+        while (count < batch.length) {
+            Entry entry = select();
+            if (entry == null) {
+                break;
+            }
+            selected.add(entry);
+            if (entry.data == null) {
+                break;
+            }
+            batch[count++] = entry.data;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the data that was peeked first, after it has been written completely.
+     */
+    public void remove() {
+        Entry entry = selected.poll();
+        if (entry == null) {
+            entry = select();
+        }
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    /**
+     * @return Returns the item that is written next, without removing it.
+     */
+    private Entry next() {
+        Entry entry = selected.peek();
+        if (entry == null) {
+            entry = select();
+            if (entry != null) {
+                selected.add(entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Takes the item that is written next out of its lane. An open stream goes before
+     * everything; otherwise chat goes first, except that a bulk chunk gets its turn after every
+     * FAIR_SHARE bytes of chat.
+     */
+    private Entry select() {
+        while (true) {
+            if (stream != null) {
+                // Read the flag first, the data that was written before closing is queued by then.
+                boolean closed = stream.closed;
+                Entry entry = stream.entries.poll();
+                if (entry != null) {
+                    return entry;
+                }
+                if (!closed) {
+                    // Nothing may pass the stream, wait for its producer.
+                    return null;
+                }
+                stream = null;
+            }
+            Entry chat = queue.peek();
+            if (!bulk.isEmpty() && (chat == null || chatSinceBulk >= FAIR_SHARE)) {
+                chatSinceBulk = 0;
+                return bulk.poll();
+            }
+            if (chat == null) {
+                return null;
+            }
+            queue.poll();
+            if (chat.stream != null) {
+                stream = chat.stream;
+                release(chat);
+                continue;
+            }
+            chatSinceBulk += chat.size;
+            return chat;
+        }
+    }
+
+    private void release(Entry entry) {
+        long size = entry.size;
+        depth.decrementAndGet();
+        long queued = queuedBytes.addAndGet(-size);
+        if (entry.chat) {
+            chatBytes.addAndGet(-size);
+        }
+        totalQueuedMessages.decrement();
+        totalQueuedBytes.add(-size);
+        if (entry.onRemoved != null) {
+            entry.onRemoved.run();
+        }
+        if (!drainListeners.isEmpty()) {
+            runDrainListeners(queued);
+        }
+        if (waitingProducers > 0) {
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Discards everything that is still queued, for example when the connection is closed.
+     */
+    public void clear() {
+        discarded = true;
+        Entry entry;
+        while ((entry = selected.poll()) != null) {
+            release(entry);
+        }
+        if (stream != null) {
+            discard(stream.entries);
+            stream = null;
+        }
+        discard();
+    }
+
+    /**
+     * Releases what is queued in the lanes. May be called by any thread once the queue has
+     * been cleared.
+     */
+    private void discard() {
+        discard(queue);
+        discard(bulk);
+    }
+
+    private void discard(Queue<Entry> lane) {
+        Entry entry;
+        while ((entry = lane.poll()) != null) {
+            if (entry.stream != null) {
+                discard(entry.stream.entries);
+            }
+            release(entry);
+        }
+    }
+
+    /**
+     * Runs a listener once, as soon as no more than the given number of bytes are queued. This
+     * lets a producer that can't wait, like a reactor thread, pause until the client caught up.
+     *
+     * @param lowWaterMark The number of queued bytes at which the listener runs.
+     * @param listener     The listener.
+     */
+    public void whenDrained(long lowWaterMark, Runnable listener) {
+        drainListeners.add(new DrainListener(lowWaterMark, listener));
+        // The queue may have drained before the listener was added.
+        runDrainListeners(queuedBytes.get());
+    }
+
+    private void runDrainListeners(long queued) {
+        for (DrainListener drainListener : drainListeners) {
+            // Removing it first makes sure only one thread runs it.
+            if (queued <= drainListener.lowWaterMark && drainListeners.remove(drainListener)) {
+                drainListener.listener.run();
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return depth.get() == 0;
+    }
+
+    /**
+     * @return Returns the number of queued items.
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return Returns the highest number of items that were queued at the same time.
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public static long getTotalQueuedMessages() {
+        return totalQueuedMessages.sum();
+    }
+
+    public static long getTotalQueuedBytes() {
+        return totalQueuedBytes.sum();
+    }
+
+    public static long getTotalDropped() {
+        return totalDropped.sum();
+    }
+
+    public static long getTotalOverflows() {
+        return totalOverflows.sum();
+    }
+
+    private boolean hasRoomFor(AtomicLong bytes, long size) {
+        long queued = bytes.get();
+        return queued == 0 || queued + size <= capacity;
+    }
+
+    private boolean awaitRoomFor(AtomicLong bytes, long size) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        lock.lock();
+        waitingProducers++;
+        try {
+            while (!hasRoomFor(bytes, size)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                notFull.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waitingProducers--;
+            lock.unlock();
+        }
+    }
+
+    private Entry bulkEntry(ByteBuffer data, boolean mayBlock, Runnable onRemoved) {
+        int size = data.remaining();
+        if (mayBlock && !hasRoomFor(queuedBytes, size)) {
+            awaitRoomFor(queuedBytes, size);
+        }
+        return new Entry(data, null, size, onRemoved, false, null);
+    }
+
+    private Entry bulkEntry(FileRegion region, boolean mayBlock) {
+        long size = region.remaining();
+        if (mayBlock && !hasRoomFor(queuedBytes, size)) {
+            awaitRoomFor(queuedBytes, size);
+        }
+        return new Entry(null, region, size, region::release, false, null);
+    }
+
+    private void add(Entry entry, Queue<Entry> lane) {
+        long size = entry.size;
+        queuedBytes.addAndGet(size);
+        if (entry.chat) {
+            chatBytes.addAndGet(size);
+        }
+        totalQueuedBytes.add(size);
+        totalQueuedMessages.increment();
+        int newDepth = depth.incrementAndGet();
+        if (newDepth > highWaterMark) {
+            highWaterMark = newDepth;
+        }
+        lane.add(entry);
+        if (discarded) {
+            // The queue was cleared in the meantime, nobody is going to send this.
+            discard(lane);
+        }
+    }
+
+    /**
+     * Data that is sent in one piece: once the writer gets to the stream, nothing else is sent
+     * until it's closed. Only a single thread may write to a stream.
+     */
+    public final class Stream {
+        private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<>();
+        private volatile boolean closed = false;
+
+        private Stream() {
+        }
+
+        /**
+         * Adds data to the stream regardless of the capacity.
+         *
+         * @param data      The data to queue.
+         * @param mayBlock  Whether the calling thread is allowed to wait for room first.
+         * @param onRemoved Called when the data is removed from the queue, may be null.
+         */
+        public void force(ByteBuffer data, boolean mayBlock, Runnable onRemoved) {
+            add(bulkEntry(data, mayBlock, onRemoved), entries);
+        }
+
+        /**
+         * Adds a part of a file to the stream regardless of the capacity.
+         *
+         * @param region   The file region to queue.
+         * @param mayBlock Whether the calling thread is allowed to wait for room first.
+         */
+        public void force(FileRegion region, boolean mayBlock) {
+            add(bulkEntry(region, mayBlock), entries);
+        }
+
+        /**
+         * Ends the stream, the rest of the queue is sent once the data of the stream has been.
+         */
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class DrainListener {
+        final long lowWaterMark;
+        final Runnable listener;
+
+        DrainListener(long lowWaterMark, Runnable listener) {
+            this.lowWaterMark = lowWaterMark;
+            this.listener = listener;
+        }
+    }
+
+    private static class Entry {
+        // Either data or region is set.
+        final ByteBuffer data;
+        final FileRegion region;
+        final long size;
+        final Runnable onRemoved;
+        // Whether it counts for the capacity of the chat lane.
+        final boolean chat;
+        // Set for the place of a stream in the chat lane, which has no data of its own.
+        final Stream stream;
+
+        Entry(ByteBuffer data, FileRegion region, long size, Runnable onRemoved, boolean chat, Stream stream) {
+            this.data = data;
+            this.region = region;
+            this.size = size;
+            this.onRemoved = onRemoved;
+            this.chat = chat;
+            this.stream = stream;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package nl.saxion.internettech;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The public keys of the logged in users, indexed by username. A key is parsed once when the user
+ * sends it; its Base64 form and the GETNEWKEY line that announces it are cached next to it, so
+ * serving a key to other users doesn't encode it again.
+ *
+ * Every change gets a new version number. Removed keys leave a tombstone with the version of the
+ * removal, so clients that know the directory up to some version can be sent only what changed
+ * after it. When there are too many tombstones the oldest are forgotten; clients that are further
+ * behind get the full directory instead.
+ */
+public class PublicKeyStore {
+
+    private static final int MAX_TOMBSTONES = 10000;
+
+    // KeyFactory instances are not thread safe, every thread parses with its own.
+    private static final ThreadLocal<KeyFactory> keyFactories = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("RSA is not supported", e);
+        }
+    });
+
+    private ConcurrentHashMap<String, Entry> keys = new ConcurrentHashMap<>();
+    // The version at which a key was removed, indexed by username.
+    private ConcurrentHashMap<String, Long> tombstones = new ConcurrentHashMap<>();
+    // Changes are numbered while holding the lock; readers only look at changes up to the
+    // published version, which are guaranteed to be in the maps.
+    private long lastVersion = 0;
+    private volatile long publishedVersion = 0;
+    // Deltas since versions before this one may miss removals.
+    private volatile long oldestDeltaVersion = 0;
+    private volatile Snapshot snapshot = new Snapshot(-1, null);
+
+    /**
+     * Parses and stores the key of a user, replacing the key the user had before.
+     *
+     * @param username The owner of the key.
+     * @param key64    The X.509 encoded key in Base64.
+     * @return Returns the stored entry.
+     * @throws GeneralSecurityException When the key can't be parsed.
+     */
+    public Entry register(String username, String key64) throws GeneralSecurityException {
+        byte[] encoded;
+        try {
+            encoded = Base64.getDecoder().decode(key64);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Key is not valid Base64", e);
+        }
+        return register(username, encoded);
+    }
+
+    /**
+     * Parses and stores a key that a binary client sent without Base64.
+     *
+     * @param username The owner of the key.
+     * @param encoded  The X.509 encoded key.
+     * @return Returns the stored entry.
+     * @throws GeneralSecurityException When the key can't be parsed.
+     */
+    public Entry register(String username, byte[] encoded) throws GeneralSecurityException {
+        PublicKey publicKey = keyFactories.get().generatePublic(new X509EncodedKeySpec(encoded));
+        synchronized (this) {
+            Entry entry = new Entry(username, publicKey, ++lastVersion);
+            keys.put(username, entry);
+            tombstones.remove(username);
+            publishedVersion = lastVersion;
+            return entry;
+        }
+    }
+
+    /**
+     * @param username The owner of the key.
+     * @return Returns the key entry of the user or null if the user didn't send a key.
+     */
+    public Entry get(String username) {
+        if (username == null) {
+            return null;
+        }
+        return keys.get(username);
+    }
+
+    /**
+     * Removes a key, unless the user registered a newer key in the meantime.
+     *
+     * @param entry The entry to remove.
+     */
+    public synchronized void remove(Entry entry) {
+        if (keys.remove(entry.getUsername(), entry)) {
+            tombstones.put(entry.getUsername(), ++lastVersion);
+            publishedVersion = lastVersion;
+            if (tombstones.size() > MAX_TOMBSTONES) {
+                forgetOldestTombstones();
+            }
+        }
+    }
+
+    /**
+     * @return Returns the version of the latest change.
+     */
+    public long getVersion() {
+        return publishedVersion;
+    }
+
+    /**
+     * Builds the response to KEYDIR: the full directory, or only the changes if the client
+     * knows an earlier version that is recent enough. The response is a single frame: a
+     * "+OK KEYDIR" line with the version, full or delta and the number of changes, followed by a
+     * "KEY username key" or "NOKEY username" line per change.
+     *
+     * @param since The version the client knows, or -1 for the full directory.
+     * @return Returns the response frame.
+     */
+    public Frame directory(long since) {
+        long version = publishedVersion;
+        if (since < oldestDeltaVersion || since > version) {
+            return snapshot(version);
+        }
+        return changes("+OK KEYDIR " + version + " delta", since, version);
+    }
+
+    /**
+     * Builds a KEYDELTA frame with the changes after a version, for pushing them to clients.
+     *
+     * @param since The first version that is not included.
+     * @param upTo  The last version that is included, at most {@link #getVersion()}.
+     * @return Returns the frame.
+     */
+    public Frame delta(long since, long upTo) {
+        return changes("KEYDELTA " + since + " " + upTo, since, upTo);
+    }
+
+    private Frame snapshot(long version) {
+        // Reconnecting clients all ask for the same snapshot, build it once per version.
+        Snapshot current = snapshot;
+        if (current.version == version) {
+            return current.frame;
+        }
+        Frame frame = changes("+OK KEYDIR " + version + " full", -1, version);
+        snapshot = new Snapshot(version, frame);
+        return frame;
+    }
+
+    private Frame changes(String header, long since, long upTo) {
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        for (Entry entry : keys.values()) {
+            if (entry.version > since && entry.version <= upTo) {
+                lines.append("\nKEY ").append(entry.username).append(' ').append(entry.base64);
+                count++;
+            }
+        }
+        if (since >= 0) {
+            for (Map.Entry<String, Long> tombstone : tombstones.entrySet()) {
+                if (tombstone.getValue() > since && tombstone.getValue() <= upTo) {
+                    lines.append("\nNOKEY ").append(tombstone.getKey());
+                    count++;
+                }
+            }
+        }
+        return Frame.of(header + " " + count + lines);
+    }
+
+    private void forgetOldestTombstones() {
+        // Keep the newest half.
+        long[] versions = new long[tombstones.size()];
+        int i = 0;
+        for (Long version : tombstones.values()) {
+            if (i < versions.length) {
+                versions[i++] = version;
+            }
+        }
+        Arrays.sort(versions, 0, i);
+        long cutoff = versions[i / 2];
+        for (Iterator<Long> it = tombstones.values().iterator(); it.hasNext(); ) {
+            if (it.next() < cutoff) {
+                it.remove();
+            }
+        }
+        oldestDeltaVersion = cutoff - 1;
+    }
+
+    /**
+     * @return Returns a live view of all keys.
+     */
+    public Collection<Entry> entries() {
+        return keys.values();
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * A parsed key with its encoded forms.
+     */
+    public static final class Entry {
+        private final String username;
+        private final PublicKey publicKey;
+        private final byte[] encoded;
+        private final String base64;
+        private final Frame newKeyFrame;
+        private final long version;
+
+        Entry(String username, PublicKey publicKey, long version) {
+            this.username = username;
+            this.publicKey = publicKey;
+            this.version = version;
+            // The canonical encoding, independent of how the client formatted the key.
+            this.encoded = publicKey.getEncoded();
+            this.base64 = Base64.getEncoder().encodeToString(encoded);
+            this.newKeyFrame = Frame.withBody("GETNEWKEY " + username, encoded, base64);
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        public String getBase64() {
+            return base64;
+        }
+
+        /**
+         * @return Returns the X.509 encoding. Don't modify the array, it's shared.
+         */
+        public byte[] getEncoded() {
+            return encoded;
+        }
+
+        /**
+         * @return Returns the GETNEWKEY line that announces this key to other users.
+         */
+        public Frame getNewKeyFrame() {
+            return newKeyFrame;
+        }
+
+        /**
+         * @return Returns the version of the directory in which this key was added.
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    private static class Snapshot {
+        final long version;
+        final Frame frame;
+
+        Snapshot(long version, Frame frame) {
+            this.version = version;
+            this.frame = frame;
+        }
+    }
+}
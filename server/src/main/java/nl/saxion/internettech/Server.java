@@ -0,0 +1,1827 @@
+package nl.saxion.internettech;
+
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static nl.saxion.internettech.ServerState.*;
+
+public class Server {
+
+    private static final Pattern USERNAME_PATTERN = Pattern.compile("[a-zA-Z0-9_]{3,14}");
+    private static final int TRANSFER_CHUNK_SIZE = 32 * 1024;
+    private static final long MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_PAGE_SIZE = 1000;
+    // Virtual threads exist since Java 21, the server is built for Java 17. Null when the JVM
+    // doesn't have them.
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    private ServerSocket serverSocket;
+    private Set<ClientThread> threads = ConcurrentHashMap.newKeySet();
+    private UserDirectory users = new UserDirectory();
+    private GroupDirectory groups;
+    private ServerConfiguration conf;
+    private PublicKeyStore publickeys = new PublicKeyStore();
+    // Buffers that carry the contents of file transfers to the recipients.
+    private BufferPool transferBuffers = new BufferPool(TRANSFER_CHUNK_SIZE, 512);
+    private TransferManager transfers;
+    // Key changes up to this version have been pushed to the key directory subscribers.
+    private long broadcastKeyVersion = 0;
+    private Metrics metrics = new Metrics();
+    // Runs the timers of all sessions: drops, handshake and idle timeouts and heartbeats.
+    private TimingWheel timers = new TimingWheel(10, TimeUnit.MILLISECONDS, 4096);
+    // Numbers the connections in the order they are accepted, seeds their simulated faults.
+    private AtomicLong connections = new AtomicLong();
+    // The other nodes, when the server runs as a node of a cluster.
+    private Cluster cluster;
+    // Messages for users that are offline, null when no store is configured.
+    private MessageStore messages;
+
+
+    public Server(ServerConfiguration conf) {
+        this.conf = conf;
+        this.groups = new GroupDirectory(conf.getGroupHistorySize(), conf.getGroupHistoryBudget());
+        this.transfers = new TransferManager(transferBuffers, conf, metrics);
+        this.cluster = new Cluster(this, conf, users, groups, publickeys);
+    }
+
+    /**
+     * Runs the server. The server listens for incoming client connections
+     * by opening a socket on a specific port.
+     */
+    public void run() {
+        // Create a socket to wait for clients.
+        try {
+            if (conf.isUseVirtualThreads() && VIRTUAL_THREADS == null) {
+                throw new IOException("Virtual threads need Java 21 or newer");
+            }
+            publishMetrics();
+            startKeyBroadcaster();
+            timers.start();
+            cluster.start();
+            if (conf.getMessageStore() != null) {
+                messages = new MessageStore(conf);
+                messages.start(conf.getMessageSyncInterval());
+            }
+
+            // The NIO transport serves all clients from a fixed number of selector threads.
+            if (conf.isUseNio()) {
+                new NioTransport(this, conf).run();
+                return;
+            }
+
+            serverSocket = new ServerSocket(conf.getPort());
+            while (true) {
+                // Wait for an incoming client-connection request (blocking).
+                Socket socket = serverSocket.accept();
+
+                // When a new connection has been established, start a new thread.
+                ClientThread ct = acceptClient(new SocketConnection(socket, conf, this::startThread));
+                startThread(ct);
+            }
+        } catch (IOException e) {
+            Log.log(Log.Level.ERROR, Log.Category.SERVER, null, "Server Exception: ", e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the gauges that are read from the server state and makes the metrics available
+     * through JMX and, when a port is configured, over HTTP.
+     */
+    private void publishMetrics() {
+        metrics.gauge("sessions", "Connected clients.", () -> threads.size());
+        metrics.gauge("users", "Logged in users.", () -> users.size());
+        metrics.gauge("groups", "Existing groups.", () -> groups.size());
+        metrics.gauge("group_history_bytes", "Bytes used by the message histories of the groups.", () -> groups.getHistoryBytes());
+        metrics.gauge("transfers", "Resumable transfers that are not complete.", () -> transfers.size());
+        metrics.gauge("stored_messages", "Messages waiting for offline users.", () -> messages != null ? messages.size() : 0);
+        metrics.gauge("outbound_queued_bytes", "Bytes queued for all clients.", () -> {
+            long queued = 0;
+            for (ClientThread ct : threads) {
+                queued += ct.getConnection().getOutboundQueue().getQueuedBytes();
+            }
+            return queued;
+        });
+        metrics.gauge("outbound_queue_max_bytes", "Bytes queued for the client with the longest queue.", () -> {
+            long max = 0;
+            for (ClientThread ct : threads) {
+                max = Math.max(max, ct.getConnection().getOutboundQueue().getQueuedBytes());
+            }
+            return max;
+        });
+        metrics.gauge("log_dropped_entries", "Log entries dropped because the log couldn't keep up.", Log::getDropped);
+        metrics.registerMBean();
+        if (conf.getMetricsPort() > 0) {
+            try {
+                metrics.startHttpEndpoint(conf.getMetricsPort());
+            } catch (IOException e) {
+                Log.log(Log.Level.WARN, Log.Category.SERVER, null, "Cannot start the metrics endpoint: ", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts pushing the key changes of every interval to the clients that use the key directory,
+     * so a burst of logins results in one KEYDELTA per interval instead of a line per login.
+     */
+    private void startKeyBroadcaster() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "key-directory");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = conf.getKeyBatchInterval();
+        scheduler.scheduleWithFixedDelay(this::broadcastKeyChanges, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void broadcastKeyChanges() {
+        try {
+            long version = publickeys.getVersion();
+            if (version == broadcastKeyVersion) {
+                return;
+            }
+            Frame delta = publickeys.delta(broadcastKeyVersion, version);
+            for (ClientThread ct : users.sessions()) {
+                // The node of a remote user pushes the changes to it.
+                if (ct.isKeyDirectorySubscriber() && !ct.isRemote()) {
+                    ct.writeToClient(delta);
+                }
+            }
+            broadcastKeyVersion = version;
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule.
+            Log.log(Log.Level.ERROR, Log.Category.KEYS, null, "Key broadcast failed: ", e.toString());
+        }
+    }
+
+    /**
+     * Creates and registers the client thread for a newly accepted connection. Used by both
+     * the blocking and the NIO transport.
+     *
+     * @param connection The connection of the new client.
+     * @return Returns the client thread that handles the commands of the new client.
+     */
+    ClientThread acceptClient(ClientConnection connection) {
+        long number = connections.incrementAndGet();
+        ClientThread ct = new ClientThread(connection);
+        if (FaultInjector.isEnabled(conf)) {
+            ct.faults = new FaultInjector(conf, number, timers, ct::send, ct::getUsername);
+        }
+        threads.add(ct);
+        Log.log(Log.Level.INFO, Log.Category.CONNECTION, null, "Num clients: ", threads.size());
+
+        // Simulate lost connections if configured, the client is dropped after 10 to 20 seconds.
+        if (conf.doSimulateConnectionLost()) {
+            int delay = 10000 + FaultInjector.random(conf.getFaultSeed(), number).nextInt(10000);
+            ct.dropTimer = timers.schedule(ct::kill, delay, TimeUnit.MILLISECONDS);
+        }
+        ct.startTimers();
+        return ct;
+    }
+
+    /**
+     * Creates the session of a user that is logged in at another node of the cluster. Frames
+     * written to the session are forwarded to that node.
+     *
+     * @param username The username.
+     * @param binary   True when the user uses the binary framing.
+     * @param peer     The node the user is logged in at.
+     * @return Returns the session, it isn't in the user directory yet.
+     */
+    ClientThread remoteUser(String username, boolean binary, Cluster.Peer peer) {
+        ClientThread ct = new ClientThread(peer.connectionFor(username));
+        ct.peer = peer;
+        ct.username = username;
+        ct.state = CONNECTED;
+        ct.binary = binary;
+        ct.framingFixed = true;
+        return ct;
+    }
+
+    /**
+     * Starts a thread for a client related task. Depending on the configuration this is a
+     * virtual thread or a platform thread.
+     *
+     * @param task The task to run.
+     */
+    private void startThread(Runnable task) {
+        if (conf.isUseVirtualThreads()) {
+            VIRTUAL_THREADS.newThread(task).start();
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    /**
+     * @return Returns true when the JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            // Thread.ofVirtual().factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Raw bytes that follow a command line, like the contents of a file transfer. While an upload
+     * is in progress the received bytes are passed to it instead of being decoded as commands.
+     */
+    private interface Upload {
+        /**
+         * Consumes the bytes of the upload that are available in the buffer.
+         *
+         * @param data The received bytes.
+         * @return Returns true when the upload is complete.
+         */
+        boolean consume(ByteBuffer data) throws IOException;
+
+        /**
+         * Called when the connection is gone before the upload was complete.
+         */
+        void abort();
+    }
+
+    /**
+     * This inner class is used to handle all communication between the server and a
+     * specific client.
+     */
+    public class ClientThread implements Runnable {
+
+        private ClientConnection connection;
+        private volatile ServerState state;
+        private volatile String username;
+        private Set<UserGroup> joinedUserGroups = ConcurrentHashMap.newKeySet();
+        // The key this session registered with SENDKEY.
+        private volatile PublicKeyStore.Entry publicKey;
+        // Set once the client used KEYDIR, it then gets key changes as batched KEYDELTA frames.
+        private volatile boolean keyDirectorySubscriber = false;
+        private ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        private Upload upload;
+        // System.nanoTime() of the last bytes received from the client.
+        private volatile long lastActivity = System.nanoTime();
+        // System.nanoTime() of the unanswered PING, 0 when no PING is outstanding.
+        private volatile long pingSentAt = 0;
+        private volatile TimingWheel.Timeout dropTimer;
+        private volatile TimingWheel.Timeout handshakeTimer;
+        private volatile TimingWheel.Timeout livenessTimer;
+        // Simulates a bad network on the outbound path, null when no faults are configured.
+        private FaultInjector faults;
+        // Set when the client logged in with HELO <name> BINARY, see BinaryProtocol.
+        private volatile boolean binary = false;
+        private BinaryDecoder decoder;
+        // Set when the client logged in with COMPRESS, see Compression.
+        private volatile boolean compress = false;
+        // Compresses the frames for this client, made before compress is set. Writers take
+        // deflaterLock, not a monitor, so virtual threads aren't pinned while compressing. It's
+        // ended when the client is gone.
+        private Deflater deflater;
+        private boolean deflaterEnded = false;
+        private final ReentrantLock deflaterLock = new ReentrantLock();
+        // The framing is fixed by the first HELO. Until then writers take the lock, so no frame
+        // in the old framing can end up after the switch. Only the switch itself is done while
+        // holding it.
+        private volatile boolean framingFixed = false;
+        private final ReentrantLock framingLock = new ReentrantLock();
+        // The node the user is logged in at, null for users of this node.
+        private Cluster.Peer peer;
+        // Set while a command waits for another node. The input after it is kept until the
+        // command is done, see await.
+        private volatile boolean awaiting = false;
+        private ByteBuffer awaitedInput;
+        // The rate limits of the session, null when they're disabled.
+        private TokenBucket commandBucket;
+        private TokenBucket byteBucket;
+
+        public ClientThread(ClientConnection connection) {
+            this.state = INIT;
+            this.connection = connection;
+            if (conf.getCommandRateLimit() > 0) {
+                commandBucket = new TokenBucket(conf.getCommandRateLimit(), conf.getCommandBurst());
+            }
+            if (conf.getByteRateLimit() > 0) {
+                byteBucket = new TokenBucket(conf.getByteRateLimit(), conf.getByteBurst());
+            }
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public ClientConnection getConnection() {
+            return connection;
+        }
+
+        public boolean isKeyDirectorySubscriber() {
+            return keyDirectorySubscriber;
+        }
+
+        /**
+         * @return Returns true when the client uses the binary framing.
+         */
+        public boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * @return Returns true when the user is logged in at another node of the cluster.
+         */
+        public boolean isRemote() {
+            return peer != null;
+        }
+
+        /**
+         * Sends key changes to a remote user in batches from now on, it used KEYDIR at its node.
+         */
+        void subscribeToKeyDirectory() {
+            keyDirectorySubscriber = true;
+        }
+
+        /**
+         * Sets the key a remote user registered at its node, it's removed when the user leaves.
+         */
+        void setRemoteKey(PublicKeyStore.Entry entry) {
+            publicKey = entry;
+        }
+
+        /**
+         * Adds a group that a remote user created or joined at its node.
+         */
+        void joinGroup(UserGroup group) {
+            joinedUserGroups.add(group);
+        }
+
+        /**
+         * Serves a client on a blocking socket. This is only used by the thread-per-client transport,
+         * the NIO transport calls {@link #onConnect()} and {@link #onBytes(ByteBuffer)} from its reactors.
+         */
+        public void run() {
+            try {
+                InputStream is = ((SocketConnection) connection).getInputStream();
+                byte[] buffer = new byte[4096];
+                onConnect();
+
+                while (!state.equals(FINISHED)) {
+                    // Wait for data from the client.
+                    int read = is.read(buffer);
+                    if (read < 0) {
+                        break;
+                    }
+                    onBytes(ByteBuffer.wrap(buffer, 0, read));
+                    // A command that waits for another node is finished on this thread.
+                    while (awaiting) {
+                        ((SocketConnection) connection).runTask();
+                    }
+                }
+            } catch (IOException e) {
+                Log.log(Log.Level.WARN, Log.Category.CONNECTION, username, "Server Exception: ", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                Log.log(Log.Level.ERROR, Log.Category.CONNECTION, username, "Exception while handling the client: ", e.toString());
+            } finally {
+                // Remove from the list of client threads and close the socket.
+                connection.close();
+                onDisconnect();
+            }
+        }
+
+        /**
+         * Called once when the connection has been set up.
+         */
+        public void onConnect() {
+            // According to the protocol we should send HELO <welcome message>
+            state = CONNECTING;
+            String welcomeMessage = "HELO " + conf.WELCOME_MESSAGE;
+            writeToClient(welcomeMessage);
+        }
+
+        /**
+         * Schedules the handshake timeout and the first idle or heartbeat check, as configured.
+         */
+        void startTimers() {
+            if (conf.getHandshakeTimeout() > 0) {
+                handshakeTimer = timers.schedule(this::checkHandshake, conf.getHandshakeTimeout(), TimeUnit.MILLISECONDS);
+            }
+            if (conf.getIdleTimeout() > 0 || conf.getHeartbeatInterval() > 0) {
+                scheduleLivenessCheck();
+            }
+        }
+
+        private void checkHandshake() {
+            if (state != CONNECTED && state != FINISHED) {
+                writeToClient("-ERR Handshake timeout");
+                disconnect("[HANDSHAKE TIMEOUT]");
+            }
+        }
+
+        /**
+         * Schedules a check for the moment the client has been quiet for too long. Receiving
+         * bytes only updates lastActivity; the check itself reschedules when there was activity
+         * in the meantime, so busy clients don't reschedule a timer for every message.
+         */
+        private void scheduleLivenessCheck() {
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            if (conf.getIdleTimeout() > 0) {
+                next = lastActivity + TimeUnit.MILLISECONDS.toNanos(conf.getIdleTimeout()) - now;
+            }
+            if (conf.getHeartbeatInterval() > 0) {
+                long interval = TimeUnit.MILLISECONDS.toNanos(conf.getHeartbeatInterval());
+                long ping = pingSentAt;
+                next = Math.min(next, (ping != 0 ? ping : lastActivity) + interval - now);
+            }
+            livenessTimer = timers.schedule(this::checkLiveness, Math.max(next, 0), TimeUnit.NANOSECONDS);
+        }
+
+        private void checkLiveness() {
+            if (state == FINISHED) {
+                return;
+            }
+            long now = System.nanoTime();
+            long quiet = now - lastActivity;
+            if (conf.getIdleTimeout() > 0 && quiet >= TimeUnit.MILLISECONDS.toNanos(conf.getIdleTimeout())) {
+                disconnect("[IDLE TIMEOUT]");
+                return;
+            }
+            if (conf.getHeartbeatInterval() > 0) {
+                long interval = TimeUnit.MILLISECONDS.toNanos(conf.getHeartbeatInterval());
+                long ping = pingSentAt;
+                if (ping != 0 && lastActivity - ping < 0 && now - ping >= interval) {
+                    // No PONG, or anything else, since the PING.
+                    disconnect("[HEARTBEAT TIMEOUT]");
+                    return;
+                }
+                if (ping == 0 && quiet >= interval) {
+                    pingSentAt = now;
+                    writeToClient("PING");
+                }
+            }
+            scheduleLivenessCheck();
+        }
+
+        /**
+         * Called when the connection is gone, either because the client closed it or because
+         * the server dropped it.
+         */
+        public void onDisconnect() {
+            state = FINISHED;
+            cancelTimers();
+            if (faults != null) {
+                faults.close();
+            }
+            if (compress) {
+                deflaterLock.lock();
+                try {
+                    deflaterEnded = true;
+                    deflater.end();
+                } finally {
+                    deflaterLock.unlock();
+                }
+            }
+            if (users.release(username, this) && !isRemote()) {
+                cluster.left(username);
+            }
+            for (UserGroup group : joinedUserGroups) {
+                group.removeParticipant(this);
+            }
+            if (threads.remove(this)) {
+                Log.log(Log.Level.INFO, Log.Category.CONNECTION, null, "Num clients: ", threads.size());
+            }
+            if (upload != null) {
+                upload.abort();
+                upload = null;
+            }
+            transfers.disconnected(this);
+            if (publicKey != null) {
+                publickeys.remove(publicKey);
+            }
+        }
+
+        /**
+         * Decodes the bytes received from the client. Complete lines are handled as commands, while
+         * a file upload is in progress the bytes are passed to the upload instead.
+         *
+         * @param data The received bytes. All remaining bytes are consumed.
+         */
+        public void onBytes(ByteBuffer data) {
+            int received = data.remaining();
+            metrics.received(received);
+            lastActivity = System.nanoTime();
+            pingSentAt = 0;
+            decode(data);
+            if (byteBucket != null && !state.equals(FINISHED)) {
+                long wait = byteBucket.take(received);
+                if (wait > 0) {
+                    overByteLimit(wait);
+                }
+            }
+        }
+
+        /**
+         * Handles the commands in the bytes. When a command has to wait, the rest of the bytes is
+         * kept until it's done.
+         */
+        private void decode(ByteBuffer data) {
+            try {
+                while (data.hasRemaining() && !state.equals(FINISHED)) {
+                    if (awaiting) {
+                        keepAwaitedInput(data);
+                        break;
+                    }
+                    if (upload != null) {
+                        if (upload.consume(data)) {
+                            upload = null;
+                        }
+                        continue;
+                    }
+                    if (decoder != null) {
+                        long start = System.nanoTime();
+                        Message message = decoder.decode(data);
+                        if (message != null) {
+                            if (Log.isEnabled(Log.Level.DEBUG, Log.Category.INCOMING)) {
+                                logMessage(Log.Category.INCOMING, message.toString());
+                            }
+                            handleMessage(message, start);
+                        }
+                        continue;
+                    }
+                    byte b = data.get();
+                    if (b == '\n') {
+                        byte[] bytes = lineBuffer.toByteArray();
+                        int length = bytes.length;
+                        if (length > 0 && bytes[length - 1] == '\r') {
+                            length--;
+                        }
+                        lineBuffer.reset();
+                        handleLine(new String(bytes, 0, length, StandardCharsets.UTF_8));
+                    } else {
+                        lineBuffer.write(b);
+                    }
+                }
+            } catch (ProtocolException e) {
+                writeToClient("-ERR " + e.getMessage());
+                disconnect("[INVALID FRAME]");
+            } catch (IOException e) {
+                Log.log(Log.Level.WARN, Log.Category.CONNECTION, username, "Server Exception: ", e.getMessage());
+                kill();
+            }
+        }
+
+        /**
+         * Keeps the bytes that arrive while a command waits after the ones kept before, so they
+         * are handled in order once it's done.
+         */
+        private void keepAwaitedInput(ByteBuffer data) {
+            if (awaitedInput == null) {
+                awaitedInput = ByteBuffer.allocate(data.remaining()).put(data).flip();
+            } else {
+                awaitedInput = ByteBuffer.allocate(awaitedInput.remaining() + data.remaining())
+                        .put(awaitedInput).put(data).flip();
+            }
+        }
+
+        /**
+         * Finishes a command once the result it waits for is there, on the thread that handles
+         * the input of the client. Until then nothing is read from the client, so the commands
+         * after it are handled after it.
+         *
+         * @param result The result, like the answer of another node.
+         * @param then   Finishes the command with the result.
+         */
+        private <T> void await(CompletableFuture<T> result, Consumer<T> then) {
+            if (result.isDone()) {
+                then.accept(result.join());
+                return;
+            }
+            awaiting = true;
+            connection.suspendReads(ClientConnection.Pause.AWAIT);
+            result.thenAccept(value -> connection.execute(() -> {
+                awaiting = false;
+                then.accept(value);
+                ByteBuffer input = awaitedInput;
+                awaitedInput = null;
+                if (input != null) {
+                    decode(input);
+                }
+                if (!awaiting) {
+                    connection.resumeReads(ClientConnection.Pause.AWAIT);
+                }
+            }));
+        }
+
+        /**
+         * Handles a single command line received from the client.
+         *
+         * @param line The line without the line terminator.
+         */
+        private void handleLine(String line) throws IOException {
+            // Log incoming message for debug purposes.
+            if (Log.isEnabled(Log.Level.DEBUG, Log.Category.INCOMING)) {
+                logMessage(Log.Category.INCOMING, line);
+            }
+
+            // Parse incoming message.
+            long start = System.nanoTime();
+            handleMessage(new Message(line), start);
+        }
+
+        /**
+         * Handles a single command, received as a line or as a binary frame.
+         *
+         * @param message The command.
+         * @param start   The System.nanoTime() at which handling started.
+         */
+        private void handleMessage(Message message, long start) throws IOException {
+            long cost = cost(message);
+            if (commandBucket != null && cost > 0 && !commandBucket.tryTake(cost)) {
+                overCommandLimit();
+                return;
+            }
+            // Process message.
+            switch (message.getMessageType()) {
+                case HELO:
+                    // HELO <username> [BINARY] [COMPRESS]
+                    String requestedUsername = message.getPayload();
+                    boolean switchToBinary = false;
+                    boolean requestsCompression = false;
+                    while (true) {
+                        if (requestedUsername.endsWith(" BINARY")) {
+                            requestedUsername = requestedUsername.substring(0, requestedUsername.length() - " BINARY".length());
+                            switchToBinary = !message.isBinary();
+                        } else if (requestedUsername.endsWith(" COMPRESS")) {
+                            requestedUsername = requestedUsername.substring(0, requestedUsername.length() - " COMPRESS".length());
+                            requestsCompression = true;
+                        } else {
+                            break;
+                        }
+                    }
+                    // Compression is only switched on when the server allows it.
+                    boolean switchToCompression = requestsCompression && !compress && conf.getCompressionThreshold() > 0;
+                    if ((switchToBinary || switchToCompression) && framingFixed) {
+                        writeToClient("-ERR The framing can't be changed after logging in");
+                        break;
+                    }
+                    // Check username format.
+                    boolean isValidUsername = USERNAME_PATTERN.matcher(requestedUsername).matches();
+                    if (!isValidUsername) {
+                        state = FINISHED;
+                        writeToClient("-ERR username has an invalid format (only characters, numbers and underscores are allowed)");
+                        connection.close();
+                    } else if (requestedUsername.equals(username)) {
+                        login(requestedUsername, false, switchToBinary, switchToCompression, requestsCompression);
+                    } else if (users.lookup(requestedUsername) != null) {
+                        writeToClient("-ERR user already logged in");
+                    } else {
+                        // A new name is claimed at the node of the cluster that decides about it
+                        // first, the login is finished when it answers.
+                        String claimedUsername = requestedUsername;
+                        boolean binaryLogin = switchToBinary;
+                        boolean compressedLogin = switchToCompression;
+                        boolean compressionRequested = requestsCompression;
+                        await(cluster.claimUser(claimedUsername), granted -> {
+                            if (!granted) {
+                                writeToClient("-ERR user already logged in");
+                            } else if (state.equals(FINISHED)) {
+                                releaseClaimedUsername(claimedUsername);
+                            } else {
+                                login(claimedUsername, true, binaryLogin, compressedLogin, compressionRequested);
+                            }
+                        });
+                    }
+                    break;
+                case GETKEY:
+                    String name = message.getArgument(0);
+                    ClientThread keyOwner = users.lookup(name);
+                    PublicKeyStore.Entry keyEntry = publickeys.get(name);
+                    if (keyOwner == null) {
+                        writeToClient("-ERR No user found");
+                    } else if (keyEntry == null) {
+                        writeToClient("-ERR No key found");
+                    } else {
+                        writeToClient(Frame.withBody("GETKEY " + keyOwner.getUsername(), keyEntry.getEncoded(), keyEntry.getBase64()));
+                    }
+                    break;
+                case SENDKEY:
+                    if (username == null) {
+                        writeToClient("-ERR Please log in first");
+                        break;
+                    }
+                    try {
+                        // Binary clients send the key itself, others send it in Base64.
+                        publicKey = message.isBinary()
+                                ? publickeys.register(username, message.getBodyBytes())
+                                : publickeys.register(username, message.getPayload());
+                        Log.log(Log.Level.INFO, Log.Category.KEYS, username, "Key added");
+                        cluster.keyChanged(username, publicKey);
+                    } catch (GeneralSecurityException gse) {
+                        Log.log(Log.Level.WARN, Log.Category.KEYS, username, "Problem reinstanceiating Publickey: ", gse.getMessage());
+                        writeToClient("-ERR Invalid key");
+                        break;
+                    }
+                    // Send the newcomer the keys of the others and the others the new key. The
+                    // lines are encoded once per key, users without a key are skipped. Clients
+                    // that use the key directory get the changes in batches instead.
+                    int keyRecipients = 0;
+                    for (ClientThread ct : users.sessions()) {
+                        if (ct != this) {
+                            PublicKeyStore.Entry peerKey = publickeys.get(ct.username);
+                            if (peerKey != null && !keyDirectorySubscriber) {
+                                writeToClient(peerKey.getNewKeyFrame());
+                            }
+                            if (!ct.keyDirectorySubscriber) {
+                                ct.writeToClient(publicKey.getNewKeyFrame());
+                                keyRecipients++;
+                            }
+                        }
+                    }
+                    metrics.fanOut(keyRecipients);
+                    break;
+                case KEYDIR:
+                    // KEYDIR [version]: all keys, or only the changes since a version the client
+                    // already knows.
+                    long since = -1;
+                    if (!message.getArgument(0).isEmpty()) {
+                        try {
+                            since = Long.parseLong(message.getArgument(0));
+                        } catch (NumberFormatException e) {
+                            since = -1;
+                        }
+                    }
+                    if (!keyDirectorySubscriber && username != null) {
+                        cluster.subscribed(username);
+                    }
+                    keyDirectorySubscriber = true;
+                    writeToClient(publickeys.directory(since));
+                    break;
+                case BCST:
+                    // Broadcast to other clients.
+                    Frame broadcastFrame = Frame.ofUserText("BCST [" + getUsername() + "] " + message.getPayload());
+                    int recipients = 0;
+                    for (ClientThread ct : users.sessions()) {
+                        if (ct != this && !ct.isRemote()) {
+                            ct.writeToClient(broadcastFrame);
+                            recipients++;
+                        }
+                    }
+                    // The other nodes get the frame once and send it to their own users.
+                    cluster.broadcast(broadcastFrame);
+                    metrics.fanOut(recipients);
+                    writeToClient("+OK");
+                    break;
+                case LSTUS:
+                    // LSTUS [<prefix|*> <limit> [after]]
+                    writeListing(message, users.index(), "+OK [", ",", "", "]");
+                    break;
+                case MSG:
+                    // MSG <user> <message in Base64>, binary clients send the message as the body.
+                    if (message.isBinary()) {
+                        transferPrivateMessage(message.getArgument(0), message.getBodyBytes(), null);
+                    } else if (message.getArgumentCount() > 1) {
+                        transferPrivateMessage(message.getArgument(0), null, message.getArgument(1));
+                    }
+                    break;
+                case MKGRP:
+                    String groupname = message.getArgument(0);
+                    if (groups.get(groupname) != null) {
+                        writeToClient("-ERR groupname already exists");
+                        break;
+                    }
+                    await(cluster.claimGroup(groupname), granted -> createGroup(groupname, granted));
+                    break;
+                case JNGRP:
+                    UserGroup groupToJoin = groupExists(message.getPayload());
+                    if (groupToJoin == null) {
+                        writeToClient("-ERR Group doesn't exist.");
+                    } else if (joinedUserGroups.contains(groupToJoin)) {
+                        writeToClient("-ERR already joined this group.");
+                    } else {
+                        groupToJoin.addParticipant(this);
+                        joinedUserGroups.add(groupToJoin);
+                        cluster.groupChanged("JN", groupToJoin, username);
+                        // The last messages of the group come with the answer, in one write.
+                        List<Frame> joinFrames = new ArrayList<>();
+                        joinFrames.add(Frame.of("+OK"));
+                        joinFrames.addAll(historyFrames(groupToJoin, 0, conf.getGroupHistoryReplay()));
+                        writeBatch(joinFrames);
+                        groupToJoin.broadcastGroupMessage(getUsername() + " joined Group", this);
+                    }
+                    break;
+                case GRPHIST:
+                    // GRPHIST <group> [since]: the kept messages after a sequence number.
+                    UserGroup historyGroup = groupExists(message.getArgument(0));
+                    if (historyGroup == null || !joinedUserGroups.contains(historyGroup)) {
+                        writeToClient("-ERR not in this group");
+                        break;
+                    }
+                    long historySince = 0;
+                    try {
+                        historySince = message.getArgument(1).isEmpty() ? 0 : Long.parseLong(message.getArgument(1));
+                    } catch (NumberFormatException e) {
+                        historySince = 0;
+                    }
+                    List<Frame> history = historyFrames(historyGroup, historySince, Integer.MAX_VALUE);
+                    history.add(0, Frame.of("+OK GRPHIST " + history.size()));
+                    writeBatch(history);
+                    break;
+                case LSTGRP:
+                    // LSTGRP [<prefix|*> <limit> [after]]
+                    writeListing(message, groups.index(), "+OK Groups: ", "", "; ", "");
+                    break;
+                case BCGRP:
+                    String groupName = message.getArgument(0);
+                    String groupMessage = message.getRemainder(1);
+
+                    UserGroup grpToBroadcast = groupExists(groupName);
+                    if (grpToBroadcast != null && joinedUserGroups.contains(grpToBroadcast)) {
+                        String groupText = "[" + getUsername() + "]" + groupMessage;
+                        metrics.fanOut(grpToBroadcast.broadcastGroupMessage(groupText, this));
+                        groups.addHistory(grpToBroadcast, groupText);
+                        writeToClient("+OK");
+                    } else {
+                        writeToClient("-ERR not in this group");
+                    }
+                    break;
+                case LVGRP:
+                    String groupToLeave = message.getPayload().trim();
+
+                    UserGroup grpToLeave = groupExists(groupToLeave);
+                    if (grpToLeave != null && joinedUserGroups.contains(grpToLeave)) {
+                        joinedUserGroups.remove(grpToLeave);
+                        boolean isgroupowner = grpToLeave.removeParticipant(this);
+                        writeToClient("+OK");
+                        if (!isgroupowner) {
+                            cluster.groupChanged("LV", grpToLeave, username);
+                            grpToLeave.broadcastGroupMessage(getUsername() + " left the group", this);
+                        } else {
+                            grpToLeave.disbandGroup();
+                            groups.remove(grpToLeave);
+                            cluster.groupChanged("DISBAND", grpToLeave, null);
+                        }
+                    } else {
+                        writeToClient("-ERR not in this group");
+                    }
+                    break;
+                case KICK:
+                    groupName = message.getArgument(0);
+                    String userToKick = message.getRemainder(1);
+
+                    UserGroup currentGroup = groupExists(groupName);
+                    if (currentGroup != null && currentGroup.getGroupowner() == this) {
+                        ClientThread user = currentGroup.getParticipant(userToKick);
+                        if (user != null) {
+                            if (user != this) {
+                                user.joinedUserGroups.remove(currentGroup);
+                                currentGroup.removeParticipant(user);
+                                cluster.groupChanged("LV", currentGroup, user.getUsername());
+                                user.writeToClient("+OK kicked From group [" + currentGroup.getGroupname() + "]");
+                                writeToClient("+OK");
+                            } else {
+                                writeToClient("-ERR You cannot kick yourself");
+                            }
+                        } else {
+                            writeToClient("-ERR User is not in this group");
+                        }
+                    } else {
+                        writeToClient("-ERR You are not the owner");
+                    }
+                    break;
+                case TRNSFR:
+                    String receivinguser = message.getArgument(0);
+                    if (message.isBinary()) {
+                        // TRNSFR <user> <file name>, the contents are the body of the frame.
+                        FileUpload fileUpload = new FileUpload(receivinguser, message.getRemainder(1), message.getBodyLength());
+                        upload = fileUpload.consume(ByteBuffer.allocate(0)) ? null : fileUpload;
+                    } else {
+                        // The file name, size and contents follow the command line as raw bytes.
+                        upload = new FileUpload(receivinguser);
+                    }
+                    break;
+                case FTOPEN:
+                    // FTOPEN <recipient> <size> <file name>
+                    openTransfer(message);
+                    break;
+                case FTCHUNK:
+                    // FTCHUNK <id> <offset> <length> <crc32>, followed by the bytes of the chunk.
+                    // Binary clients leave out the length, the bytes are the body of the frame.
+                    upload = receiveChunk(message);
+                    break;
+                case FTRESUME:
+                    // FTRESUME <id>
+                    resumeTransfer(message);
+                    break;
+                case FTGET:
+                    // FTGET <id> <offset>
+                    downloadTransfer(message);
+                    break;
+                case FTACK:
+                    // FTACK <id> <offset>
+                    acknowledgeTransfer(message);
+                    break;
+                case QUIT:
+                    // Close connection
+                    state = FINISHED;
+                    writeToClient("+OK Goodbye");
+                    connection.close();
+                    break;
+                case STATS:
+                    if (username == null || !conf.getAdminUsers().contains(username)) {
+                        writeToClient("-ERR Not allowed");
+                        break;
+                    }
+                    // One frame: "+OK STATS <lines>", followed by a line per metric.
+                    List<String> stats = metrics.statsLines();
+                    writeToClient("+OK STATS " + stats.size() + "\n" + String.join("\n", stats));
+                    break;
+                case PING:
+                    writeToClient("PONG");
+                    break;
+                case PONG:
+                    // The answer to a heartbeat, receiving it already counts as activity.
+                    break;
+                case UNKOWN:
+                    // Unkown command has been sent
+                    writeToClient("-ERR Unkown command");
+                    break;
+            }
+            metrics.command(message.getMessageType(), System.nanoTime() - start);
+        }
+
+        /**
+         * @return Returns the number of tokens a command takes from the rate limit: one, plus one
+         *         for every recipient of a broadcast or key change. Commands that are followed by
+         *         bytes of a file can't be refused, those bytes count for the byte limit.
+         */
+        private long cost(Message message) {
+            switch (message.getMessageType()) {
+                case BCST:
+                    return 1 + users.size();
+                case BCGRP:
+                    UserGroup group = groups.get(message.getArgument(0));
+                    return group != null ? 1 + group.size() : 1;
+                case SENDKEY:
+                    return 1 + publickeys.size();
+                case TRNSFR:
+                case FTCHUNK:
+                case PONG:
+                case QUIT:
+                    return 0;
+                default:
+                    return 1;
+            }
+        }
+
+        /**
+         * Refuses a command of a session that went over its command rate limit, or disconnects it.
+         */
+        private void overCommandLimit() {
+            metrics.rateLimited();
+            writeToClient("-ERR Rate limit exceeded");
+            if (conf.getRateLimitPolicy() == TokenBucket.LimitPolicy.DISCONNECT) {
+                disconnect("[RATE LIMITED]");
+            }
+        }
+
+        /**
+         * Stops reading from a session that went over its byte rate limit until it may send
+         * again, or disconnects it.
+         *
+         * @param wait The time in nanoseconds until the session may send again.
+         */
+        private void overByteLimit(long wait) {
+            metrics.rateLimited();
+            if (conf.getRateLimitPolicy() == TokenBucket.LimitPolicy.DISCONNECT) {
+                writeToClient("-ERR Rate limit exceeded");
+                disconnect("[RATE LIMITED]");
+            } else if (connection instanceof SocketConnection) {
+                // This is the thread that reads from the client, it waits before the next read.
+                LockSupport.parkNanos(wait);
+            } else {
+                connection.suspendReads(ClientConnection.Pause.RATE_LIMIT);
+                timers.schedule(() -> connection.resumeReads(ClientConnection.Pause.RATE_LIMIT), wait,
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Finishes HELO: claims the name at this node, answers and switches the framing.
+         *
+         * @param requestedUsername   The name, it was claimed in the cluster when it's new.
+         * @param newName             True when the client didn't use the name yet.
+         * @param switchToBinary      True to switch to the binary framing.
+         * @param switchToCompression True to switch compression on.
+         * @param requestsCompression True when the client asked for compression.
+         */
+        private void login(String requestedUsername, boolean newName, boolean switchToBinary, boolean switchToCompression, boolean requestsCompression) {
+            // Claim the username, this fails if the user already exists.
+            if (!users.claim(requestedUsername, this)) {
+                if (newName) {
+                    releaseClaimedUsername(requestedUsername);
+                }
+                writeToClient("-ERR user already logged in");
+                return;
+            }
+            // Release the old name when a logged in user changes its name.
+            String oldUsername = username;
+            this.username = requestedUsername;
+            // The groups the client joined find it under its new name.
+            for (UserGroup group : joinedUserGroups) {
+                group.renamed(this);
+            }
+            if (oldUsername != null && newName) {
+                users.release(oldUsername, this);
+                cluster.left(oldUsername);
+            }
+            state = CONNECTED;
+            cancel(handshakeTimer);
+            framingLock.lock();
+            try {
+                // The answer names the options that were accepted. It is the last frame
+                // in the old framing, everything after it may be binary or compressed.
+                String options = (switchToBinary ? " BINARY" : "") + (requestsCompression && (switchToCompression || compress) ? " COMPRESS" : "");
+                writeToClient("+OK " + getUsername() + options);
+                if (switchToBinary) {
+                    binary = true;
+                    decoder = new BinaryDecoder();
+                }
+                if (switchToCompression) {
+                    deflater = Compression.newDeflater();
+                    compress = true;
+                }
+                framingFixed = true;
+            } finally {
+                framingLock.unlock();
+            }
+            // The messages that were sent while the user was offline follow the answer. A
+            // message that is sent to the user in the meantime may come before them.
+            if (messages != null && newName) {
+                for (Frame stored : messages.login(username)) {
+                    writeToClient(stored);
+                }
+            }
+            if (newName) {
+                cluster.joined(this);
+            }
+
+            // Offer the transfers that were sent while the user was away.
+            for (Transfer transfer : transfers.pendingFor(username)) {
+                writeToClient(transfer.offer());
+            }
+        }
+
+        /**
+         * Gives up a name that was claimed in the cluster but isn't used. The node keeps the name
+         * while another of its users has it.
+         */
+        private void releaseClaimedUsername(String claimedUsername) {
+            ClientThread owner = users.lookup(claimedUsername);
+            if (owner == null || owner.isRemote()) {
+                cluster.releaseUser(claimedUsername);
+            }
+        }
+
+        /**
+         * Finishes MKGRP once the cluster answered the claim of the group name.
+         */
+        private void createGroup(String groupname, boolean granted) {
+            UserGroup newGroup = granted && !state.equals(FINISHED) ? groups.create(groupname, this) : null;
+            if (newGroup != null) {
+                joinedUserGroups.add(newGroup);
+                cluster.groupChanged("MK", newGroup, username);
+                writeToClient("+OK");
+                return;
+            }
+            if (granted) {
+                // The client is gone or another group got the name first. The node keeps the
+                // claim while one of its users owns a group with the name.
+                UserGroup existing = groups.get(groupname);
+                if (existing == null || existing.getGroupowner().isRemote()) {
+                    cluster.releaseGroup(groupname);
+                }
+            }
+            writeToClient("-ERR groupname already exists");
+        }
+
+        /**
+         * Answers LSTUS or LSTGRP. Without arguments the whole (cached) listing is sent. With
+         * arguments only the names that start with the prefix are listed, at most limit names
+         * after the given name. A page that is followed by more names ends with MORE; the last
+         * name on the page is the cursor for the next page.
+         */
+        private void writeListing(Message message, NameIndex index, String head, String separator, String nameSuffix, String tail) {
+            if (message.getArgument(0).isEmpty()) {
+                writeToClient(index.list(head, separator, nameSuffix, tail));
+                return;
+            }
+            String prefix = message.getArgument(0).equals("*") ? "" : message.getArgument(0);
+            int limit;
+            try {
+                limit = Integer.parseInt(message.getArgument(1));
+            } catch (NumberFormatException e) {
+                limit = MAX_PAGE_SIZE;
+            }
+            if (limit < 1) {
+                writeToClient("-ERR Invalid limit");
+                return;
+            }
+            limit = Math.min(limit, MAX_PAGE_SIZE);
+            String after = message.getArgument(2).isEmpty() ? null : message.getArgument(2);
+
+            List<String> page = index.page(prefix, after, limit);
+            boolean more = page.size() > limit;
+            if (more) {
+                page = page.subList(0, limit);
+            }
+            String listing = NameIndex.format(page, head, separator, nameSuffix, tail);
+            if (more) {
+                listing = listing.endsWith(" ") ? listing + "MORE" : listing + " MORE";
+            }
+            writeToClient(listing);
+        }
+
+        /**
+         * An external process can stop the client using this methode.
+         */
+        public void kill() {
+            // Log connection drop and close the connection.
+            Log.log(Log.Level.INFO, Log.Category.SIMULATION, getUsername(), "[DROP CONNECTION]");
+            state = FINISHED;
+            connection.close();
+            onDisconnect();
+        }
+
+        /**
+         * Closes the connection of a client that timed out.
+         *
+         * @param reason The reason that is logged.
+         */
+        private void disconnect(String reason) {
+            Log.log(Log.Level.INFO, Log.Category.CONNECTION, getUsername(), reason);
+            state = FINISHED;
+            connection.close();
+            onDisconnect();
+        }
+
+        private void cancelTimers() {
+            cancel(dropTimer);
+            cancel(handshakeTimer);
+            cancel(livenessTimer);
+        }
+
+        private void cancel(TimingWheel.Timeout timer) {
+            if (timer != null) {
+                timer.cancel();
+            }
+        }
+
+        /**
+         * Write a message to this client thread.
+         *
+         * @param message The message to be sent to the (connected) client.
+         */
+        public void writeToClient(String message) {
+            writeToClient(Frame.of(message));
+        }
+
+        /**
+         * Write an encoded message to this client thread. Use this to send the same message to
+         * many clients, the frame is encoded once and shared by all of them.
+         *
+         * @param frame The frame to be sent to the (connected) client.
+         */
+        public void writeToClient(Frame frame) {
+            if (peer != null) {
+                // The node of the user encodes the frame for it.
+                peer.deliver(username, frame);
+                return;
+            }
+            if (framingFixed) {
+                write(frame, binary);
+            } else {
+                framingLock.lock();
+                try {
+                    write(frame, binary);
+                } finally {
+                    framingLock.unlock();
+                }
+            }
+        }
+
+        private void write(Frame frame, boolean binary) {
+            // Check if we need to behave badly, the fault injector then decides when to send.
+            if (faults != null) {
+                faults.write(frame, binary);
+            } else {
+                send(frame, binary, true);
+            }
+        }
+
+        /**
+         * Sends a frame to the client without simulating faults.
+         *
+         * @param frame    The frame.
+         * @param binary   True to send the binary encoding.
+         * @param mayBlock False when the caller must not wait for room in the outbound queue.
+         */
+        private void send(Frame frame, boolean binary, boolean mayBlock) {
+            ByteBuffer data = encode(frame, binary);
+            connection.write(data, mayBlock);
+            metrics.sent(data.remaining());
+
+            // Echo the message to the server console for debugging purposes. Checked first, the
+            // text of a frame may have to be built.
+            if (Log.isEnabled(Log.Level.DEBUG, Log.Category.OUTGOING)) {
+                logMessage(Log.Category.OUTGOING, frame.toString());
+            }
+        }
+
+        /**
+         * @return Returns the bytes of a frame for this client: compressed when the client asked
+         *         for it and that makes the frame smaller, the plain encoding otherwise.
+         */
+        private ByteBuffer encode(Frame frame, boolean binary) {
+            int size = binary ? frame.binarySize() : frame.size();
+            if (compress && size >= conf.getCompressionThreshold()) {
+                ByteBuffer data = compress(frame, binary);
+                if (data != null) {
+                    metrics.compressed(size, data.remaining());
+                    return data;
+                }
+            }
+            return binary ? frame.binaryBuffer() : frame.buffer();
+        }
+
+        /**
+         * @return Returns the compressed encoding of a frame, or null when that isn't smaller or
+         *         the client is gone.
+         */
+        private ByteBuffer compress(Frame frame, boolean binary) {
+            deflaterLock.lock();
+            try {
+                if (deflaterEnded) {
+                    return null;
+                }
+                // Compressed once per frame, shared by every recipient that asked for it.
+                return frame.compressedBuffer(binary, deflater);
+            } finally {
+                deflaterLock.unlock();
+            }
+        }
+
+        /**
+         * Sends frames to the client with a single write, like a replayed history. With simulated
+         * faults every frame goes through the fault injector on its own.
+         *
+         * @param frames The frames, in order.
+         */
+        private void writeBatch(List<Frame> frames) {
+            if (faults != null || !framingFixed) {
+                for (Frame frame : frames) {
+                    writeToClient(frame);
+                }
+                return;
+            }
+            ByteBuffer[] parts = new ByteBuffer[frames.size()];
+            int size = 0;
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = encode(frames.get(i), binary);
+                size += parts[i].remaining();
+            }
+            ByteBuffer batch = ByteBuffer.allocate(size);
+            for (ByteBuffer part : parts) {
+                batch.put(part);
+            }
+            connection.write(batch.flip());
+            metrics.sent(size);
+            for (Frame frame : frames) {
+                if (Log.isEnabled(Log.Level.DEBUG, Log.Category.OUTGOING)) {
+                    logMessage(Log.Category.OUTGOING, frame.toString());
+                }
+            }
+        }
+
+        /**
+         * Util method to print (debug) information about the server's incoming and outgoing messages.
+         * Only called after {@link Log#isEnabled} picked the message.
+         *
+         * @param category INCOMING for a message that was received, OUTGOING for one that was sent.
+         * @param message  The message received or sent.
+         */
+        private void logMessage(Log.Category category, String message) {
+            // The log formats the direction, username and colors on its own thread.
+            Log.logChecked(Log.Level.DEBUG, category, getUsername(), message);
+        }
+
+
+        /**
+         * @return Returns the kept messages of a group after a sequence number, at most limit of
+         *         the most recent ones, as "HISTORY group sequence message" frames.
+         */
+        private List<Frame> historyFrames(UserGroup group, long since, int limit) {
+            List<Frame> frames = new ArrayList<>();
+            if (limit <= 0) {
+                return frames;
+            }
+            for (GroupHistory.Entry entry : group.getHistory().since(since, limit)) {
+                frames.add(entry.getFrame());
+            }
+            return frames;
+        }
+
+        private UserGroup groupExists(String groupname) {
+            return groups.get(groupname);
+        }
+
+        public void removeGroupFromJoinedGroups(UserGroup group) {
+            joinedUserGroups.remove(group);
+        }
+
+        /**
+         * Receives a file that is uploaded with TRNSFR and relays it to the receiving user while
+         * it is being received. The upload consists of a 4096 byte file name block, a 4096 byte
+         * file size block and the contents of the file. The bytes may arrive in pieces of any size.
+         *
+         * The contents are copied into pooled direct buffers that go straight into the outbound
+         * queue of the recipient. The TRNSFR line, the header blocks and the contents are written
+         * to a stream, so no other message can end up in the middle of the file; messages for the
+         * recipient wait until the upload is complete. When the recipient doesn't keep up, reading
+         * from the sender is paused until the recipient's queue has drained. With spooling enabled
+         * the contents are written to a temporary file first, which is sent with a single file
+         * region and deleted afterwards, so the recipient only waits for the file to be sent.
+         */
+        private class FileUpload implements Upload {
+            private static final int HEADER_SIZE = 4096;
+
+            private String receivingUser;
+            private byte[] header = new byte[HEADER_SIZE];
+            private int headerRead = 0;
+            private String file;
+            private long filesize = -1;
+            private long remaining;
+            // The recipient, or null if it wasn't logged in when the upload started.
+            private ClientThread recipient;
+            private ClientConnection.Stream stream;
+            private Path spoolFile;
+            private FileChannel spool;
+
+            FileUpload(String receivingUser) {
+                this.receivingUser = receivingUser;
+            }
+
+            /**
+             * Receives the body of a binary TRNSFR frame, which has no header blocks.
+             */
+            FileUpload(String receivingUser, String file, long filesize) throws IOException {
+                this.receivingUser = receivingUser;
+                this.file = file;
+                this.filesize = filesize;
+                this.remaining = filesize;
+                start();
+            }
+
+            /**
+             * Consumes the bytes of the upload that are available in the buffer.
+             *
+             * @param data The received bytes.
+             * @return Returns true when the upload is complete.
+             */
+            public boolean consume(ByteBuffer data) throws IOException {
+                if (filesize < 0) {
+                    int n = Math.min(HEADER_SIZE - headerRead, data.remaining());
+                    data.get(header, headerRead, n);
+                    headerRead += n;
+                    if (headerRead < HEADER_SIZE) {
+                        return false;
+                    }
+                    headerRead = 0;
+                    if (file == null) {
+                        file = new String(header, StandardCharsets.UTF_8).trim();
+                        return false;
+                    }
+                    try {
+                        filesize = Long.parseLong(new String(header, StandardCharsets.UTF_8).trim());
+                        if (filesize < 0) {
+                            throw new NumberFormatException("Negative file size");
+                        }
+                    } catch (NumberFormatException e) {
+                        writeToClient("-ERR Failed to receive file");
+                        return true;
+                    }
+                    remaining = filesize;
+                    start();
+                }
+
+                int n = (int) Math.min(remaining, data.remaining());
+                ByteBuffer contents = data.slice(data.position(), n);
+                data.position(data.position() + n);
+                remaining -= n;
+                metrics.transferred(n);
+                if (spool != null) {
+                    while (contents.hasRemaining()) {
+                        spool.write(contents);
+                    }
+                } else if (recipient != null) {
+                    relay(contents);
+                }
+                Log.log(Log.Level.DEBUG, Log.Category.TRANSFER, username, "read bytes: ", filesize - remaining);
+                if (remaining > 0) {
+                    return false;
+                }
+
+                finish();
+                return true;
+            }
+
+            private void start() throws IOException {
+                recipient = users.lookup(receivingUser);
+                if (recipient == null) {
+                    // Nobody to send it to, the contents are read and discarded.
+                    return;
+                }
+                if (conf.isSpoolTransfers()) {
+                    spoolFile = Files.createTempFile("transfer", ".part");
+                    spool = FileChannel.open(spoolFile, StandardOpenOption.WRITE);
+                } else {
+                    sendHeaders();
+                }
+            }
+
+            private void sendHeaders() {
+                stream = recipient.getConnection().openStream();
+                if (recipient.isBinary()) {
+                    // A single frame, the contents that follow are its body.
+                    ByteBuffer header = BinaryProtocol.header("TRNSFR from " + username + " " + new File(file).getName(), filesize);
+                    metrics.sent(header.remaining());
+                    stream.write(header, null);
+                    return;
+                }
+                // The line is part of the stream, so it isn't delayed or dropped by the fault
+                // injector either.
+                Frame line = Frame.of("TRNSFR from " + username);
+                stream.write(line.buffer(), null);
+                stream.write(headerBlock(new File(file).getName()), null);
+                stream.write(headerBlock(Long.toString(filesize)), null);
+                metrics.sent(line.size() + 2 * HEADER_SIZE);
+                Log.log(Log.Level.DEBUG, Log.Category.OUTGOING, receivingUser, line.getLine());
+            }
+
+            private ByteBuffer headerBlock(String value) {
+                byte[] block = Arrays.copyOf(value.getBytes(StandardCharsets.UTF_8), HEADER_SIZE);
+                return ByteBuffer.wrap(block);
+            }
+
+            /**
+             * Copies the contents into pooled buffers for the recipient and pauses the sender
+             * when the recipient has too much queued.
+             */
+            private void relay(ByteBuffer contents) {
+                while (contents.hasRemaining()) {
+                    ByteBuffer chunk = transferBuffers.acquire();
+                    int n = Math.min(contents.remaining(), chunk.remaining());
+                    chunk.put(contents.slice(contents.position(), n));
+                    contents.position(contents.position() + n);
+                    chunk.flip();
+                    metrics.sent(n);
+                    stream.write(chunk, () -> transferBuffers.release(chunk));
+                }
+
+                OutboundQueue receiverQueue = recipient.getConnection().getOutboundQueue();
+                if (receiverQueue.getQueuedBytes() > conf.getOutboundQueueSize()) {
+                    connection.suspendReads(ClientConnection.Pause.RELAY);
+                    receiverQueue.whenDrained(conf.getOutboundQueueSize() / 2,
+                            () -> connection.resumeReads(ClientConnection.Pause.RELAY));
+                }
+            }
+
+            private void finish() throws IOException {
+                if (recipient == null) {
+                    writeToClient("-ERR Username doesn't exist.");
+                    return;
+                }
+                if (spool != null) {
+                    spool.close();
+                    spool = null;
+                    sendHeaders();
+                    // The region deletes the spool file once it has been sent.
+                    stream.writeFile(FileRegion.ofSpoolFile(spoolFile, filesize));
+                    metrics.sent(filesize);
+                    spoolFile = null;
+                }
+                stream.close();
+                stream = null;
+                recipient.writeToClient("+OK");
+                writeToClient("+OK");
+            }
+
+            public void abort() {
+                try {
+                    if (spool != null) {
+                        spool.close();
+                    }
+                    if (spoolFile != null) {
+                        Files.deleteIfExists(spoolFile);
+                    }
+                } catch (IOException e) {
+                    Log.log(Log.Level.WARN, Log.Category.TRANSFER, username, "Exception when removing spool file: ", e.getMessage());
+                }
+                if (stream != null) {
+                    // The recipient got part of the file and would read whatever comes next as
+                    // the rest of it, so it's disconnected.
+                    stream.close();
+                    stream = null;
+                    recipient.disconnect("[TRANSFER ABORTED]");
+                }
+                // Reading from the sender may have been paused for this upload.
+                connection.resumeReads(ClientConnection.Pause.RELAY);
+            }
+        }
+
+        /**
+         * Starts a resumable transfer. The recipient is offered the transfer right away if it
+         * is logged in, otherwise when it logs in.
+         */
+        private void openTransfer(Message message) throws IOException {
+            String receivingUser = message.getArgument(0);
+            String fileName = message.getRemainder(2);
+            long size;
+            try {
+                size = Long.parseLong(message.getArgument(1));
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            ClientThread recipient = users.lookup(receivingUser);
+            if (username == null) {
+                writeToClient("-ERR Please log in first");
+            } else if (!USERNAME_PATTERN.matcher(receivingUser).matches() || size < 0 || fileName.isEmpty()) {
+                writeToClient("-ERR Invalid transfer");
+            } else if (size > conf.getMaxTransferSize()) {
+                writeToClient("-ERR File too large");
+            } else if (transfers.openBy(username) >= conf.getMaxOpenTransfers()) {
+                writeToClient("-ERR Too many open transfers");
+            } else if (recipient != null && recipient.isRemote()) {
+                // Resumable transfers are kept by the node of the sender.
+                writeToClient("-ERR Recipient is logged in at another node");
+            } else {
+                Transfer transfer;
+                try {
+                    transfer = transfers.open(username, receivingUser, fileName, size);
+                } catch (IOException e) {
+                    Log.log(Log.Level.WARN, Log.Category.TRANSFER, username, "Cannot create spool: ", e.getMessage());
+                    writeToClient("-ERR Cannot store the transfer");
+                    return;
+                }
+                writeToClient("+OK FTOPEN " + transfer.getId());
+                if (recipient != null) {
+                    recipient.writeToClient(transfer.offer());
+                }
+            }
+        }
+
+        /**
+         * Prepares receiving the bytes of a chunk that follow the FTCHUNK line. A chunk that is
+         * rejected is still read, so the bytes are not mistaken for commands.
+         *
+         * @return Returns the upload that reads the bytes of the chunk, or null if the length
+         *         is unknown and the connection is closed.
+         */
+        private Upload receiveChunk(Message message) {
+            long length;
+            try {
+                length = message.isBinary() ? message.getBodyLength() : Long.parseLong(message.getArgument(2));
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0 || length > MAX_CHUNK_SIZE) {
+                // Without a valid length we can't tell where the chunk ends.
+                state = FINISHED;
+                writeToClient("-ERR Invalid chunk length");
+                connection.close();
+                return null;
+            }
+
+            Transfer transfer = findTransfer(message.getArgument(0));
+            long offset;
+            long checksum;
+            try {
+                offset = Long.parseLong(message.getArgument(1));
+                checksum = Long.parseLong(message.getArgument(message.isBinary() ? 2 : 3), 16);
+            } catch (NumberFormatException e) {
+                return new ChunkUpload(null, 0, length, 0, "-ERR Invalid chunk");
+            }
+            if (transfer == null || !transfer.getSender().equals(username)) {
+                return new ChunkUpload(null, 0, length, 0, "-ERR Unknown transfer");
+            }
+            if (offset < 0 || offset > transfer.getUploadedOffset() || offset + length > transfer.getSize()) {
+                // Chunks must be sent in order, resending an acknowledged chunk is allowed.
+                return new ChunkUpload(null, 0, length, 0,
+                        "-ERR Unexpected offset " + transfer.getId() + " " + transfer.getUploadedOffset());
+            }
+            return new ChunkUpload(transfer, offset, length, checksum, null);
+        }
+
+        /**
+         * Tells the sender where to continue an interrupted upload.
+         */
+        private void resumeTransfer(Message message) {
+            Transfer transfer = findTransfer(message.getArgument(0));
+            if (transfer == null || !transfer.getSender().equals(username)) {
+                writeToClient("-ERR Unknown transfer");
+            } else {
+                writeToClient("+OK FTRESUME " + transfer.getId() + " " + transfer.getUploadedOffset());
+            }
+        }
+
+        /**
+         * Starts sending a transfer to the recipient from an offset. Data that hasn't been
+         * uploaded yet is sent as soon as it arrives.
+         */
+        private void downloadTransfer(Message message) {
+            Transfer transfer = findTransfer(message.getArgument(0));
+            long offset;
+            try {
+                offset = Long.parseLong(message.getArgument(1));
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (transfer == null || !transfer.getRecipient().equals(username)) {
+                writeToClient("-ERR Unknown transfer");
+            } else if (offset < 0 || offset > transfer.getSize()) {
+                writeToClient("-ERR Invalid offset");
+            } else {
+                writeToClient("+OK FTGET " + transfer.getId() + " " + transfer.getSize());
+                transfer.startDownload(this, offset);
+            }
+        }
+
+        /**
+         * Records how far the recipient got. When the whole file has arrived the transfer is
+         * removed and the sender is told it is done.
+         */
+        private void acknowledgeTransfer(Message message) {
+            Transfer transfer = findTransfer(message.getArgument(0));
+            long offset;
+            try {
+                offset = Long.parseLong(message.getArgument(1));
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (transfer == null || !transfer.getRecipient().equals(username)) {
+                writeToClient("-ERR Unknown transfer");
+                return;
+            }
+            boolean complete = transfer.acknowledge(offset);
+            writeToClient("+OK FTACK " + transfer.getId() + " " + transfer.getAcknowledgedOffset());
+            if (complete) {
+                transfers.remove(transfer);
+                ClientThread sender = users.lookup(transfer.getSender());
+                if (sender != null) {
+                    sender.writeToClient("FTDONE " + transfer.getId());
+                }
+            }
+        }
+
+        private Transfer findTransfer(String id) {
+            try {
+                return transfers.get(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Receives the bytes of a single FTCHUNK and writes them to the spool of the transfer.
+         * The chunk only counts as uploaded when its checksum matches.
+         */
+        private class ChunkUpload implements Upload {
+            // Null when the chunk was rejected and its bytes are skipped.
+            private Transfer transfer;
+            private long offset;
+            private long length;
+            private long checksum;
+            private String rejection;
+            private long received = 0;
+            private CRC32 crc = new CRC32();
+            // The bytes before this offset were stored and may have been sent to the recipient
+            // already. A resend is only checked, it can't overwrite them before its CRC is known.
+            private long storedOffset;
+
+            ChunkUpload(Transfer transfer, long offset, long length, long checksum, String rejection) {
+                this.transfer = transfer;
+                this.offset = offset;
+                this.length = length;
+                this.checksum = checksum;
+                this.rejection = rejection;
+                this.storedOffset = transfer != null ? transfer.getUploadedOffset() : 0;
+            }
+
+            public boolean consume(ByteBuffer data) throws IOException {
+                int n = (int) Math.min(length - received, data.remaining());
+                ByteBuffer contents = data.slice(data.position(), n);
+                data.position(data.position() + n);
+                if (transfer != null) {
+                    crc.update(contents.duplicate());
+                    long position = offset + received;
+                    int skip = (int) Math.min(n, Math.max(0, storedOffset - position));
+                    if (skip < n) {
+                        transfer.getSpool().write(position + skip, contents.position(skip));
+                    }
+                    metrics.transferred(n);
+                }
+                received += n;
+                if (received < length) {
+                    return false;
+                }
+
+                if (transfer == null) {
+                    writeToClient(rejection);
+                } else if (crc.getValue() != checksum) {
+                    writeToClient("-ERR Checksum mismatch " + transfer.getId() + " " + transfer.getUploadedOffset());
+                } else {
+                    transfer.chunkStored(offset + length);
+                    writeToClient("+OK FTCHUNK " + transfer.getId() + " " + transfer.getUploadedOffset());
+                }
+                return true;
+            }
+
+            public void abort() {
+                // The transfer keeps its uploaded offset, the sender resumes from there.
+            }
+        }
+
+        /**
+         * Sends a private message, which clients encrypt with the key of the recipient. Pass the
+         * forms of the message that are known, only the form the recipient needs is made. With a
+         * message store, a message to a known user that is offline is delivered at its next login.
+         *
+         * @param receivingUser The recipient.
+         * @param message       The message, or null.
+         * @param message64     The message in Base64, or null.
+         */
+        public void transferPrivateMessage(String receivingUser, byte[] message, String message64) {
+            boolean succes = false;
+            ClientThread recipient = users.lookup(receivingUser);
+            if (recipient == null && messages != null) {
+                // Keep the message until the recipient logs in again.
+                switch (messages.store(receivingUser, username, message, message64, () -> users.lookup(receivingUser) == null)) {
+                    case STORED:
+                        writeToClient("+OK");
+                        return;
+                    case TOO_LARGE:
+                        writeToClient("-ERR Message too large");
+                        return;
+                    case FAILED:
+                        writeToClient("-ERR Cannot store the message");
+                        return;
+                    case ONLINE:
+                        recipient = users.lookup(receivingUser);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (recipient != null) {
+                recipient.writeToClient(Frame.withBody("WHISPER " + username, message, message64));
+                succes = true;
+            }
+            if (!succes) {
+                writeToClient("-ERR Username doesn't exist.");
+            } else {
+                writeToClient("+OK");
+            }
+        }
+
+        public PublicKey getPublicKey() {
+            PublicKeyStore.Entry entry = publicKey;
+            return entry != null ? entry.getPublicKey() : null;
+        }
+    }
+}
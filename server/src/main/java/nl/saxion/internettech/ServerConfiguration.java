@@ -0,0 +1,594 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+public class ServerConfiguration {
+
+    // Constants.
+    public final String WELCOME_MESSAGE = "Welkom to WhatsUpp!";
+    public final String VERSION = "1.2";
+    // Colors for the console.
+    public final String RESET_CLI_COLORS = "\u001B[0m";   // ANSI RESET
+    public final String CLI_COLOR_INCOMING = "\u001B[31m";    // ANSI RED
+    public final String CLI_COLOR_OUTGOING = "\u001B[32m";  // ANSI GREEN
+
+
+    // The port clients connect to.
+    private int port = 1337;
+
+    // Cluster parameters: the address of this node and of the other nodes, as host:port.
+    private String clusterAddress = null;
+    private List<String> peers = new ArrayList<>();
+    // Nodes prove that they know this secret when they set up a link.
+    private String clusterSecret = null;
+
+    // Enable colors in debug messages
+    private boolean showColors = true;
+
+    // Simulation parameters for bad server modus. Rates are the chance per message, 0 to 1.
+    private boolean simulateConnectionLost = false;
+    private long faultSeed = new SplittableRandom().nextLong();
+    private double dropRate = 0;
+    private double corruptRate = 0;
+    private double duplicateRate = 0;
+    private double reorderRate = 0;
+    private long latency = 0;
+    private long latencyJitter = 0;
+    private long bandwidth = 0;
+
+    // Logging parameters.
+    private Log.Level logLevel = Log.Level.DEBUG;
+    private boolean logToConsole = true;
+    private String logFile = null;
+    private String logBinaryFile = null;
+    private Map<Log.Category, Integer> logSampleRates = new EnumMap<>(Log.Category.class);
+
+    // Transport parameters.
+    private boolean useNio = false;
+    private boolean useVirtualThreads = false;
+    private int selectorThreads = Runtime.getRuntime().availableProcessors();
+
+    // Outbound queue parameters.
+    private long outboundQueueSize = 1024 * 1024;
+    // A sender never waits for a slow client by default, blocking would park the broadcasting
+    // thread for every slow recipient.
+    private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.DISCONNECT;
+    private long slowConsumerTimeout = 1000;
+
+    // Interval at which key changes are pushed to key directory subscribers.
+    private long keyBatchInterval = 100;
+
+    // File transfer parameters.
+    private boolean spoolTransfers = false;
+    // Limits of the resumable transfers (FTOPEN): the size of a file and the transfers a user
+    // may have open at once, each has a spool file.
+    private long maxTransferSize = 4L * 1024 * 1024 * 1024;
+    private int maxOpenTransfers = 16;
+
+    // Frames of at least this many bytes are compressed for clients that ask for it, 0 refuses compression.
+    private int compressionThreshold = 256;
+
+    // Offline message parameters, messages are only stored when a directory is configured.
+    private String messageStore = null;
+    private long messageSyncInterval = 100;
+    private int messageSegmentSize = 16 * 1024 * 1024;
+    private long messageRetention = 7 * 24 * 60 * 60 * 1000L;
+
+    // Group history parameters: messages kept per group, bytes kept by all groups and messages
+    // replayed to a member that joins.
+    private int groupHistorySize = 100;
+    private long groupHistoryBudget = 16 * 1024 * 1024;
+    private int groupHistoryReplay = 0;
+
+    // Session timeouts in milliseconds, 0 disables them.
+    private long handshakeTimeout = 30000;
+    private long idleTimeout = 0;
+    private long heartbeatInterval = 0;
+
+    // Rate limits per session, 0 disables them. Commands are weighed by their fan-out, see
+    // Server.ClientThread#cost.
+    private long commandRateLimit = 0;
+    private long commandBurst = 0;
+    private long byteRateLimit = 0;
+    private long byteBurst = 0;
+    private TokenBucket.LimitPolicy rateLimitPolicy = TokenBucket.LimitPolicy.THROTTLE;
+
+    // Metrics parameters.
+    private int metricsPort = 0;
+    private Set<String> adminUsers = new HashSet<>();
+
+    public boolean doSimulateDroppedPackets() {
+        return dropRate > 0;
+    }
+
+    /**
+     * Drop one in six messages, the classic bad server rate.
+     */
+    public void setSimulateDroppedPackets(boolean simulateDroppedPackets) {
+        this.dropRate = simulateDroppedPackets ? 1.0 / 6 : 0;
+    }
+
+    public boolean doSimulateCorruptedPackets() {
+        return corruptRate > 0;
+    }
+
+    /**
+     * Corrupt one in four messages, the classic bad server rate.
+     */
+    public void setSimulateCorruptedPackets(boolean simulateCorruptedPackets) {
+        this.corruptRate = simulateCorruptedPackets ? 1.0 / 4 : 0;
+    }
+
+    /**
+     * @return Returns the seed of the simulated faults. The same seed gives the same faults for
+     *         the same connections and messages.
+     */
+    public long getFaultSeed() {
+        return faultSeed;
+    }
+
+    public void setFaultSeed(long faultSeed) {
+        this.faultSeed = faultSeed;
+    }
+
+    public double getDropRate() {
+        return dropRate;
+    }
+
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    public double getCorruptRate() {
+        return corruptRate;
+    }
+
+    public void setCorruptRate(double corruptRate) {
+        this.corruptRate = corruptRate;
+    }
+
+    public double getDuplicateRate() {
+        return duplicateRate;
+    }
+
+    public void setDuplicateRate(double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+    }
+
+    public double getReorderRate() {
+        return reorderRate;
+    }
+
+    /**
+     * Hold back messages at this rate and send them after the next message.
+     */
+    public void setReorderRate(double reorderRate) {
+        this.reorderRate = reorderRate;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    public long getLatencyJitter() {
+        return latencyJitter;
+    }
+
+    /**
+     * Delay every message by latency plus a random jitter, both in milliseconds.
+     */
+    public void setLatency(long latency, long latencyJitter) {
+        this.latency = latency;
+        this.latencyJitter = latencyJitter;
+    }
+
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Limit the messages sent to a single client to this many bytes per second, 0 for no limit.
+     */
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    public boolean doSimulateConnectionLost() {
+        return simulateConnectionLost;
+    }
+
+    public void setSimulateConnectionLost(boolean simulateConnectionLost) {
+        this.simulateConnectionLost = simulateConnectionLost;
+    }
+
+    public boolean isShowColors() {
+        return showColors;
+    }
+
+    public void setShowColors(boolean showColors) {
+        this.showColors = showColors;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public void setLogLevel(Log.Level logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    public boolean isLogToConsole() {
+        return logToConsole;
+    }
+
+    public void setLogToConsole(boolean logToConsole) {
+        this.logToConsole = logToConsole;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public void setLogFile(String logFile) {
+        this.logFile = logFile;
+    }
+
+    public String getLogBinaryFile() {
+        return logBinaryFile;
+    }
+
+    public void setLogBinaryFile(String logBinaryFile) {
+        this.logBinaryFile = logBinaryFile;
+    }
+
+    public Map<Log.Category, Integer> getLogSampleRates() {
+        return logSampleRates;
+    }
+
+    /**
+     * Only log one in every rate entries of a category, for example the bodies of outgoing messages.
+     */
+    public void setLogSampleRate(Log.Category category, int rate) {
+        logSampleRates.put(category, rate);
+    }
+
+    public boolean isUseNio() {
+        return useNio;
+    }
+
+    public void setUseNio(boolean useNio) {
+        this.useNio = useNio;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    public void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }
+
+    public long getOutboundQueueSize() {
+        return outboundQueueSize;
+    }
+
+    public void setOutboundQueueSize(long outboundQueueSize) {
+        this.outboundQueueSize = outboundQueueSize;
+    }
+
+    public OutboundQueue.SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(OutboundQueue.SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public long getSlowConsumerTimeout() {
+        return slowConsumerTimeout;
+    }
+
+    public void setSlowConsumerTimeout(long slowConsumerTimeout) {
+        this.slowConsumerTimeout = slowConsumerTimeout;
+    }
+
+    public long getKeyBatchInterval() {
+        return keyBatchInterval;
+    }
+
+    public void setKeyBatchInterval(long keyBatchInterval) {
+        this.keyBatchInterval = keyBatchInterval;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return Returns the host:port at which the other nodes of the cluster reach this node, or
+     *         null when the server runs on its own.
+     */
+    public String getClusterAddress() {
+        return clusterAddress;
+    }
+
+    /**
+     * Run the server as a node of a cluster. The other nodes connect to the port of the address,
+     * the address is also the name of the node.
+     */
+    public void setClusterAddress(String clusterAddress) {
+        this.clusterAddress = clusterAddress;
+    }
+
+    /**
+     * @return Returns the addresses of the other nodes of the cluster.
+     */
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public void addPeer(String peer) {
+        peers.add(peer);
+    }
+
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    /**
+     * The secret that all nodes of the cluster share. Links of nodes that don't know it are
+     * refused; the secret itself is never sent.
+     */
+    public void setClusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret;
+    }
+
+    public boolean isSpoolTransfers() {
+        return spoolTransfers;
+    }
+
+    /**
+     * Write file transfers to a temporary file before sending them, instead of relaying them
+     * while they are received. The sender is then never slowed down by the recipient.
+     */
+    public void setSpoolTransfers(boolean spoolTransfers) {
+        this.spoolTransfers = spoolTransfers;
+    }
+
+    public long getMaxTransferSize() {
+        return maxTransferSize;
+    }
+
+    public void setMaxTransferSize(long maxTransferSize) {
+        this.maxTransferSize = maxTransferSize;
+    }
+
+    public int getMaxOpenTransfers() {
+        return maxOpenTransfers;
+    }
+
+    /**
+     * The number of resumable transfers a user may have open at once. A transfer stays open
+     * until the recipient has the whole file or it expires.
+     */
+    public void setMaxOpenTransfers(int maxOpenTransfers) {
+        this.maxOpenTransfers = maxOpenTransfers;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Compress frames of at least this many bytes for clients that log in with COMPRESS, 0 to
+     * refuse compression.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return Returns the directory of the offline message store, or null when messages to
+     *         offline users are refused.
+     */
+    public String getMessageStore() {
+        return messageStore;
+    }
+
+    public void setMessageStore(String messageStore) {
+        this.messageStore = messageStore;
+    }
+
+    public long getMessageSyncInterval() {
+        return messageSyncInterval;
+    }
+
+    /**
+     * Force stored messages to disk once per this many milliseconds, a crash loses at most the
+     * messages of one interval.
+     */
+    public void setMessageSyncInterval(long messageSyncInterval) {
+        this.messageSyncInterval = messageSyncInterval;
+    }
+
+    public int getMessageSegmentSize() {
+        return messageSegmentSize;
+    }
+
+    public void setMessageSegmentSize(int messageSegmentSize) {
+        this.messageSegmentSize = messageSegmentSize;
+    }
+
+    public long getMessageRetention() {
+        return messageRetention;
+    }
+
+    /**
+     * Drop stored messages that weren't delivered within this many milliseconds.
+     */
+    public void setMessageRetention(long messageRetention) {
+        this.messageRetention = messageRetention;
+    }
+
+    public int getGroupHistorySize() {
+        return groupHistorySize;
+    }
+
+    /**
+     * Keep this many of the most recent messages of every group, 0 to keep none.
+     */
+    public void setGroupHistorySize(int groupHistorySize) {
+        this.groupHistorySize = groupHistorySize;
+    }
+
+    public long getGroupHistoryBudget() {
+        return groupHistoryBudget;
+    }
+
+    /**
+     * Evict the oldest messages of all groups when the histories use more than this many bytes.
+     */
+    public void setGroupHistoryBudget(long groupHistoryBudget) {
+        this.groupHistoryBudget = groupHistoryBudget;
+    }
+
+    public int getGroupHistoryReplay() {
+        return groupHistoryReplay;
+    }
+
+    /**
+     * Send this many of the most recent messages of a group to a member that joins it, 0 to
+     * send none.
+     */
+    public void setGroupHistoryReplay(int groupHistoryReplay) {
+        this.groupHistoryReplay = groupHistoryReplay;
+    }
+
+    public long getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Disconnect clients that didn't log in with HELO within this many milliseconds, 0 to disable.
+     */
+    public void setHandshakeTimeout(long handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Disconnect clients that didn't send anything for this many milliseconds, 0 to disable.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Send PING to clients that didn't send anything for this many milliseconds and disconnect
+     * them when they don't answer within the same time, 0 to disable.
+     */
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public long getCommandRateLimit() {
+        return commandRateLimit;
+    }
+
+    /**
+     * @return Returns the number of commands a session may send at once, the rate limit when
+     *         no burst is configured.
+     */
+    public long getCommandBurst() {
+        return commandBurst > 0 ? commandBurst : commandRateLimit;
+    }
+
+    /**
+     * Limit every session to this many commands per second, 0 to disable. A broadcast counts
+     * once for the sender and once for every recipient.
+     *
+     * @param burst The number of commands a session may send at once, 0 for the rate.
+     */
+    public void setCommandRateLimit(long commandRateLimit, long burst) {
+        this.commandRateLimit = commandRateLimit;
+        this.commandBurst = burst;
+    }
+
+    public long getByteRateLimit() {
+        return byteRateLimit;
+    }
+
+    /**
+     * @return Returns the number of bytes a session may send at once, the rate limit when no
+     *         burst is configured.
+     */
+    public long getByteBurst() {
+        return byteBurst > 0 ? byteBurst : byteRateLimit;
+    }
+
+    /**
+     * Limit every session to receiving this many bytes per second, 0 to disable.
+     *
+     * @param burst The number of bytes a session may send at once, 0 for the rate.
+     */
+    public void setByteRateLimit(long byteRateLimit, long burst) {
+        this.byteRateLimit = byteRateLimit;
+        this.byteBurst = burst;
+    }
+
+    public TokenBucket.LimitPolicy getRateLimitPolicy() {
+        return rateLimitPolicy;
+    }
+
+    public void setRateLimitPolicy(TokenBucket.LimitPolicy rateLimitPolicy) {
+        this.rateLimitPolicy = rateLimitPolicy;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Serve the metrics over HTTP on this port of the loopback interface, 0 to disable.
+     */
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * @return Returns the usernames that may use the admin commands, like STATS.
+     */
+    public Set<String> getAdminUsers() {
+        return adminUsers;
+    }
+
+    public void addAdminUser(String username) {
+        adminUsers.add(username);
+    }
+
+}
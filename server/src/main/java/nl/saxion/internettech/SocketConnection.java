@@ -0,0 +1,257 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Client connection backed by a blocking {@link Socket}. Reads are done by the
+ * {@link Server.ClientThread} that owns the connection. Writes are queued and sent by a writer
+ * thread of the connection, which combines everything that is queued into as few socket writes as
+ * possible. A slow client therefore no longer blocks the thread that sends it a message.
+ *
+ * Every connection thus costs two threads, the reader and the writer, each with its own stack.
+ * Those are platform threads unless virtual threads are enabled. For many clients use virtual
+ * threads, or the NIO transport, where a few reactor threads serve all connections.
+ */
+public class SocketConnection implements ClientConnection {
+
+    private static final int COALESCE_BUFFER_SIZE = 64 * 1024;
+
+    private Socket socket;
+    private InputStream is;
+    private OutputStream os;
+    private OutboundQueue outboundQueue;
+    private volatile Thread writer;
+    private AtomicBoolean writerIdle = new AtomicBoolean(false);
+    private volatile boolean closeRequested = false;
+    // Tasks for the reading thread, see execute.
+    private BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+    public SocketConnection(Socket socket, ServerConfiguration conf, Executor writerExecutor) throws IOException {
+        this.socket = socket;
+        this.is = socket.getInputStream();
+        this.os = socket.getOutputStream();
+        this.outboundQueue = new OutboundQueue(conf);
+        writerExecutor.execute(this::writeLoop);
+    }
+
+    public InputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public void write(ByteBuffer data) {
+        write(data, true);
+    }
+
+    @Override
+    public void write(ByteBuffer data, boolean mayBlock) {
+        if (closeRequested) {
+            return;
+        }
+        OutboundQueue.Result result = outboundQueue.offer(data, mayBlock && NioTransport.mayBlock());
+        if (result == OutboundQueue.Result.OVERFLOW) {
+            Log.log(Log.Level.WARN, Log.Category.CONNECTION, null, "[SLOW CONSUMER] disconnecting, bytes queued: ", outboundQueue.getQueuedBytes());
+            abort();
+            return;
+        }
+        wakeWriter();
+    }
+
+    @Override
+    public void writeBulk(ByteBuffer data, Runnable onWritten) {
+        if (closeRequested) {
+            if (onWritten != null) {
+                onWritten.run();
+            }
+            return;
+        }
+        outboundQueue.force(data, mayBlock(), onWritten);
+        wakeWriter();
+    }
+
+    @Override
+    public void writeFile(FileRegion region) {
+        if (closeRequested) {
+            region.release();
+            return;
+        }
+        outboundQueue.force(region, mayBlock());
+        wakeWriter();
+    }
+
+    @Override
+    public Stream openStream() {
+        OutboundQueue.Stream stream = outboundQueue.openStream();
+        return new Stream() {
+            @Override
+            public void write(ByteBuffer data, Runnable onWritten) {
+                stream.force(data, mayBlock(), onWritten);
+                wakeWriter();
+            }
+
+            @Override
+            public void writeFile(FileRegion region) {
+                stream.force(region, mayBlock());
+                wakeWriter();
+            }
+
+            @Override
+            public void close() {
+                stream.close();
+                wakeWriter();
+            }
+        };
+    }
+
+    @Override
+    public void suspendReads(Pause reason) {
+        // The reading thread already waits for room in writeBulk.
+    }
+
+    @Override
+    public void resumeReads(Pause reason) {
+    }
+
+    /**
+     * Queues a task for the reading thread. That thread only runs tasks when it waits for one in
+     * {@link #runTask()}, which it does instead of reading while a command waits.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+    }
+
+    /**
+     * Waits for the next task of {@link #execute(Runnable)} and runs it. Only called by the
+     * reading thread.
+     */
+    public void runTask() throws InterruptedException {
+        tasks.take().run();
+    }
+
+    @Override
+    public void close() {
+        closeRequested = true;
+        wakeWriter();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * @return Returns false when the calling thread must not wait for room. The writer thread
+     *         can't wait for itself, a transfer may queue data when a chunk was written. Peer
+     *         links of the cluster are also written to by reactor and timer threads.
+     */
+    private boolean mayBlock() {
+        return Thread.currentThread() != writer && NioTransport.mayBlock();
+    }
+
+    private void wakeWriter() {
+        if (writerIdle.compareAndSet(true, false)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Drains the outbound queue until the connection is closed.
+     */
+    private void writeLoop() {
+        writer = Thread.currentThread();
+        byte[] coalesced = new byte[COALESCE_BUFFER_SIZE];
+        WritableByteChannel out = Channels.newChannel(os);
+        try {
+            while (true) {
+                FileRegion region = outboundQueue.peekRegion();
+                if (region != null) {
+                    while (region.hasRemaining()) {
+                        region.transferTo(out);
+                    }
+                    outboundQueue.remove();
+                    os.flush();
+                    continue;
+                }
+                ByteBuffer head = outboundQueue.peek();
+                if (head == null) {
+                    if (closeRequested) {
+                        break;
+                    }
+                    // Announce that we are going to sleep and check once more, so a writer that
+                    // queued data in the meantime either sees the flag or we see its data.
+                    writerIdle.set(true);
+                    if (!outboundQueue.hasNext() && !closeRequested) {
+                        LockSupport.park(this);
+                    }
+                    writerIdle.set(false);
+                    continue;
+                }
+
+                if (head.remaining() >= coalesced.length) {
+                    // Too large to combine, write it directly.
+                    writeBuffer(head, coalesced);
+                    outboundQueue.remove();
+                } else {
+                    // Combine as many queued items as fit into one write.
+                    int length = 0;
+                    while (head != null && head.remaining() <= coalesced.length - length) {
+                        int size = head.remaining();
+                        head.duplicate().get(coalesced, length, size);
+                        length += size;
+                        outboundQueue.remove();
+                        head = outboundQueue.peek();
+                    }
+                    os.write(coalesced, 0, length);
+                }
+                os.flush();
+            }
+        } catch (IOException e) {
+            // The reading side notices the broken connection and cleans up.
+        }
+        outboundQueue.clear();
+        closeSocket();
+    }
+
+    private void writeBuffer(ByteBuffer data, byte[] coalesced) throws IOException {
+        if (data.hasArray()) {
+            os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            // Copy direct buffers through the coalesce buffer instead of allocating a new array.
+            ByteBuffer view = data.duplicate();
+            while (view.hasRemaining()) {
+                int n = Math.min(view.remaining(), coalesced.length);
+                view.get(coalesced, 0, n);
+                os.write(coalesced, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection without sending what is still queued.
+     */
+    private void abort() {
+        closeRequested = true;
+        closeSocket();
+        wakeWriter();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.log(Log.Level.WARN, Log.Category.CONNECTION, null, "Exception when closing socket: ", e.getMessage());
+        }
+    }
+}
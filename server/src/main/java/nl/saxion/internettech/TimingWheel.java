@@ -0,0 +1,233 @@
+package nl.saxion.internettech;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: a single thread that runs the timers of all sessions. Time is divided
+ * into ticks and the wheel has a bucket per tick, timers further away than one turn of the wheel
+ * wait for the number of turns that is left. Scheduling and cancelling are O(1): new and
+ * cancelled timers are queued and the wheel thread moves them into or out of their bucket on the
+ * next tick. A timer runs at most one tick late.
+ *
+ * The tasks run on the wheel thread, so they must be short and must not block. Connections
+ * check {@link #isWheelThread()} and never let a task wait for room in their outbound queue.
+ */
+public class TimingWheel {
+
+    // Moving more timers at once would delay the tick.
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    // The number of ticks that have been processed, only used by the wheel thread.
+    private long tick = 0;
+
+    /**
+     * @param tickDuration  The duration of a tick, which is the precision of the timers.
+     * @param unit          The unit of the tick duration.
+     * @param ticksPerWheel The number of buckets, rounded up to a power of two.
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.worker = new WheelThread(this::run);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Starts the wheel thread. Timers can be scheduled before, they run once the wheel has been
+     * started.
+     */
+    public void start() {
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to run once after a delay.
+     *
+     * @param task  The task, which runs on the wheel thread.
+     * @param delay The delay.
+     * @param unit  The unit of the delay.
+     * @return Returns the timer, which can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return Returns true when called by a task of a timing wheel.
+     */
+    public static boolean isWheelThread() {
+        return Thread.currentThread() instanceof WheelThread;
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = startTime + deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(sleep);
+            }
+            removeCancelled();
+            transferPending();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long dueTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            // Timers that are already due go into the current bucket.
+            long slot = Math.max(dueTick, tick);
+            wheel[(int) (slot & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        // Nanoseconds since the start of the wheel.
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // Only used by the wheel thread.
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout previous;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it didn't run yet. May be called from any thread.
+         */
+        public void cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                cancelled.add(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.log(Log.Level.ERROR, Log.Category.SERVER, null, "Timer task failed: ", e.toString());
+            }
+        }
+    }
+
+    /**
+     * The timers of a single tick, in a doubly linked list so they can be removed in O(1).
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            if (timeout == head) {
+                head = timeout.next;
+            }
+            if (timeout == tail) {
+                tail = timeout.previous;
+            }
+            timeout.next = null;
+            timeout.previous = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * Runs the timers that are due and counts down the others.
+         */
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Marks the threads that run a timing wheel.
+     */
+    private static class WheelThread extends Thread {
+        WheelThread(Runnable wheel) {
+            super(wheel, "timing-wheel");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package nl.saxion.internettech;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits the rate of a session, kept as a single number so that it can be
+ * checked on every command without a lock. Instead of the number of tokens the bucket keeps the
+ * moment at which it would be full again; taking tokens moves that moment forward by the time it
+ * takes to earn them back. The bucket is empty when that moment is more than the burst ahead.
+ *
+ * A cost larger than the burst, like a broadcast to more users than the burst allows, is let
+ * through when the bucket is full and leaves the session in debt until the time is earned back.
+ */
+public class TokenBucket {
+
+    /**
+     * What to do with a session that goes over its limit.
+     */
+    public enum LimitPolicy {
+        // Refuse the commands and pause reading until there are tokens again.
+        THROTTLE,
+        // Disconnect the client.
+        DISCONNECT
+    }
+
+    // The time it takes to earn a token and the time that the burst is worth, in nanoseconds.
+    private final long nanosPerToken;
+    private final long burstNanos;
+    // The System.nanoTime() at which the bucket is full again.
+    private final AtomicLong fullAt;
+
+    /**
+     * @param rate  The number of tokens earned per second.
+     * @param burst The number of tokens the bucket holds, at least 1.
+     */
+    public TokenBucket(long rate, long burst) {
+        this.nanosPerToken = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+        this.burstNanos = Math.max(1, burst) * nanosPerToken;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes tokens when the bucket isn't empty.
+     *
+     * @param cost The number of tokens.
+     * @return Returns true when the tokens were taken, false when the bucket is empty.
+     */
+    public boolean tryTake(long cost) {
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long start = Math.max(current, now);
+            if (start - now >= burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, start + cost * nanosPerToken)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes tokens for something that already happened, like bytes that have been received.
+     *
+     * @param cost The number of tokens.
+     * @return Returns the number of nanoseconds until the bucket isn't empty anymore, 0 when it
+     *         isn't empty now.
+     */
+    public long take(long cost) {
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost * nanosPerToken;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A resumable file transfer. The sender uploads the file in chunks (FTCHUNK) that are stored in a
+ * memory-mapped spool file, the recipient downloads it (FTGET) from any offset and acknowledges
+ * what it received (FTACK). The transfer remembers how far both sides are, so after a dropped
+ * connection the sender continues at the uploaded offset and the recipient at the acknowledged
+ * offset. The recipient can download while the upload is still in progress; new chunks are
+ * pushed to it as they arrive.
+ *
+ * The data goes to the recipient as FTDATA chunks in the bulk lane of its outbound queue, so chat
+ * messages overtake them. Every transfer has its own window of bytes that may be queued and not
+ * yet written, so concurrent transfers to the same recipient share its connection fairly.
+ */
+public class Transfer {
+
+    // Room for the FTDATA line in front of the data of a chunk.
+    private static final int MAX_HEADER_SIZE = 128;
+
+    private final long id;
+    private final String sender;
+    private final String recipient;
+    private final String name;
+    private final long size;
+    private final MappedSpool spool;
+    private final BufferPool buffers;
+    private final long window;
+    private final Metrics metrics;
+
+    private volatile long uploadedOffset = 0;
+    private volatile long acknowledgedOffset = 0;
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    // The session that is downloading and the next offset to send it.
+    private Server.ClientThread downloader;
+    private long downloadOffset;
+    // The bytes that are queued for the recipient and not written yet.
+    private long queued = 0;
+    private boolean waitingForDrain = false;
+    // Only one thread sends data at a time, see pump.
+    private AtomicInteger pumpRequests = new AtomicInteger();
+
+    /**
+     * @param buffers The pool of buffers that carry the data to the recipient.
+     * @param window  The number of bytes of this transfer that may be queued for the recipient
+     *                before sending waits for the recipient to catch up.
+     * @param metrics The metrics that count the bytes sent to the recipient.
+     */
+    public Transfer(long id, String sender, String recipient, String name, long size, MappedSpool spool,
+                    BufferPool buffers, long window, Metrics metrics) {
+        this.id = id;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.name = name;
+        this.size = size;
+        this.spool = spool;
+        this.buffers = buffers;
+        this.window = window;
+        this.metrics = metrics;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public MappedSpool getSpool() {
+        return spool;
+    }
+
+    public long getUploadedOffset() {
+        return uploadedOffset;
+    }
+
+    public long getAcknowledgedOffset() {
+        return acknowledgedOffset;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * @return Returns the line that offers this transfer to the recipient.
+     */
+    public String offer() {
+        return "FTOFFER " + id + " " + sender + " " + size + " " + acknowledgedOffset + " " + name;
+    }
+
+    /**
+     * Records that a chunk has been written to the spool and verified.
+     *
+     * @param end The offset of the first byte after the chunk.
+     */
+    public void chunkStored(long end) {
+        synchronized (this) {
+            if (end > uploadedOffset) {
+                uploadedOffset = end;
+            }
+            lastActivity = System.currentTimeMillis();
+        }
+        pump();
+    }
+
+    /**
+     * Starts sending the spooled data to a session of the recipient, replacing an earlier
+     * download.
+     *
+     * @param client The session of the recipient.
+     * @param offset The offset to start at.
+     */
+    public void startDownload(Server.ClientThread client, long offset) {
+        synchronized (this) {
+            downloader = client;
+            downloadOffset = offset;
+            waitingForDrain = false;
+            lastActivity = System.currentTimeMillis();
+        }
+        pump();
+    }
+
+    /**
+     * Stops sending data to a session, for example because it disconnected.
+     */
+    public synchronized void stopDownload(Server.ClientThread client) {
+        if (downloader == client) {
+            downloader = null;
+        }
+    }
+
+    /**
+     * Records that the recipient received the data up to an offset.
+     *
+     * @param offset The offset of the first byte that wasn't received yet.
+     * @return Returns true when the recipient has received the whole file.
+     */
+    public synchronized boolean acknowledge(long offset) {
+        if (offset > acknowledgedOffset && offset <= uploadedOffset) {
+            acknowledgedOffset = offset;
+        }
+        lastActivity = System.currentTimeMillis();
+        return acknowledgedOffset == size;
+    }
+
+    /**
+     * Sends the recipient as much of the uploaded data as its window allows. Calls from other
+     * threads while data is being sent are handed to the thread that is sending, so a drain
+     * callback never waits for a thread that is waiting for the same queue.
+     */
+    private void pump() {
+        if (pumpRequests.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            try {
+                sendAvailable();
+            } catch (IOException e) {
+                Log.log(Log.Level.WARN, Log.Category.TRANSFER, recipient, "Exception when reading spool file: ", e.getMessage());
+            }
+        } while (pumpRequests.decrementAndGet() != 0);
+    }
+
+    private void sendAvailable() throws IOException {
+        while (true) {
+            Server.ClientThread client;
+            long offset;
+            ByteBuffer data;
+            synchronized (this) {
+                client = downloader;
+                offset = downloadOffset;
+                if (client == null || waitingForDrain || offset >= uploadedOffset) {
+                    return;
+                }
+                if (queued >= window) {
+                    // Continue when the recipient has caught up, see written.
+                    waitingForDrain = true;
+                    return;
+                }
+                int length = (int) Math.min(buffers.getBufferSize() - MAX_HEADER_SIZE, uploadedOffset - offset);
+                data = spool.read(offset, length);
+                downloadOffset = offset + data.remaining();
+                queued += data.remaining();
+            }
+
+            int length = data.remaining();
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            String crc32 = Long.toHexString(crc.getValue());
+
+            // The line and the data go out as one buffer, so no other message can end up between
+            // them. They also bypass the simulated packet loss for that reason. Binary clients
+            // get a frame with the data as its body.
+            ByteBuffer chunk = buffers.acquire();
+            if (client.isBinary()) {
+                chunk.put(BinaryProtocol.header("FTDATA " + id + " " + offset + " " + crc32, data.remaining()));
+            } else {
+                String header = "FTDATA " + id + " " + offset + " " + data.remaining() + " " + crc32 + "\n";
+                chunk.put(header.getBytes(StandardCharsets.UTF_8));
+            }
+            chunk.put(data);
+            chunk.flip();
+            metrics.sent(chunk.remaining());
+            client.getConnection().writeBulk(chunk, () -> {
+                buffers.release(chunk);
+                written(length);
+            });
+            Log.log(Log.Level.DEBUG, Log.Category.TRANSFER, recipient, "sent bytes: ", offset + data.limit());
+        }
+    }
+
+    /**
+     * Continues sending once half of the window has been written.
+     *
+     * @param length The number of bytes of the file in the chunk that was written.
+     */
+    private void written(int length) {
+        synchronized (this) {
+            queued -= length;
+            if (!waitingForDrain || queued > window / 2) {
+                return;
+            }
+            waitingForDrain = false;
+        }
+        pump();
+    }
+}
@@ -0,0 +1,120 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory of the resumable file transfers, indexed by transfer id. Transfers are not tied to a
+ * session: they stay until the recipient acknowledged the whole file, or until nobody touched them
+ * for a day.
+ */
+public class TransferManager {
+
+    private static final long EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private ConcurrentHashMap<Long, Transfer> transfers = new ConcurrentHashMap<>();
+    private AtomicLong nextId = new AtomicLong(1);
+    private BufferPool buffers;
+    private ServerConfiguration conf;
+    private Metrics metrics;
+
+    public TransferManager(BufferPool buffers, ServerConfiguration conf, Metrics metrics) {
+        this.buffers = buffers;
+        this.conf = conf;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates a new transfer with an empty spool file.
+     *
+     * @param sender    The username of the sender.
+     * @param recipient The username of the recipient, who doesn't have to be logged in.
+     * @param name      The file name.
+     * @param size      The file size in bytes.
+     * @return Returns the new transfer.
+     */
+    public Transfer open(String sender, String recipient, String name, long size) throws IOException {
+        expire();
+        MappedSpool spool = MappedSpool.create(size);
+        Transfer transfer = new Transfer(nextId.getAndIncrement(), sender, recipient, name, size, spool,
+                buffers, conf.getOutboundQueueSize() / 2, metrics);
+        transfers.put(transfer.getId(), transfer);
+        return transfer;
+    }
+
+    /**
+     * @param sender The username of a sender.
+     * @return Returns the number of transfers of the sender that are still open.
+     */
+    public int openBy(String sender) {
+        int open = 0;
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.getSender().equals(sender)) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * @param id The transfer id.
+     * @return Returns the transfer or null if it doesn't exist (anymore).
+     */
+    public Transfer get(long id) {
+        return transfers.get(id);
+    }
+
+    /**
+     * @param recipient The username of a recipient.
+     * @return Returns the transfers to this recipient that haven't been completed yet.
+     */
+    public List<Transfer> pendingFor(String recipient) {
+        List<Transfer> pending = new ArrayList<>();
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.getRecipient().equals(recipient)) {
+                pending.add(transfer);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Removes a transfer and deletes its spool file.
+     *
+     * @param transfer The transfer to remove.
+     */
+    public void remove(Transfer transfer) {
+        if (transfers.remove(transfer.getId(), transfer)) {
+            transfer.getSpool().delete();
+        }
+    }
+
+    /**
+     * Stops sending data to a session that disconnected.
+     *
+     * @param client The session.
+     */
+    public void disconnected(Server.ClientThread client) {
+        for (Transfer transfer : transfers.values()) {
+            transfer.stopDownload(client);
+        }
+    }
+
+    public int size() {
+        return transfers.size();
+    }
+
+    private void expire() {
+        long oldest = System.currentTimeMillis() - EXPIRY_MILLIS;
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.getLastActivity() < oldest) {
+                Log.log(Log.Level.INFO, Log.Category.TRANSFER, transfer.getSender(), "Expired transfer ", transfer.getId());
+                remove(transfer);
+            }
+        }
+    }
+}
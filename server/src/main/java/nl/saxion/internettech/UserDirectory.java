@@ -0,0 +1,77 @@
+package nl.saxion.internettech;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Directory of the logged in users, indexed by username. A client only shows up in the directory
+ * after a successful HELO, so connections that are still in the handshake are not visible to
+ * listings and lookups.
+ */
+public class UserDirectory {
+
+    private ConcurrentHashMap<String, Server.ClientThread> users = new ConcurrentHashMap<>();
+    // Sorted usernames for listings.
+    private NameIndex index = new NameIndex();
+
+    /**
+     * Atomically claims a username for a client.
+     *
+     * @param username The username to claim.
+     * @param client   The client that wants to use the username.
+     * @return Returns true if the username is now (or already was) owned by the client, false if
+     *         another client owns it.
+     */
+    public boolean claim(String username, Server.ClientThread client) {
+        Server.ClientThread owner = users.putIfAbsent(username, client);
+        if (owner == null) {
+            index.refresh(username, users::containsKey);
+        }
+        return owner == null || owner == client;
+    }
+
+    /**
+     * Releases a username, but only if it is still owned by the given client.
+     *
+     * @param username The username to release.
+     * @param client   The client that owns the username.
+     * @return Returns true if the username was released.
+     */
+    public boolean release(String username, Server.ClientThread client) {
+        if (username != null && users.remove(username, client)) {
+            index.refresh(username, users::containsKey);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param username The username to look up.
+     * @return Returns the client that is logged in with the username or null if there is none.
+     */
+    public Server.ClientThread lookup(String username) {
+        if (username == null) {
+            return null;
+        }
+        return users.get(username);
+    }
+
+    /**
+     * @return Returns a live view of all logged in clients. Iterating it never throws a
+     *         ConcurrentModificationException.
+     */
+    public Collection<Server.ClientThread> sessions() {
+        return users.values();
+    }
+
+    /**
+     * @return Returns the sorted index of the usernames.
+     */
+    public NameIndex index() {
+        return index;
+    }
+
+    public int size() {
+        return users.size();
+    }
+}
@@ -0,0 +1,170 @@
+package nl.saxion.internettech;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class UserGroup {
+
+    private static final Server.ClientThread[] NO_PARTICIPANTS = new Server.ClientThread[0];
+
+    private String groupname;
+    private Server.ClientThread groupowner;
+    // The participants by session, with the username they are indexed under ("" for none). A
+    // session stays a member when it logs in or changes its name.
+    private ConcurrentHashMap<Server.ClientThread, String> participants = new ConcurrentHashMap<>();
+    // Participants indexed by username, so join, leave and kick don't have to scan the group.
+    private ConcurrentHashMap<String, Server.ClientThread> byUsername = new ConcurrentHashMap<>();
+    // Broadcasts iterate an immutable snapshot of the participants. The snapshot is rebuilt on
+    // the first broadcast after the membership changed.
+    private AtomicLong membershipVersion = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(-1, NO_PARTICIPANTS);
+    // The most recent messages, see GroupDirectory#addHistory.
+    private final GroupHistory history;
+
+    public UserGroup(String groupname, Server.ClientThread groupowner) {
+        this(groupname, groupowner, 0);
+    }
+
+    public UserGroup(String groupname, Server.ClientThread groupowner, int historySize) {
+        this.groupname = groupname;
+        this.groupowner = groupowner;
+        this.history = new GroupHistory(groupname, historySize);
+        addParticipant(groupowner);
+    }
+
+    public String getGroupname() {
+        return groupname;
+    }
+
+    public Server.ClientThread getGroupowner() {
+        return groupowner;
+    }
+
+    public GroupHistory getHistory() {
+        return history;
+    }
+
+    public boolean Participates(String username) {
+        return username != null && byUsername.containsKey(username);
+    }
+
+    public synchronized boolean addParticipant(Server.ClientThread participant) {
+        participants.put(participant, "");
+        index(participant);
+        membershipVersion.incrementAndGet();
+        return true;
+    }
+
+    public synchronized boolean removeParticipant(Server.ClientThread participant) {
+        if (groupowner == participant) {
+            return true;
+        }
+        String username = participants.remove(participant);
+        if (username != null) {
+            byUsername.remove(username, participant);
+            membershipVersion.incrementAndGet();
+        }
+        return false;
+    }
+
+    /**
+     * Indexes a participant under its current name, after it logged in or changed its name.
+     *
+     * @param participant The participant, nothing happens when it isn't one.
+     */
+    public synchronized void renamed(Server.ClientThread participant) {
+        String username = participants.get(participant);
+        if (username == null) {
+            return;
+        }
+        byUsername.remove(username, participant);
+        index(participant);
+        membershipVersion.incrementAndGet();
+    }
+
+    /**
+     * @return Returns a consistent snapshot of the participants. Later membership changes don't
+     *         affect the returned list.
+     */
+    public List<Server.ClientThread> getParticipants() {
+        return Arrays.asList(participantSnapshot());
+    }
+
+    /**
+     * @return Returns the number of participants the message was sent to.
+     */
+    public int broadcastGroupMessage(String message, Server.ClientThread sender) {
+        Frame frame = Frame.ofUserText("BCST [" + groupname + "] " + message);
+        int recipients = 0;
+        for (Server.ClientThread ct : participantSnapshot()) {
+            if (ct != sender) {
+                ct.writeToClient(frame);
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+
+    public void disbandGroup() {
+        for (Server.ClientThread ct : participantSnapshot()) {
+            if (ct != groupowner) {
+                ct.removeGroupFromJoinedGroups(this);
+            }
+        }
+        broadcastGroupMessage("Disbanded", groupowner);
+    }
+
+    public Server.ClientThread getParticipant(String username) {
+        if (username == null) {
+            return null;
+        }
+        return byUsername.get(username);
+    }
+
+    public int size() {
+        return participants.size();
+    }
+
+    private Server.ClientThread[] participantSnapshot() {
+        Snapshot current = snapshot;
+        long version = membershipVersion.get();
+        if (current.version == version) {
+            return current.participants;
+        }
+        // Rebuild without locking. If the membership changes while building, the next
+        // broadcast sees a different version and rebuilds again.
+        Server.ClientThread[] participantArray = participants.keySet().toArray(NO_PARTICIPANTS);
+        snapshot = new Snapshot(version, participantArray);
+        return participantArray;
+    }
+
+    /**
+     * Indexes a participant under its name. Clients that haven't sent HELO yet have no name and
+     * are only found by their session. Only called while holding the lock of the group.
+     */
+    private void index(Server.ClientThread participant) {
+        String username = participant.getUsername();
+        if (username == null) {
+            return;
+        }
+        // A new session of a user replaces the one it had before reconnecting.
+        Server.ClientThread previous = byUsername.put(username, participant);
+        if (previous != null && previous != participant) {
+            participants.remove(previous);
+        }
+        participants.put(participant, username);
+    }
+
+    private static class Snapshot {
+        final long version;
+        final Server.ClientThread[] participants;
+
+        Snapshot(long version, Server.ClientThread[] participants) {
+            this.version = version;
+            this.participants = participants;
+        }
+    }
+}